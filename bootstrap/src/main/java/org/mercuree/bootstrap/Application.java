@@ -16,7 +16,13 @@
 
 package org.mercuree.bootstrap;
 
+import org.mercuree.bootstrap.events.ReactorTransformationEventSink;
+import org.mercuree.bootstrap.metrics.TransformationsPublicMetrics;
+import org.mercuree.transformations.core.TransformationEventSink;
+import org.mercuree.transformations.core.TransformationsMetrics;
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.reader.MetricReader;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -46,6 +52,16 @@ public class Application {
                 .get();
     }
 
+    @Bean
+    TransformationEventSink transformationEventSink(Reactor rootReactor) {
+        return new ReactorTransformationEventSink(rootReactor);
+    }
+
+    @Bean
+    PublicMetrics publicMetrics(MetricReader metricReader, TransformationsMetrics transformationsMetrics) {
+        return new TransformationsPublicMetrics(metricReader, transformationsMetrics);
+    }
+
     public static void main(String[] args) {
         SpringApplication.run(Application.class, args);
     }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.bootstrap.events;
+
+import org.mercuree.transformations.core.TransformationEvent;
+import org.mercuree.transformations.core.TransformationEventSink;
+import reactor.core.Reactor;
+import reactor.event.Event;
+
+/**
+ * Publishes the database transformations events on the reactor. Events are sent with the
+ * {@code transformations.} prefixed event name as a key, e.g. {@code transformations.run.finished},
+ * so consumers could subscribe to the ones they need:
+ * <pre>
+ * reactor.on($("transformations.transformation.failed"), consumer);
+ * </pre>
+ *
+ * @author Alexander Valyugin
+ */
+public class ReactorTransformationEventSink implements TransformationEventSink {
+
+    public static final String PREFIX = "transformations.";
+
+    private final Reactor reactor;
+
+    public ReactorTransformationEventSink(Reactor reactor) {
+        this.reactor = reactor;
+    }
+
+    @Override
+    public void publish(TransformationEvent event) {
+        reactor.notify(PREFIX + event.name(), Event.wrap(event));
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.bootstrap.metrics;
+
+import org.mercuree.transformations.core.TransformationsMetrics;
+import org.springframework.boot.actuate.endpoint.VanillaPublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.actuate.metrics.reader.MetricReader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Adds the database transformations metrics to the ones exported by the actuator metrics endpoint.
+ * Counters are exported as {@code counter.transformations.*}, timings in milliseconds as
+ * {@code gauge.transformations.*}.
+ *
+ * @author Alexander Valyugin
+ */
+public class TransformationsPublicMetrics extends VanillaPublicMetrics {
+
+    private static final String PREFIX = "transformations.";
+
+    private final TransformationsMetrics transformationsMetrics;
+
+    public TransformationsPublicMetrics(MetricReader reader, TransformationsMetrics transformationsMetrics) {
+        super(reader);
+        this.transformationsMetrics = transformationsMetrics;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> result = new ArrayList<Metric<?>>(super.metrics());
+        for (Map.Entry<String, Number> entry : transformationsMetrics.toMap().entrySet()) {
+            String type = entry.getValue() instanceof Long ? "counter." : "gauge.";
+            result.add(new Metric<Number>(type + PREFIX + entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+}
@@ -16,14 +16,13 @@
 
 package org.mercuree.toolkit.logging;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import java.lang.reflect.Method;
 import java.util.concurrent.Callable;
 
 /**
- * TODO: javadoc
+ * Call of a method traced at trace level of the method class logger. The trace formats are
+ * compiled once per method, so a call costs just rendering the messages, and nothing at all
+ * when the trace level is off.
  * <p/>
  *
  * @author Alexander Valyugin
@@ -32,52 +31,54 @@ public class Loggable<T> implements Callable<T> {
 
     private final Callable<T> body;
 
-    private final Method method;
+    private final MethodTrace trace;
+
+    final Object[] args;
 
-    private final Object[] args;
+    TraceFlow flow;
 
-    private String beforeFormat, afterFormat;
+    Object result;
+
+    Exception thrown;
 
     public Loggable(Callable<T> body, Method method, Object[] args) {
+        this(body, LoggingConfiguration.getDefault().traceOf(method), args);
+    }
+
+    Loggable(Callable<T> body, MethodTrace trace, Object[] args) {
         this.body = body;
-        this.method = method;
+        this.trace = trace;
         this.args = args;
-
-        TraceFormat methodTraceFormat = method.getAnnotation(TraceFormat.class);
-        Class<?> declaringClass = method.getDeclaringClass();
-        TraceFormat classTraceFormat = declaringClass.getAnnotation(TraceFormat.class);
-        Package declaringClassPackage = declaringClass.getPackage();
-        TraceFormat packageTraceFormat = declaringClassPackage.getAnnotation(TraceFormat.class);
-
-        TraceFormat[] traceFormatChain = {methodTraceFormat, classTraceFormat, packageTraceFormat};
-        for (TraceFormat tf : traceFormatChain) {
-            if (tf == null) continue;
-            String thatAfterFormat = tf.afterFormat();
-            if (this.afterFormat == null && !"".equals(thatAfterFormat)) {
-                this.afterFormat = tf.afterFormat();
-            }
-        }
     }
 
-    private void resolveTraceFormat(TraceFormat[] traceFormats) {
-        for (TraceFormat tf : traceFormats) {
-            if (tf == null) continue;
-            String thatAfterFormat = tf.afterFormat();
-            if (this.afterFormat == null && !"".equals(thatAfterFormat)) {
-                this.afterFormat = tf.afterFormat();
+    private void trace(TraceProgram program) {
+        if (program != null) {
+            try {
+                trace.logger.trace(program.render(this));
+            } catch (RuntimeException e) {
+                trace.logger.warn("Unable to trace with format [" + program + "]", e);
             }
         }
     }
 
     @Override
     public T call() throws Exception {
-        final Logger logger = LoggerFactory.getLogger(method.getDeclaringClass());
-        try {
+        if (!trace.isEnabled()) {
             return body.call();
+        }
+        flow = TraceFlow.enter();
+        try {
+            trace(trace.before);
+            T value = body.call();
+            result = value;
+            trace(trace.after);
+            return value;
         } catch (Exception e) {
+            thrown = e;
+            trace(trace.after);
             throw e;
         } finally {
-
+            flow.exit();
         }
     }
 }
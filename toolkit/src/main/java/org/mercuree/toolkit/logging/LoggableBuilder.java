@@ -13,23 +13,56 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+
 package org.mercuree.toolkit.logging;
 
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+
 /**
- * TODO: javadoc
+ * Builds a {@link Loggable} call.
  * <p/>
  *
  * @author Alexander Valyugin
  */
 public class LoggableBuilder {
 
-    private static final String formatIn = "[$flow][$elapsed] $methodName($arg1.name)";
+    private LoggingConfiguration configuration = LoggingConfiguration.getDefault();
+
+    private Method method;
 
-    private static final String formatOut = "[$flow][$elapsed] $methodName($arg1.name) -> $returnValue";
+    private Object[] args = new Object[0];
 
     public static LoggableBuilder Builder() {
         return new LoggableBuilder();
     }
 
+    public LoggableBuilder configuration(LoggingConfiguration configuration) {
+        this.configuration = configuration;
+        return this;
+    }
+
+    public LoggableBuilder method(Method method) {
+        this.method = method;
+        return this;
+    }
+
+    public LoggableBuilder args(Object... args) {
+        this.args = args;
+        return this;
+    }
+
+    /**
+     * Builds the call of the given body.
+     *
+     * @param body the method body to run.
+     * @return traced call.
+     */
+    public <T> Loggable<T> build(Callable<T> body) {
+        if (method == null) {
+            throw new IllegalStateException("Traced method must be specified");
+        }
+        return new Loggable<T>(body, configuration.traceOf(method), args);
+    }
 
 }
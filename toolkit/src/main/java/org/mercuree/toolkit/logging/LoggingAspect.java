@@ -21,13 +21,14 @@ import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Pointcut;
 import org.aspectj.lang.reflect.MethodSignature;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.springframework.aop.support.AopUtils;
 
-import java.util.Stack;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.Callable;
 
 /**
- * TODO: javadoc
+ * Traces calls of the methods annotated with {@link Log}.
  * <p/>
  *
  * @author Alexander Valyugin
@@ -35,21 +36,42 @@ import java.util.Stack;
 @Aspect
 public class LoggingAspect {
 
-    private final ThreadLocal<Stack> invocationStack = new ThreadLocal<Stack>();
+    private LoggingConfiguration configuration = LoggingConfiguration.getDefault();
 
-    @Pointcut("execution(* *(..)) && " + "@annotation(log)")
-    private void logAnnotatedMethod(Log log) {
+    public LoggingConfiguration getConfiguration() {
+        return configuration;
     }
 
-    @Around("logAnnotatedMethod(log)")
-    public Object aroundInvoke(ProceedingJoinPoint pjp, Log log) throws Exception {
-        Logger logger = getLoggerForClass(((MethodSignature)pjp.getSignature()).getMethod().getDeclaringClass());
+    public void setConfiguration(LoggingConfiguration configuration) {
+        this.configuration = configuration;
+    }
 
-        return null;
+    @Pointcut("execution(* *(..)) && " + "@annotation(log)")
+    private void logAnnotatedMethod(Log log) {
     }
 
-    Logger getLoggerForClass(Class<?> clazz) {
-        return LoggerFactory.getLogger(clazz);
+    @Around("logAnnotatedMethod(log)")
+    public Object aroundInvoke(final ProceedingJoinPoint pjp, Log log) throws Throwable {
+        Method method = ((MethodSignature) pjp.getSignature()).getMethod();
+        Object target = pjp.getTarget();
+        MethodTrace trace = target == null ? configuration.traceOf(method)
+                : configuration.traceOf(method, AopUtils.getTargetClass(target));
+        if (!trace.isEnabled()) {
+            return pjp.proceed();
+        }
+        Callable<Object> body = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                try {
+                    return pjp.proceed();
+                } catch (Exception | Error e) {
+                    throw e;
+                } catch (Throwable t) {
+                    throw new UndeclaredThrowableException(t);
+                }
+            }
+        };
+        return new Loggable<Object>(body, trace, pjp.getArgs()).call();
     }
 
 }
@@ -16,20 +16,187 @@
 
 package org.mercuree.toolkit.logging;
 
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.support.AopUtils;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 /**
- * TODO: javadoc
+ * Default trace formats and value formatters. A format given with {@link TraceFormat} on a method,
+ * its class or package takes precedence over the default one. An empty default format turns
+ * the trace off for the methods having no format of their own.
+ * <p/>
+ * Formats are compiled once per method on its first call and cached, so changing the configuration
+ * drops the compiled formats.
  * <p/>
  *
  * @author Alexander Valyugin
  */
-public class LoggingConfiguration {
+public class LoggingConfiguration implements TraceFormatProvider {
 
     private static final String formatIn = "[$flow][$elapsed] $methodName($arg1.name)";
 
     private static final String formatOut = "[$flow][$elapsed] $methodName($arg1.name) -> $returnValue";
 
+    private static final LoggingConfiguration defaultConfiguration = new LoggingConfiguration();
+
+    private volatile String beforeFormat = formatIn;
+
+    private volatile String afterFormat = formatOut;
+
+    private final List<ToStringFormatter> formatters = new CopyOnWriteArrayList<ToStringFormatter>();
+
+    private final ConcurrentMap<Object, MethodTrace> traces = new ConcurrentHashMap<Object, MethodTrace>();
+
+    /**
+     * @return configuration shared by the traced calls which have no configuration given explicitly.
+     */
+    public static LoggingConfiguration getDefault() {
+        return defaultConfiguration;
+    }
+
+    /**
+     * Creates a configuration tracing calls with the given format, which is followed by the return
+     * value on exit.
+     *
+     * @param format trace format.
+     * @return new configuration.
+     */
     public static LoggingConfiguration setDefaultFormat(String format) {
-        return null;
+        return new LoggingConfiguration().setBeforeFormat(format).setAfterFormat(format + " -> $returnValue");
+    }
+
+    @Override
+    public String getBeforeFormat() {
+        return beforeFormat;
+    }
+
+    public LoggingConfiguration setBeforeFormat(String beforeFormat) {
+        this.beforeFormat = beforeFormat;
+        traces.clear();
+        return this;
+    }
+
+    @Override
+    public String getAfterFormat() {
+        return afterFormat;
+    }
+
+    public LoggingConfiguration setAfterFormat(String afterFormat) {
+        this.afterFormat = afterFormat;
+        traces.clear();
+        return this;
+    }
+
+    /**
+     * Registers the formatter for the values of its type. Formatters given with {@link TraceFormat}
+     * take precedence.
+     *
+     * @param formatter to register.
+     * @return this configuration.
+     */
+    public LoggingConfiguration addFormatter(ToStringFormatter formatter) {
+        formatters.add(formatter);
+        traces.clear();
+        return this;
+    }
+
+    /**
+     * Returns the trace of the given method compiling it on first call.
+     *
+     * @param method to trace.
+     * @return method trace.
+     */
+    MethodTrace traceOf(Method method) {
+        return traceOf(method, method.getDeclaringClass());
+    }
+
+    /**
+     * Returns the trace of the given method as implemented by the target class, which matters
+     * when the method is invoked through an interface. The trace is compiled on first call.
+     *
+     * @param method to trace.
+     * @param targetClass class of the object the method is invoked on.
+     * @return method trace.
+     */
+    MethodTrace traceOf(Method method, Class<?> targetClass) {
+        Object key = targetClass == method.getDeclaringClass() ? method : new TargetMethod(method, targetClass);
+        MethodTrace trace = traces.get(key);
+        if (trace == null) {
+            trace = compile(AopUtils.getMostSpecificMethod(method, targetClass));
+            MethodTrace existing = traces.putIfAbsent(key, trace);
+            if (existing != null) {
+                trace = existing;
+            }
+        }
+        return trace;
+    }
+
+    private MethodTrace compile(Method method) {
+        Class<?> declaringClass = method.getDeclaringClass();
+        Package declaringClassPackage = declaringClass.getPackage();
+        TraceFormat[] traceFormatChain = {
+                method.getAnnotation(TraceFormat.class),
+                declaringClass.getAnnotation(TraceFormat.class),
+                declaringClassPackage == null ? null : declaringClassPackage.getAnnotation(TraceFormat.class)
+        };
+
+        List<TraceFormatProvider> providers = new ArrayList<TraceFormatProvider>();
+        List<ToStringFormatter> methodFormatters = new ArrayList<ToStringFormatter>();
+        for (TraceFormat tf : traceFormatChain) {
+            if (tf == null) continue;
+            providers.add(new TraceFormatAdapter(tf));
+            for (Formatter formatter : tf.formatters()) {
+                methodFormatters.add(new SpelToStringFormatter(formatter));
+            }
+        }
+        providers.add(this);
+        methodFormatters.addAll(formatters);
+
+        String before = null, after = null;
+        for (TraceFormatProvider provider : providers) {
+            if (before == null && !"".equals(provider.getBeforeFormat())) {
+                before = provider.getBeforeFormat();
+            }
+            if (after == null && !"".equals(provider.getAfterFormat())) {
+                after = provider.getAfterFormat();
+            }
+        }
+
+        ToStringFormatter[] compiledFormatters = methodFormatters.toArray(new ToStringFormatter[methodFormatters.size()]);
+        return new MethodTrace(LoggerFactory.getLogger(declaringClass),
+                before == null ? null : TraceProgram.compile(before, method, false, compiledFormatters),
+                after == null ? null : TraceProgram.compile(after, method, true, compiledFormatters));
+    }
+
+    private static final class TargetMethod {
+
+        private final Method method;
+
+        private final Class<?> targetClass;
+
+        TargetMethod(Method method, Class<?> targetClass) {
+            this.method = method;
+            this.targetClass = targetClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TargetMethod)) return false;
+            TargetMethod that = (TargetMethod) o;
+            return method.equals(that.method) && targetClass == that.targetClass;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * method.hashCode() + targetClass.hashCode();
+        }
+
     }
 
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.toolkit.logging;
+
+import org.slf4j.Logger;
+
+/**
+ * Everything needed to trace calls of a particular method, resolved once per method.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+final class MethodTrace {
+
+    final Logger logger;
+
+    final TraceProgram before;
+
+    final TraceProgram after;
+
+    MethodTrace(Logger logger, TraceProgram before, TraceProgram after) {
+        this.logger = logger;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return true if there is anything to trace.
+     */
+    boolean isEnabled() {
+        return (before != null || after != null) && logger.isTraceEnabled();
+    }
+
+}
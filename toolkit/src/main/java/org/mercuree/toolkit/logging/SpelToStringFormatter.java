@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.toolkit.logging;
+
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+
+/**
+ * Formats values with a SpEL expression evaluated against the value.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+final class SpelToStringFormatter implements ToStringFormatter {
+
+    private static final SpelExpressionParser parser = new SpelExpressionParser();
+
+    private final Class<?> type;
+
+    private final Expression expression;
+
+    SpelToStringFormatter(Formatter formatter) {
+        this.type = formatter.type();
+        this.expression = parser.parseExpression(formatter.spelFormatter());
+    }
+
+    @Override
+    public Class<?> forType() {
+        return type;
+    }
+
+    @Override
+    public String apply(Object object) {
+        return expression.getValue(object, String.class);
+    }
+
+}
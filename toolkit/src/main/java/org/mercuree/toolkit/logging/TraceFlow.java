@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.toolkit.logging;
+
+/**
+ * Traced calls in progress on the current thread.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+final class TraceFlow {
+
+    private static final ThreadLocal<TraceFlow> current = new ThreadLocal<TraceFlow>() {
+        @Override
+        protected TraceFlow initialValue() {
+            return new TraceFlow();
+        }
+    };
+
+    private int depth;
+
+    private long start;
+
+    private TraceFlow() {
+    }
+
+    /**
+     * Registers a traced call entered on the current thread.
+     *
+     * @return flow of the current thread.
+     */
+    static TraceFlow enter() {
+        TraceFlow flow = current.get();
+        if (flow.depth++ == 0) {
+            flow.start = System.nanoTime();
+        }
+        return flow;
+    }
+
+    /**
+     * Registers the exit from the innermost traced call.
+     */
+    void exit() {
+        depth--;
+    }
+
+    /**
+     * @return number of traced calls in progress.
+     */
+    int depth() {
+        return depth;
+    }
+
+    /**
+     * @return milliseconds since the outermost traced call started.
+     */
+    long elapsedMillis() {
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+}
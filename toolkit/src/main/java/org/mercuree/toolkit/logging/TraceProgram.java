@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.toolkit.logging;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Trace format compiled for a particular method. The format is parsed once into a sequence of
+ * tokens, so rendering a trace message is a single pass over the tokens without any parsing or
+ * reflective lookups. Supported variables are:
+ * <ul>
+ *     <li>{@code $flow} - nesting level of the traced call, {@code >} per level on enter and {@code <} on exit;</li>
+ *     <li>{@code $elapsed} - milliseconds since the outermost traced call on the current thread started;</li>
+ *     <li>{@code $methodName}, {@code $className} - the traced method name and its class simple name;</li>
+ *     <li>{@code $args} - all arguments separated with commas;</li>
+ *     <li>{@code $arg1}, {@code $arg2}, ... - an argument by its position starting from one;</li>
+ *     <li>{@code $returnValue} - the returned value or the exception thrown.</li>
+ * </ul>
+ * Arguments and the return value might be followed by a property path like {@code $arg1.name},
+ * which is resolved through getters or public fields; arrays have {@code length} property too.
+ * A missing property is reported once and the value is rendered as resolved up to it.
+ * Unknown variables are left as is.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+final class TraceProgram {
+
+    private static final Logger logger = LoggerFactory.getLogger(TraceProgram.class);
+
+    private static final String VARIABLE_PREFIX = "$";
+
+    private static final String ARG_VARIABLE = "arg";
+
+    private final String format;
+
+    private final Token[] tokens;
+
+    private TraceProgram(String format, Token[] tokens) {
+        this.format = format;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Compiles the format for the given method.
+     *
+     * @param format to compile.
+     * @param method the format is used to trace.
+     * @param exit whether the format is used on exit from the method.
+     * @param formatters value formatters in the order of precedence.
+     * @return compiled program.
+     */
+    static TraceProgram compile(String format, Method method, boolean exit, ToStringFormatter[] formatters) {
+        List<Token> tokens = new ArrayList<Token>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < format.length()) {
+            int nameEnd = format.startsWith(VARIABLE_PREFIX, i) ? identifierEnd(format, i + 1) : i + 1;
+            if (nameEnd == i + 1) {
+                literal.append(format.charAt(i++));
+                continue;
+            }
+            String name = format.substring(i + 1, nameEnd);
+            int end = nameEnd;
+            Token token = null;
+            if ("flow".equals(name)) {
+                token = new FlowToken(exit ? '<' : '>');
+            } else if ("elapsed".equals(name)) {
+                token = new ElapsedToken();
+            } else if ("methodName".equals(name)) {
+                literal.append(method.getName());
+            } else if ("className".equals(name)) {
+                literal.append(method.getDeclaringClass().getSimpleName());
+            } else if ("args".equals(name)) {
+                token = new ArgsToken(formatters);
+            } else {
+                int index = argumentIndex(name, method);
+                Class<?> type = index >= 0 ? method.getParameterTypes()[index]
+                        : "returnValue".equals(name) ? method.getReturnType() : null;
+                if (type == null) {
+                    logger.warn("Unknown variable [{}] in trace format [{}] of {}", name, format, method);
+                    literal.append(format, i, nameEnd);
+                } else {
+                    List<Property> path = new ArrayList<Property>();
+                    boolean resolvable = true;
+                    while (end < format.length() - 1 && format.charAt(end) == '.'
+                            && identifierEnd(format, end + 1) > end + 1) {
+                        int propertyEnd = identifierEnd(format, end + 1);
+                        if (resolvable) {
+                            Property property = new Property(format.substring(end + 1, propertyEnd), type, format);
+                            resolvable = property.isResolvable(type);
+                            if (resolvable) {
+                                type = property.type();
+                                path.add(property);
+                            } else {
+                                logger.warn("No property [{}] in {}, trace format [{}] of {} renders the value without it",
+                                        format.substring(end + 1, propertyEnd), type, format, method);
+                            }
+                        }
+                        end = propertyEnd;
+                    }
+                    Property[] properties = path.toArray(new Property[path.size()]);
+                    token = index >= 0 ? new ArgToken(index, properties, formatters)
+                            : new ReturnValueToken(properties, formatters);
+                }
+            }
+            if (token != null) {
+                if (literal.length() > 0) {
+                    tokens.add(new LiteralToken(literal.toString()));
+                    literal.setLength(0);
+                }
+                tokens.add(token);
+            }
+            i = end;
+        }
+        if (literal.length() > 0) {
+            tokens.add(new LiteralToken(literal.toString()));
+        }
+        return new TraceProgram(format, tokens.toArray(new Token[tokens.size()]));
+    }
+
+    private static int identifierEnd(String text, int start) {
+        int end = start;
+        if (end < text.length() && Character.isJavaIdentifierStart(text.charAt(end)) && text.charAt(end) != '$') {
+            end++;
+            while (end < text.length() && Character.isJavaIdentifierPart(text.charAt(end)) && text.charAt(end) != '$') {
+                end++;
+            }
+        }
+        return end;
+    }
+
+    // Zero based index of the argument variable or -1 if the name doesn't denote an existing argument
+    private static int argumentIndex(String name, Method method) {
+        if (name.length() > ARG_VARIABLE.length() && name.startsWith(ARG_VARIABLE)) {
+            try {
+                int index = Integer.parseInt(name.substring(ARG_VARIABLE.length())) - 1;
+                if (index >= 0 && index < method.getParameterTypes().length) {
+                    return index;
+                }
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Renders the trace message of the given call.
+     *
+     * @param call being traced.
+     * @return trace message.
+     */
+    String render(Loggable<?> call) {
+        StringBuilder out = new StringBuilder(format.length() + 64);
+        for (Token token : tokens) {
+            token.append(out, call);
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return format;
+    }
+
+    private static void appendValue(StringBuilder out, Object value, ToStringFormatter[] formatters) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        for (ToStringFormatter formatter : formatters) {
+            if (formatter.forType().isInstance(value)) {
+                out.append(formatter.apply(value));
+                return;
+            }
+        }
+        if (value instanceof Object[]) {
+            out.append(Arrays.deepToString((Object[]) value));
+        } else if (value.getClass().isArray()) {
+            out.append('[');
+            for (int i = 0; i < Array.getLength(value); i++) {
+                if (i > 0) out.append(", ");
+                out.append(Array.get(value, i));
+            }
+            out.append(']');
+        } else {
+            out.append(value);
+        }
+    }
+
+    // The value is rendered as resolved so far once a property is missing on its actual type
+    private static Object resolve(Object value, Property[] properties) {
+        for (Property property : properties) {
+            if (value == null) break;
+            Object next = property.get(value);
+            if (next == Property.MISSING) break;
+            value = next;
+        }
+        return value;
+    }
+
+    private interface Token {
+
+        void append(StringBuilder out, Loggable<?> call);
+
+    }
+
+    private static final class LiteralToken implements Token {
+
+        private final String text;
+
+        LiteralToken(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public void append(StringBuilder out, Loggable<?> call) {
+            out.append(text);
+        }
+
+    }
+
+    private static final class FlowToken implements Token {
+
+        private final char marker;
+
+        FlowToken(char marker) {
+            this.marker = marker;
+        }
+
+        @Override
+        public void append(StringBuilder out, Loggable<?> call) {
+            for (int i = call.flow.depth(); i > 0; i--) {
+                out.append(marker);
+            }
+        }
+
+    }
+
+    private static final class ElapsedToken implements Token {
+
+        @Override
+        public void append(StringBuilder out, Loggable<?> call) {
+            out.append(call.flow.elapsedMillis()).append("ms");
+        }
+
+    }
+
+    private static final class ArgsToken implements Token {
+
+        private final ToStringFormatter[] formatters;
+
+        ArgsToken(ToStringFormatter[] formatters) {
+            this.formatters = formatters;
+        }
+
+        @Override
+        public void append(StringBuilder out, Loggable<?> call) {
+            for (int i = 0; i < call.args.length; i++) {
+                if (i > 0) out.append(", ");
+                appendValue(out, call.args[i], formatters);
+            }
+        }
+
+    }
+
+    private static final class ArgToken implements Token {
+
+        private final int index;
+
+        private final Property[] properties;
+
+        private final ToStringFormatter[] formatters;
+
+        ArgToken(int index, Property[] properties, ToStringFormatter[] formatters) {
+            this.index = index;
+            this.properties = properties;
+            this.formatters = formatters;
+        }
+
+        @Override
+        public void append(StringBuilder out, Loggable<?> call) {
+            appendValue(out, resolve(call.args[index], properties), formatters);
+        }
+
+    }
+
+    private static final class ReturnValueToken implements Token {
+
+        private final Property[] properties;
+
+        private final ToStringFormatter[] formatters;
+
+        ReturnValueToken(Property[] properties, ToStringFormatter[] formatters) {
+            this.properties = properties;
+            this.formatters = formatters;
+        }
+
+        @Override
+        public void append(StringBuilder out, Loggable<?> call) {
+            if (call.thrown != null) {
+                out.append("threw ").append(call.thrown);
+            } else {
+                appendValue(out, resolve(call.result, properties), formatters);
+            }
+        }
+
+    }
+
+    /**
+     * Property of a value read through a getter or a public field. The accessor is looked up on
+     * the declared type at compile time; when it isn't there, the accessor is looked up on the
+     * actual type on first use and cached, so is the lack of it.
+     */
+    private static final class Property {
+
+        /**
+         * Read instead of the value when the actual type has no such property.
+         */
+        static final Object MISSING = new Object();
+
+        private final String name;
+
+        private final String format;
+
+        private final Member declared;
+
+        private final ConcurrentMap<Class<?>, Object> actual = new ConcurrentHashMap<Class<?>, Object>();
+
+        Property(String name, Class<?> declaredType, String format) {
+            this.name = name;
+            this.format = format;
+            this.declared = lookup(declaredType, name);
+        }
+
+        /**
+         * @return false if no value of the declared type might have the property.
+         */
+        boolean isResolvable(Class<?> declaredType) {
+            return declared != null || !(declaredType.isPrimitive() || Modifier.isFinal(declaredType.getModifiers()))
+                    || declaredType.isArray() && "length".equals(name);
+        }
+
+        Class<?> type() {
+            if (declared instanceof Method) return ((Method) declared).getReturnType();
+            if (declared instanceof Field) return ((Field) declared).getType();
+            return Object.class;
+        }
+
+        Object get(Object target) {
+            Member member = declared;
+            if (member == null && target.getClass().isArray() && "length".equals(name)) {
+                return Array.getLength(target);
+            }
+            if (member == null) {
+                Object found = actual.get(target.getClass());
+                if (found == null) {
+                    Member lookedUp = lookup(target.getClass(), name);
+                    found = lookedUp != null ? lookedUp : MISSING;
+                    if (actual.putIfAbsent(target.getClass(), found) == null && found == MISSING) {
+                        logger.warn("No property [{}] in {}, trace format [{}] renders the value without it",
+                                name, target.getClass(), format);
+                    }
+                }
+                if (found == MISSING) return MISSING;
+                member = (Member) found;
+            }
+            try {
+                return member instanceof Method ? ((Method) member).invoke(target) : ((Field) member).get(target);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Unable to read property [" + name + "] of " + target.getClass(), e);
+            }
+        }
+
+        private static Member lookup(Class<?> type, String name) {
+            if (type.isPrimitive()) return null;
+            String suffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            for (String candidate : new String[]{"get" + suffix, "is" + suffix, name}) {
+                try {
+                    Method method = type.getMethod(candidate);
+                    if (method.getReturnType() != void.class) {
+                        return accessible(method);
+                    }
+                } catch (NoSuchMethodException e) {
+                    // try the next candidate
+                }
+            }
+            try {
+                Field field = type.getField(name);
+                return Modifier.isStatic(field.getModifiers()) ? null : accessible(field);
+            } catch (NoSuchFieldException e) {
+                return null;
+            }
+        }
+
+        // Public members of non public classes are not accessible otherwise
+        private static <M extends AccessibleObject & Member> M accessible(M member) {
+            if (!Modifier.isPublic(member.getDeclaringClass().getModifiers())) {
+                try {
+                    member.setAccessible(true);
+                } catch (SecurityException e) {
+                    logger.debug("Unable to make {} accessible", member);
+                }
+            }
+            return member;
+        }
+
+    }
+
+}
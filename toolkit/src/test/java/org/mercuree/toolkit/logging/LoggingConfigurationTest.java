@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.toolkit.logging;
+
+import org.junit.Test;
+import org.mercuree.toolkit.logging.formats.Annotated;
+import org.mercuree.toolkit.logging.formats.Plain;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * {@link LoggingConfiguration} test.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+public class LoggingConfigurationTest {
+
+    public interface Greeter {
+
+        String greet();
+
+    }
+
+    public static class AnnotatedGreeter implements Greeter {
+
+        @Override
+        @TraceFormat(beforeFormat = "greeting")
+        public String greet() {
+            return "Hello";
+        }
+
+    }
+
+    public void untraced() {
+    }
+
+    private static String format(TraceProgram program) {
+        return program == null ? null : program.toString();
+    }
+
+    @Test
+    public void testFormatPrecedence() throws NoSuchMethodException {
+        LoggingConfiguration configuration = new LoggingConfiguration().setBeforeFormat("default in");
+
+        MethodTrace method = configuration.traceOf(Annotated.class.getMethod("methodFormat"));
+        assertEquals("method in", format(method.before));
+        assertEquals("package out", format(method.after));
+
+        MethodTrace type = configuration.traceOf(Annotated.class.getMethod("classFormat"));
+        assertEquals("class in", format(type.before));
+        assertEquals("package out", format(type.after));
+
+        MethodTrace pkg = configuration.traceOf(Plain.class.getMethod("packageFormat"));
+        assertEquals("package in", format(pkg.before));
+        assertEquals("package out", format(pkg.after));
+    }
+
+    @Test
+    public void testDefaultFormat() throws NoSuchMethodException {
+        LoggingConfiguration configuration = LoggingConfiguration.setDefaultFormat("$methodName");
+        MethodTrace trace = configuration.traceOf(getClass().getMethod("untraced"));
+
+        assertEquals("$methodName", format(trace.before));
+        assertEquals("$methodName -> $returnValue", format(trace.after));
+    }
+
+    @Test
+    public void testTraceOff() throws NoSuchMethodException {
+        LoggingConfiguration configuration = new LoggingConfiguration().setBeforeFormat("").setAfterFormat("");
+        MethodTrace trace = configuration.traceOf(getClass().getMethod("untraced"));
+
+        assertNull(trace.before);
+        assertNull(trace.after);
+    }
+
+    @Test
+    public void testTargetClassFormat() throws NoSuchMethodException {
+        LoggingConfiguration configuration = new LoggingConfiguration();
+        Method method = Greeter.class.getMethod("greet");
+
+        assertEquals("greeting", format(configuration.traceOf(method, AnnotatedGreeter.class).before));
+        assertEquals(new LoggingConfiguration().getBeforeFormat(), format(configuration.traceOf(method).before));
+    }
+
+    @Test
+    public void testCompiledOnce() throws NoSuchMethodException {
+        LoggingConfiguration configuration = new LoggingConfiguration();
+        Method method = getClass().getMethod("untraced");
+
+        assertSame(configuration.traceOf(method), configuration.traceOf(method));
+    }
+
+    @Test
+    public void testCacheDroppedOnChange() throws NoSuchMethodException {
+        LoggingConfiguration configuration = new LoggingConfiguration();
+        Method method = getClass().getMethod("untraced");
+        MethodTrace compiled = configuration.traceOf(method);
+
+        configuration.setBeforeFormat("changed in");
+        MethodTrace changed = configuration.traceOf(method);
+        assertNotSame(compiled, changed);
+        assertEquals("changed in", format(changed.before));
+
+        configuration.setAfterFormat("changed out");
+        assertEquals("changed out", format(configuration.traceOf(method).after));
+
+        MethodTrace beforeFormatter = configuration.traceOf(method);
+        configuration.addFormatter(new ToStringFormatter() {
+            @Override
+            public Class<?> forType() {
+                return Object.class;
+            }
+
+            @Override
+            public String apply(Object object) {
+                return "formatted";
+            }
+        });
+        assertNotSame(beforeFormatter, configuration.traceOf(method));
+    }
+
+}
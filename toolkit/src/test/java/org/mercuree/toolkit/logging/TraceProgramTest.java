@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.toolkit.logging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link TraceProgram} test.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+public class TraceProgramTest {
+
+    private static final ToStringFormatter[] NO_FORMATTERS = new ToStringFormatter[0];
+
+    public static class User {
+
+        public final int age;
+
+        public User(int age) {
+            this.age = age;
+        }
+
+        public String getName() {
+            return "John";
+        }
+
+        public boolean isAdmin() {
+            return true;
+        }
+
+    }
+
+    public static class Anonymous {
+
+        @Override
+        public String toString() {
+            return "anonymous";
+        }
+
+    }
+
+    public String greet(User user, int times) {
+        return "Hello";
+    }
+
+    public String describe(Object subject) {
+        return "";
+    }
+
+    private Method greet;
+
+    private Method describe;
+
+    private TraceFlow flow;
+
+    @Before
+    public void setUp() throws NoSuchMethodException {
+        greet = getClass().getMethod("greet", User.class, int.class);
+        describe = getClass().getMethod("describe", Object.class);
+        flow = TraceFlow.enter();
+    }
+
+    @After
+    public void tearDown() {
+        flow.exit();
+    }
+
+    private Loggable<String> call(Object... args) {
+        Loggable<String> call = new Loggable<String>(null, new MethodTrace(null, null, null), args);
+        call.flow = flow;
+        return call;
+    }
+
+    private String render(String format, Method method, boolean exit, Loggable<?> call) {
+        return TraceProgram.compile(format, method, exit, NO_FORMATTERS).render(call);
+    }
+
+    @Test
+    public void testVariables() {
+        Loggable<String> call = call(new User(42), 3);
+        call.result = "Hello";
+
+        assertEquals("> TraceProgramTest.greet(John, true, 42, 3)",
+                render("$flow $className.$methodName($arg1.name, $arg1.admin, $arg1.age, $arg2)", greet, false, call));
+        assertEquals("< greet -> Hello, 5", render("$flow $methodName -> $returnValue, $returnValue.length", greet, true, call));
+        assertTrue(render("$args", greet, false, call).endsWith(", 3"));
+        assertTrue(render("[$elapsed]", greet, false, call).matches("\\[\\d+ms\\]"));
+    }
+
+    @Test
+    public void testNestedFlow() {
+        TraceFlow nested = TraceFlow.enter();
+        try {
+            assertEquals(">>", render("$flow", greet, false, call(new User(42), 3)));
+        } finally {
+            nested.exit();
+        }
+    }
+
+    @Test
+    public void testUnknownVariables() {
+        assertEquals("$unknown $arg0 $arg3 $argument $ 5$ $$",
+                render("$unknown $arg0 $arg3 $argument $ 5$ $$", greet, false, call(new User(42), 3)));
+    }
+
+    @Test
+    public void testNullValues() {
+        assertEquals("null, null", render("$arg1, $arg1.name", greet, false, call(null, 3)));
+    }
+
+    @Test
+    public void testArrays() {
+        assertEquals("[1, 2], 2", render("$arg1, $arg1.length", describe, false, call((Object) new int[]{1, 2})));
+        assertEquals("[[a], [b]]", render("$arg1", describe, false, call((Object) new String[][]{{"a"}, {"b"}})));
+    }
+
+    @Test
+    public void testThrownException() {
+        Loggable<String> call = call(new User(42), 3);
+        call.thrown = new IllegalStateException("No greeting");
+
+        assertEquals("greet -> threw java.lang.IllegalStateException: No greeting",
+                render("$methodName -> $returnValue.length", greet, true, call));
+    }
+
+    @Test
+    public void testPropertyOfActualType() {
+        assertEquals("John", render("$arg1.name", describe, false, call(new User(42))));
+    }
+
+    @Test
+    public void testMissingProperty() {
+        // Rendered as resolved up to the missing property, on every call
+        TraceProgram program = TraceProgram.compile("$arg1.name", describe, false, NO_FORMATTERS);
+        assertEquals("anonymous", program.render(call(new Anonymous())));
+        assertEquals("anonymous", program.render(call(new Anonymous())));
+        assertEquals("John", program.render(call(new User(42))));
+        assertEquals("3", render("$arg2.name", greet, false, call(new User(42), 3)));
+    }
+
+    @Test
+    public void testFormatters() {
+        ToStringFormatter users = new ToStringFormatter() {
+            @Override
+            public Class<?> forType() {
+                return User.class;
+            }
+
+            @Override
+            public String apply(Object object) {
+                return "user of " + ((User) object).age;
+            }
+        };
+        TraceProgram program = TraceProgram.compile("$args", greet, false, new ToStringFormatter[]{users});
+
+        assertEquals("user of 42, 3", program.render(call(new User(42), 3)));
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.toolkit.logging.formats;
+
+import org.mercuree.toolkit.logging.TraceFormat;
+
+/**
+ * Class having a trace format of its own.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+@TraceFormat(beforeFormat = "class in")
+public class Annotated {
+
+    @TraceFormat(beforeFormat = "method in")
+    public void methodFormat() {
+    }
+
+    public void classFormat() {
+    }
+
+}
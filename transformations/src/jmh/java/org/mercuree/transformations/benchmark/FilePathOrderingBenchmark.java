@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.benchmark;
+
+import org.mercuree.transformations.core.FilePathKey;
+import org.mercuree.transformations.core.FilePathKey$;
+import org.mercuree.transformations.core.FilePathOrdering$;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link org.mercuree.transformations.core.FilePathOrdering} benchmark.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class FilePathOrderingBenchmark {
+
+    @Param({"1000", "10000"})
+    public int count;
+
+    private List<String> paths;
+
+    @Setup
+    public void setUp() {
+        paths = TransformationFixtures.paths(count);
+    }
+
+    @Benchmark
+    public int compareVersions() {
+        return FilePathOrdering$.MODULE$.compare("2013.2.1/common/drop.sql", "2013.2.10/common/drop.sql");
+    }
+
+    @Benchmark
+    public int compareNames() {
+        return FilePathOrdering$.MODULE$.compare("common/dev/cleanup.sql", "common/dev/houseKeep.sql");
+    }
+
+    @Benchmark
+    public List<String> sort() {
+        List<String> sorted = new ArrayList<String>(paths);
+        Collections.sort(sorted, FilePathOrdering$.MODULE$);
+        return sorted;
+    }
+
+    @Benchmark
+    public List<FilePathKey> sortKeys() {
+        List<FilePathKey> sorted = new ArrayList<FilePathKey>(paths.size());
+        for (String path : paths) {
+            sorted.add(FilePathKey$.MODULE$.apply(path));
+        }
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.benchmark;
+
+import org.mercuree.transformations.core.HashAlgorithm;
+import org.mercuree.transformations.core.HashAlgorithm$;
+import org.mercuree.transformations.core.LocalTransformation$;
+import org.mercuree.transformations.core.Transformation;
+import org.openjdk.jmh.annotations.*;
+import scala.xml.Elem;
+import scala.xml.XML;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link org.mercuree.transformations.core.LocalTransformation} parsing and hashing benchmark.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class LocalTransformationBenchmark {
+
+    /**
+     * Number of tables the script creates, defines the script size.
+     */
+    @Param({"1", "100"})
+    public int tables;
+
+    @Param({"md5", "sha256", "murmur3"})
+    public String algorithm;
+
+    private HashAlgorithm hashAlgorithm;
+
+    private String sql;
+
+    private Elem xml;
+
+    @Setup
+    public void setUp() {
+        StringBuilder update = new StringBuilder();
+        for (int i = 0; i < tables; i++) {
+            String text = TransformationFixtures.sql(i);
+            update.append(text.substring(text.indexOf("CREATE"), text.indexOf("--</update>")));
+        }
+        sql = TransformationFixtures.sql(0).replaceFirst("(?s)CREATE.*(?=--</update>)", update.toString());
+        xml = (Elem) XML.loadString(sql.replace("--<", "<"));
+        hashAlgorithm = HashAlgorithm$.MODULE$.apply(algorithm);
+    }
+
+    @Benchmark
+    public Transformation parseSQL() {
+        return LocalTransformation$.MODULE$.parseSQL(sql, "1.0/create_table.sql", hashAlgorithm);
+    }
+
+    @Benchmark
+    public Transformation parseXML() {
+        return LocalTransformation$.MODULE$.parseXML(xml, "1.0/create_table.xml", hashAlgorithm);
+    }
+
+    @Benchmark
+    public String hash() {
+        return hashAlgorithm.hash(sql);
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.benchmark;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.mercuree.transformations.core.JdbcTransformationsMaster;
+import org.mercuree.transformations.core.Transformations;
+import org.mercuree.transformations.core.TransformationsMaster;
+import org.mercuree.transformations.plugin.spring.TransformationsConfigurationProperties;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service start benchmark comparing the Slick and the plain JDBC storage implementations
+ * against in-memory H2 database. The first run on an empty database is measured once per fork,
+ * so that class loading is included; a no-op run on an up to date database is measured warm.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class StoredTransformationsBenchmark {
+
+    private static JdbcDataSource dataSource(String name) {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name);
+        return dataSource;
+    }
+
+    private static Transformations master(String backend, JdbcDataSource dataSource, File root) {
+        TransformationsConfigurationProperties properties = new TransformationsConfigurationProperties();
+        properties.setTransformationsPath(root.getPath());
+        if ("jdbc".equals(backend)) {
+            return new JdbcTransformationsMaster(dataSource, properties);
+        }
+        return new TransformationsMaster(dataSource, properties);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Fresh {
+
+        @Param({"slick", "jdbc"})
+        public String backend;
+
+        @Param({"10", "1000"})
+        public int count;
+
+        private File root;
+
+        private int databases;
+
+        private JdbcDataSource dataSource;
+
+        private Connection connection;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            root = TransformationFixtures.createTree(count);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            TransformationFixtures.delete(root);
+        }
+
+        @Setup(Level.Invocation)
+        public void createDatabase() throws SQLException {
+            dataSource = dataSource("fresh" + backend + count + "_" + databases++);
+            // In-memory database lives as long as there is a connection
+            connection = dataSource.getConnection();
+        }
+
+        @TearDown(Level.Invocation)
+        public void dropDatabase() throws SQLException {
+            connection.close();
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class Migrated {
+
+        @Param({"slick", "jdbc"})
+        public String backend;
+
+        @Param({"10", "1000"})
+        public int count;
+
+        private File root;
+
+        private JdbcDataSource dataSource;
+
+        private Connection connection;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, SQLException {
+            root = TransformationFixtures.createTree(count);
+            dataSource = dataSource("migrated" + backend + count);
+            connection = dataSource.getConnection();
+            master(backend, dataSource, root).run();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException, SQLException {
+            connection.close();
+            TransformationFixtures.delete(root);
+        }
+
+    }
+
+    @Benchmark
+    @Fork(10)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    public void coldFirstRun(Fresh fresh) {
+        master(fresh.backend, fresh.dataSource, fresh.root).run();
+    }
+
+    @Benchmark
+    public void noOpRun(Migrated migrated) {
+        master(migrated.backend, migrated.dataSource, migrated.root).run();
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates transformation trees and paths used by the benchmarks.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+public final class TransformationFixtures {
+
+    private static final String[] NAMES = {"create_table", "alter", "add_data", "common/clean", "index"};
+
+    private TransformationFixtures() {
+    }
+
+    /**
+     * Returns the relative path of the i-th transformation, like '1.2.3/alter_123.sql' or 'common/index_7.sql'.
+     */
+    public static String path(int i) {
+        String name = NAMES[i % NAMES.length] + "_" + i + (i % 7 == 0 ? ".xml" : ".sql");
+        if (i % 50 == 0) {
+            return "common/" + name;
+        }
+        return (i / 1000 + 1) + "." + (i / 100 % 10) + "." + (i / 10 % 10) + "/" + name;
+    }
+
+    /**
+     * Returns relative paths of the given number of transformations in a random but repeatable order.
+     */
+    public static List<String> paths(int count) {
+        List<String> paths = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            paths.add(path(i).replace('/', File.separatorChar));
+        }
+        Collections.shuffle(paths, new Random(count));
+        return paths;
+    }
+
+    /**
+     * Returns the sql transformation text creating the table of the given number.
+     */
+    public static String sql(int i) {
+        return "--<transformation>\n"
+                + "--<update>\n"
+                + "CREATE TABLE t_" + i + " (\n"
+                + "    id bigint NOT NULL AUTO_INCREMENT,\n"
+                + "    name varchar(255) NOT NULL,\n"
+                + "    PRIMARY KEY (id)\n"
+                + ");\n"
+                + "INSERT INTO t_" + i + " (name) VALUES ('first');\n"
+                + "INSERT INTO t_" + i + " (name) VALUES ('second');\n"
+                + "--</update>\n"
+                + "--<rollback>\n"
+                + "DROP TABLE t_" + i + ";\n"
+                + "--</rollback>\n"
+                + "--</transformation>\n";
+    }
+
+    /**
+     * Returns the xml transformation text equivalent to {@link #sql(int)}.
+     */
+    public static String xml(int i) {
+        return sql(i).replace("--<", "<");
+    }
+
+    /**
+     * Creates a temporary directory with the given number of transformation files.
+     */
+    public static File createTree(int count) throws IOException {
+        Path root = Files.createTempDirectory("transformations");
+        for (int i = 0; i < count; i++) {
+            String path = path(i);
+            Path file = root.resolve(path);
+            Files.createDirectories(file.getParent());
+            String text = path.endsWith(".xml") ? xml(i) : sql(i);
+            Files.write(file, text.getBytes(Charset.defaultCharset()));
+        }
+        return root.toFile();
+    }
+
+    /**
+     * Deletes the directory with all its content.
+     */
+    public static void delete(File root) throws IOException {
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+}
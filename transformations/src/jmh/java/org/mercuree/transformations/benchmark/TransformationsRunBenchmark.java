@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.benchmark;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.mercuree.transformations.core.TransformationsMaster;
+import org.mercuree.transformations.plugin.spring.TransformationsConfigurationProperties;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full {@link TransformationsMaster#run()} benchmark against in-memory H2 database.
+ * Measures both the first run on an empty database and a no-op run on an up to date one.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TransformationsRunBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int count;
+
+    private File root;
+
+    private int databases;
+
+    private JdbcDataSource migrated;
+
+    private Connection migratedConnection;
+
+    private JdbcDataSource fresh;
+
+    private Connection freshConnection;
+
+    private JdbcDataSource dataSource(String name) {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name);
+        return dataSource;
+    }
+
+    private TransformationsMaster master(JdbcDataSource dataSource) {
+        TransformationsConfigurationProperties properties = new TransformationsConfigurationProperties();
+        properties.setTransformationsPath(root.getPath());
+        return new TransformationsMaster(dataSource, properties);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        root = TransformationFixtures.createTree(count);
+        migrated = dataSource("migrated" + count);
+        // In-memory database lives as long as there is a connection
+        migratedConnection = migrated.getConnection();
+        master(migrated).run();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        migratedConnection.close();
+        TransformationFixtures.delete(root);
+    }
+
+    @Setup(Level.Invocation)
+    public void createDatabase() throws SQLException {
+        fresh = dataSource("fresh" + count + "_" + databases++);
+        freshConnection = fresh.getConnection();
+    }
+
+    @TearDown(Level.Invocation)
+    public void dropDatabase() throws SQLException {
+        freshConnection.close();
+    }
+
+    @Benchmark
+    public void firstRun() {
+        master(fresh).run();
+    }
+
+    @Benchmark
+    public void noOpRun() {
+        master(migrated).run();
+    }
+
+}
@@ -16,7 +16,13 @@
 
 package org.mercuree.transformations.plugin.spring;
 
+import org.mercuree.transformations.core.AsyncTransformationEventSink;
+import org.mercuree.transformations.core.HashAlgorithm;
+import org.mercuree.transformations.core.TransformationEventSink;
 import org.mercuree.transformations.core.TransformationsMaster;
+import org.mercuree.transformations.core.TransformationsMetrics;
+import org.mercuree.transformations.core.TransformationsSettings;
+import org.mercuree.transformations.core.TransformationsWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -25,11 +31,14 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
 import org.springframework.core.io.support.ResourcePatternResolver;
+import scala.Option;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
 import java.util.List;
 
@@ -46,6 +55,8 @@ public class TransformationsAutoConfiguration {
 
     private static final Logger logger = LoggerFactory.getLogger(TransformationsAutoConfiguration.class);
 
+    private static final long EVENTS_FLUSH_TIMEOUT = 10 * 1000L;
+
     @Autowired
     private ApplicationContext applicationContext;
 
@@ -55,15 +66,99 @@ public class TransformationsAutoConfiguration {
     @Autowired
     private DataSource dataSource;
 
+    @Autowired(required = false)
+    private TransformationEventSink eventSink;
+
+    private TransformationsExecution execution;
+
+    private TransformationsMetrics metrics;
+
+    private volatile TransformationsWatch watch;
+
+    private AsyncTransformationEventSink events;
+
     @PostConstruct
     public void init() {
         logger.info("Datasource: {}", properties.getDataSource());
 //        DataSource dataSource = applicationContext.getBean(properties.getDataSource(), DataSource.class);
         logger.info("DataSource found {}", dataSource);
-        TransformationsMaster master = new TransformationsMaster(dataSource);
-        logger.info("Starting database transformations");
-        master.run();
-        logger.info("Database transformations is finished");
+        // The sink given might block, so the events are delivered on a thread of its own
+        if (eventSink != null && !(eventSink instanceof AsyncTransformationEventSink)) {
+            events = new AsyncTransformationEventSink(eventSink, 1024);
+        }
+        final TransformationsMaster master = new TransformationsMaster(dataSource, settingsOf(properties),
+                events != null ? events : eventSink);
+        metrics = master.metrics();
+        execution = new TransformationsExecution(new Runnable() {
+            @Override
+            public void run() {
+                if (properties.isWatch()) {
+                    watch = master.watch();
+                } else {
+                    master.run();
+                }
+            }
+        }, applicationContext);
+        if (properties.isAsync()) {
+            logger.info("Starting database transformations in background");
+            execution.start();
+        } else {
+            logger.info("Starting database transformations");
+            execution.run();
+        }
+    }
+
+    /**
+     * Maps the configuration properties onto the settings of the transformations engine.
+     */
+    static TransformationsSettings settingsOf(TransformationsConfigurationProperties properties) {
+        String transformationsPath = properties.getTransformationsPath();
+        return new TransformationsSettings(
+                transformationsPath == null ? "transformations" : transformationsPath,
+                properties.getParallelism(),
+                Option.apply(properties.getManifestPath()),
+                properties.getStreamingThreshold(),
+                properties.getBatchSize(),
+                properties.getStatementDelimiter(),
+                HashAlgorithm.apply(properties.getHashAlgorithm()),
+                properties.isLockEnabled(),
+                properties.getLockLease(),
+                properties.getLockTimeout(),
+                properties.isFailFast(),
+                properties.getWatchDebounce(),
+                Option.apply(properties.getBaseline()),
+                properties.getTenantParallelism());
+    }
+
+    /**
+     * Stops watching the transformations if it has been started and stops delivering the events once
+     * the ones published so far are out.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (watch != null) {
+            watch.close();
+        }
+        if (events != null) {
+            events.flush(EVENTS_FLUSH_TIMEOUT);
+            events.close();
+        }
+    }
+
+    /**
+     * Exposes the transformations run state, so that beans could wait for the database to be up to date.
+     */
+    @Bean
+    public TransformationsExecution transformationsExecution() {
+        return execution;
+    }
+
+    /**
+     * Exposes the transformations timings and counters, so that they could be exported by a metrics endpoint.
+     */
+    @Bean
+    public TransformationsMetrics transformationsMetrics() {
+        return metrics;
     }
 
 }
@@ -43,6 +43,36 @@ public class TransformationsConfigurationProperties {
 
     private String transformationsPath;
 
+    private int parallelism = 1;
+
+    private String manifestPath;
+
+    private long streamingThreshold = 16 * 1024 * 1024;
+
+    private int batchSize = 100;
+
+    private String statementDelimiter = ";";
+
+    private String hashAlgorithm = "md5";
+
+    private boolean lockEnabled = true;
+
+    private long lockLease = 60 * 1000;
+
+    private long lockTimeout = 15 * 60 * 1000;
+
+    private boolean async = false;
+
+    private boolean failFast = false;
+
+    private boolean watch = false;
+
+    private long watchDebounce = 300;
+
+    private int tenantParallelism = 4;
+
+    private String baseline;
+
     public boolean isEnabled() {
         return enabled;
     }
@@ -74,4 +104,124 @@ public class TransformationsConfigurationProperties {
     public void setTransformationsPath(String transformationsPath) {
         this.transformationsPath = transformationsPath;
     }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public String getManifestPath() {
+        return manifestPath;
+    }
+
+    public void setManifestPath(String manifestPath) {
+        this.manifestPath = manifestPath;
+    }
+
+    public long getStreamingThreshold() {
+        return streamingThreshold;
+    }
+
+    public void setStreamingThreshold(long streamingThreshold) {
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public String getStatementDelimiter() {
+        return statementDelimiter;
+    }
+
+    public void setStatementDelimiter(String statementDelimiter) {
+        this.statementDelimiter = statementDelimiter;
+    }
+
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public void setHashAlgorithm(String hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    public boolean isLockEnabled() {
+        return lockEnabled;
+    }
+
+    public void setLockEnabled(boolean lockEnabled) {
+        this.lockEnabled = lockEnabled;
+    }
+
+    public long getLockLease() {
+        return lockLease;
+    }
+
+    public void setLockLease(long lockLease) {
+        this.lockLease = lockLease;
+    }
+
+    public long getLockTimeout() {
+        return lockTimeout;
+    }
+
+    public void setLockTimeout(long lockTimeout) {
+        this.lockTimeout = lockTimeout;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    public boolean isWatch() {
+        return watch;
+    }
+
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
+    public long getWatchDebounce() {
+        return watchDebounce;
+    }
+
+    public void setWatchDebounce(long watchDebounce) {
+        this.watchDebounce = watchDebounce;
+    }
+
+    public int getTenantParallelism() {
+        return tenantParallelism;
+    }
+
+    public void setTenantParallelism(int tenantParallelism) {
+        this.tenantParallelism = tenantParallelism;
+    }
+
+    public String getBaseline() {
+        return baseline;
+    }
+
+    public void setBaseline(String baseline) {
+        this.baseline = baseline;
+    }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.plugin.spring;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureTask;
+
+import java.util.concurrent.*;
+
+/**
+ * Tracks the database transformations run, which might be going on in background.
+ * Beans that need the database schema up to date may wait on {@link #getFuture()}
+ * or call {@link #awaitCompletion(long, TimeUnit)}.
+ * <p/>
+ *
+ * @author Alexander Valyugin
+ */
+public class TransformationsExecution {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransformationsExecution.class);
+
+    /**
+     * Transformations run state.
+     */
+    public enum State {
+        PENDING, RUNNING, DONE, FAILED
+    }
+
+    /**
+     * Published once the transformations run is over, either done or failed.
+     */
+    public static class FinishedEvent extends ApplicationEvent {
+
+        private static final long serialVersionUID = 1L;
+
+        public FinishedEvent(TransformationsExecution source) {
+            super(source);
+        }
+
+        public TransformationsExecution getExecution() {
+            return (TransformationsExecution) getSource();
+        }
+    }
+
+    private final ListenableFutureTask<Void> task;
+
+    private final ApplicationEventPublisher publisher;
+
+    private volatile State state = State.PENDING;
+
+    private volatile Throwable failure;
+
+    public TransformationsExecution(final Runnable transformations, ApplicationEventPublisher publisher) {
+        this.publisher = publisher;
+        this.task = new ListenableFutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                execute(transformations);
+                return null;
+            }
+        });
+    }
+
+    private void execute(Runnable transformations) {
+        state = State.RUNNING;
+        long started = System.currentTimeMillis();
+        try {
+            transformations.run();
+            state = State.DONE;
+            logger.info("Database transformations finished in {} ms", System.currentTimeMillis() - started);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            state = State.FAILED;
+            logger.error("Database transformations failed", e);
+            throw e;
+        } finally {
+            publishFinished();
+        }
+    }
+
+    private void publishFinished() {
+        if (publisher != null) {
+            try {
+                publisher.publishEvent(new FinishedEvent(this));
+            } catch (RuntimeException e) {
+                logger.warn("Unable to publish transformations finished event due to:\n {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs the transformations in the calling thread.
+     *
+     * @throws RuntimeException if the transformations run fails.
+     */
+    public void run() {
+        task.run();
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Runs the transformations in a dedicated background thread, which is gone once they are finished.
+     */
+    public void start() {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "transformations");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.execute(task);
+        executor.shutdown();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if the database is up to date and ready to use.
+     */
+    public boolean isReady() {
+        return state == State.DONE;
+    }
+
+    /**
+     * @return the failure if the transformations run has failed, null otherwise.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return future completed once the transformations run is over.
+     */
+    public ListenableFuture<Void> getFuture() {
+        return task;
+    }
+
+    /**
+     * Blocks until the transformations run is over.
+     *
+     * @param timeout maximum time to wait.
+     * @param unit timeout unit.
+     * @throws RuntimeException if the transformations run fails.
+     * @throws TimeoutException if the transformations run is not over in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitCompletion(long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+        try {
+            task.get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    private static RuntimeException propagate(Throwable e) {
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+    }
+
+}
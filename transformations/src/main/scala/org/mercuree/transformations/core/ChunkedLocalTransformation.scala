@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+/**
+ * A data transformation that processes the table in ranges of its numeric key, each range in
+ * its own transaction, so that huge tables are never locked as a whole. The update script is run
+ * for every range with `${from}` and `${to}` replaced by the range bounds; the lower one is
+ * inclusive and the upper one is exclusive, e.g.
+ * {{{
+ * --<transformation chunkTable="persons" chunkKey="id" chunkSize="10000" chunkThrottle="100">
+ *   --<update>
+ *     UPDATE persons SET name = upper(name) WHERE id >= ${from} AND id < ${to};
+ *   --</update>
+ * --</transformation>
+ * }}}
+ * Progress is checkpointed after every range, so an interrupted transformation resumes where it
+ * stopped. The key range is found out once when started, rows added later are not processed.
+ *
+ * @param table to process.
+ * @param key numeric key column of the table.
+ * @param chunkSize number of key values processed at once.
+ * @param throttle milliseconds to pause between the ranges.
+ * @author Alexander Valyugin
+ */
+class ChunkedLocalTransformation(id: String, scripts: => (String, String),
+                                 updateScriptHash: String, rollbackScriptHash: String,
+                                 runOnChange: Boolean, runAlways: Boolean, dependsOn: List[String],
+                                 val table: String, val key: String, val chunkSize: Long, val throttle: Long)
+  extends LocalTransformation(id, scripts, updateScriptHash, rollbackScriptHash,
+    runOnChange, runAlways, true, dependsOn) {
+
+  if (chunkSize <= 0) {
+    throw TransformationException(s"Transformation [$id] chunk size must be positive")
+  }
+
+  /**
+   * Makes the update script for the given key range.
+   *
+   * @param from inclusive lower bound.
+   * @param to exclusive upper bound.
+   * @return update script.
+   */
+  def chunkScript(from: Long, to: Long): String =
+    updateScript.replace(ChunkedLocalTransformation.From, from.toString).replace(ChunkedLocalTransformation.To, to.toString)
+
+}
+
+object ChunkedLocalTransformation {
+
+  final val From = "${from}"
+  final val To = "${to}"
+
+}
+
+/**
+ * Position a transformation has been processed up to: the key value the next range of a chunked
+ * transformation starts from or the number of statements of a non-transactional transformation already executed.
+ *
+ * @param id transformation id.
+ * @param updateScriptHash hash sum of the update script being applied, a checkpoint of another one is stale.
+ * @param position the progress.
+ * @param failure the reason processing has been stopped, if known.
+ */
+case class Checkpoint(id: String, updateScriptHash: String, position: Long, failure: Option[String] = None)
+
+/**
+ * Position a failed run has been processed up to, so the next run could skip what has been done.
+ *
+ * @param fingerprint of the transformations processed, the checkpoint is stale once any of them is changed.
+ * @param position number of transformations of the run already processed.
+ * @param failure the reason the run has failed, if known.
+ */
+case class RunCheckpoint(fingerprint: String, position: Long, failure: Option[String] = None)
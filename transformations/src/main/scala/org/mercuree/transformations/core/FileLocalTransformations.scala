@@ -16,9 +16,14 @@
 
 package org.mercuree.transformations.core
 
-import scala.annotation.tailrec
-import java.io.File
-import scala.util.{Failure, Try}
+import java.io.{IOException, File}
+import java.net.URI
+import java.nio.file._
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.regex.Pattern
+import scala.collection.parallel.ForkJoinTaskSupport
+import scala.concurrent.forkjoin.ForkJoinPool
+import scala.util.{Success, Failure, Try}
 import org.slf4j.LoggerFactory
 
 /**
@@ -26,57 +31,114 @@ import org.slf4j.LoggerFactory
  * lexicographic ordering and version number based ordering, where the later has a priority
  * over the former.
  *
+ * Every comparison parses both paths, so sorting large collections is better done with
+ * precomputed keys, i.e. `sortBy(path => FilePathKey(path))`, which yields the same order.
+ *
  * @author Alexander Valyugin
  */
 object FilePathOrdering extends Ordering[String] {
 
-  private final val Version = """(\d+)(\.\d+)*""".r
+  override def compare(left: String, right: String): Int =
+    FilePathKey.parse(left, intern = false) compare FilePathKey.parse(right, intern = false)
 
-  private def comparePathElement(left: String, right: String): Int = {
-    val leftVersionOption = Version findFirstIn left
-    val rightVersionOption = Version findFirstIn right
-    (leftVersionOption, rightVersionOption) match {
-      case (Some(leftVersion), Some(rightVersion)) => {
-        val leftParts = leftVersion.split("\\.").toList.map(_.toInt)
-        val rightParts = rightVersion.split("\\.").toList.map(_.toInt)
-        compareVersionElements(leftParts, rightParts)
-      }
-      case (Some(leftVersion), None) => -1
-      case (None, Some(rightVersion)) => 1
-      case (None, None) => left.compareTo(right)
-    }
+}
+
+/**
+ * Precomputed sort key of a path, see [[FilePathOrdering]]. Path elements are parsed once when
+ * the key is created, so comparing keys involves neither regular expressions nor allocations.
+ *
+ * @param path the key is created for.
+ * @param names path elements; interned by [[FilePathKey.apply]], so equal names are mostly the same instance.
+ * @param versions version numbers found in the path elements, null for elements having none.
+ * @author Alexander Valyugin
+ */
+final class FilePathKey private(val path: String, private val names: Array[String],
+                                 private val versions: Array[Array[Int]])
+  extends Ordered[FilePathKey] {
+
+  private def compareVersions(left: Array[Int], right: Array[Int]): Int = {
+    // Versions having a common prefix are equal regardless of their lengths
+    val length = left.length min right.length
+    var i = 0
+    while (i < length && left(i) == right(i)) i += 1
+    if (i == length) 0 else java.lang.Integer.compare(left(i), right(i))
   }
 
-  @tailrec
-  private def compareVersionElements(left: List[Int], right: List[Int]): Int = {
-    val leftHead :: leftTail = left
-    val rightHead :: rightTail = right
-    val cmp = leftHead.compareTo(rightHead)
-    if (cmp == 0 && leftTail.nonEmpty && rightTail.nonEmpty)
-      compareVersionElements(leftTail, rightTail)
-    else
-      cmp
+  private def compareElements(that: FilePathKey, i: Int): Int = {
+    val left = versions(i)
+    val right = that.versions(i)
+    if (left != null && right != null) compareVersions(left, right)
+    else if (left != null) -1
+    else if (right != null) 1
+    else if (names(i) eq that.names(i)) 0
+    else names(i) compareTo that.names(i)
   }
 
-  @tailrec
-  private def comparePathElements(left: List[String], right: List[String]): Int = (left, right) match {
-    case (leftHead :: List(), rightHead :: List()) => comparePathElement(leftHead, rightHead)
-    case (leftHead :: List(), rightHead :: rightTail) => -1
-    case (leftHead :: leftTail, rightHead :: List()) => 1
-    case (leftHead :: leftTail, rightHead :: rightTail) => comparePathElement(leftHead, rightHead) match {
-      case 0 => comparePathElements(leftTail, rightTail)
-      case x => x
+  override def compare(that: FilePathKey): Int = {
+    // Files go before the subdirectories on the same level
+    val last = names.length - 1
+    val thatLast = that.names.length - 1
+    var i = 0
+    var cmp = 0
+    while (cmp == 0 && i < last && i < thatLast) {
+      cmp = compareElements(that, i)
+      i += 1
     }
+    if (cmp != 0) cmp
+    else if (i == last && i == thatLast) compareElements(that, i)
+    else if (i == last) -1
+    else 1
   }
 
-  override def compare(left: String, right: String): Int = {
-    val leftParts = left.split(File.separator).toList
-    val rightParts = right.split(File.separator).toList
-    comparePathElements(leftParts, rightParts)
+  override def equals(other: Any): Boolean = other match {
+    case that: FilePathKey => path == that.path
+    case _ => false
+  }
+
+  override def hashCode: Int = path.hashCode
+
+  override def toString: String = path
+
+}
+
+object FilePathKey {
+
+  private final val Version = """(\d+)(\.\d+)*""".r
+
+  private final val Separator = Pattern.quote(File.separator)
+
+  /**
+   * Creates the sort key of the given path.
+   *
+   * @param path relative file path.
+   * @return sort key.
+   */
+  def apply(path: String): FilePathKey = parse(path, intern = true)
+
+  // Interning pays off only for long living keys
+  private[core] def parse(path: String, intern: Boolean): FilePathKey = {
+    val elements = path.split(Separator) match {
+      case Array() => Array(path)
+      case array => array
+    }
+    val names = if (intern) elements map (_.intern) else elements
+    val versions = elements map (element => (Version findFirstIn element)
+      .map(_.split("\\.").map(_.toInt)).orNull)
+    new FilePathKey(path, names, versions)
   }
 
 }
 
+/**
+ * Transformation file found on the local transformations path.
+ *
+ * @param id relative file path.
+ * @param path the file itself; either in the file system or inside a jar.
+ * @param size file size in bytes.
+ * @param lastModified file modification time in milliseconds.
+ */
+case class TransformationFile(id: String, path: Path, size: Long, lastModified: Long)
+
 /**
  * Provides local transformations found in the files on the given path.
  * Transformation id then would be a unique relative file path.
@@ -90,39 +152,145 @@ trait FileLocalTransformations extends LocalTransformations {
   protected val FilePattern = """.*\.(sql$|xml$)""".r
 
   /**
-   * Provide with local transformations path.
-   *
-   * @todo Make to work with jar files.
+   * Provide with local transformations path. The classpath is looked up first, the transformations
+   * packaged into a jar are read right from the jar.
    */
   val transformationsPath: String
 
-  private def listFiles(rootDir: File): List[File] = {
-    @tailrec
-    def listFiles(files: List[File], result: List[File]): List[File] = files match {
-      case Nil => result
-      case head :: tail if head.isDirectory =>
-        val t = Option(head.listFiles).map(_.toList ::: tail).getOrElse(tail)
-        listFiles(t, result)
-      case head :: tail if head.isFile =>
-        val r = if (FilePattern.findFirstIn(head.getPath).isDefined) head :: result else result
-        listFiles(tail, r)
+  /**
+   * Optional manifest file path. When specified parsed attributes and hash sums are cached there
+   * and files which haven't been changed since are not read at all on the next run.
+   */
+  val manifestPath: Option[String] = None
+
+  /**
+   * Files larger than this number of bytes are never loaded into memory as a whole
+   * but streamed on every run, see [[StreamingLocalTransformation]].
+   */
+  val streamingThreshold: Long = 16 * 1024 * 1024
+
+  /**
+   * Algorithm the scripts hash sums are computed with. Once changed, hash sums of the transformations
+   * already applied are migrated on the next run without running them again.
+   */
+  val hashAlgorithm: HashAlgorithm = HashAlgorithm.Default
+
+  /**
+   * Number of threads used to parse and hash the transformation files.
+   */
+  val loadingParallelism: Int = Runtime.getRuntime.availableProcessors
+
+  private def listFiles(rootDir: Path): List[TransformationFile] = {
+    val files = List.newBuilder[TransformationFile]
+    Files.walkFileTree(rootDir, new SimpleFileVisitor[Path] {
+      override def visitFile(path: Path, attrs: BasicFileAttributes): FileVisitResult = {
+        if (attrs.isRegularFile && FilePattern.findFirstIn(path.toString).isDefined) {
+          val id = rootDir.relativize(path).toString
+          files += TransformationFile(id, path, attrs.size, attrs.lastModifiedTime.toMillis)
+        }
+        FileVisitResult.CONTINUE
+      }
+
+      override def visitFileFailed(path: Path, e: IOException): FileVisitResult = {
+        logger.warn(s"Unable to visit [$path] due to:\n ${e.getMessage}")
+        FileVisitResult.CONTINUE
+      }
+    })
+    files.result()
+  }
+
+  private def load(source: TransformationFile, cached: Map[String, ManifestEntry]): (ManifestEntry, Transformation) =
+    cached.get(source.id) filter (e => e.matches(source) && e.hashAlgorithm.forall(_ == hashAlgorithm)) match {
+      case Some(entry) => (entry, entry.toTransformation(source.path))
+      case None =>
+        val entry = metrics.time(TransformationsMetrics.Load) {
+          val transformation = if (source.size > streamingThreshold)
+            StreamingLocalTransformation.fromPath(source.path, source.id, hashAlgorithm)
+          else
+            LocalTransformation.fromPath(source.path, source.id, hashAlgorithm)
+          ManifestEntry(source, transformation)
+        }
+        // Parsed scripts are dropped, the handle reads them from the file again when needed
+        (entry, entry.toTransformation(source.path))
+    }
+
+  /**
+   * @return directory the transformations are found in; either on the classpath, possibly inside a jar,
+   *         or in the file system.
+   */
+  def transformationsRoot: Path = Option(getClass.getResource(transformationsPath))
+    .map(url => FileLocalTransformations.toPath(url.toURI)).getOrElse(Paths.get(transformationsPath))
+
+  /**
+   * Loads the single transformation file bypassing the manifest.
+   *
+   * @param path of the file.
+   * @return transformation or none if the file is not a transformation.
+   */
+  def loadTransformation(path: Path): Option[Transformation] = {
+    val rootDir = transformationsRoot
+    if (!Files.isRegularFile(path) || FilePattern.findFirstIn(path.toString).isEmpty) None else {
+      val source = TransformationFile(rootDir.relativize(path).toString, path,
+        Files.size(path), Files.getLastModifiedTime(path).toMillis)
+      Some(load(source, Map.empty)._2)
     }
-    listFiles(List(rootDir), Nil)
   }
 
   def localTransformations: List[Transformation] = {
-    val rootPath = Option(getClass.getResource(transformationsPath))
-      .map(_.getFile).getOrElse(transformationsPath)
-    val files = listFiles(new File(rootPath))
-    implicit val sortedBy = FilePathOrdering
-    files map { file =>
-      val id = file.getPath.substring(rootPath.length + 1)
-      Try(LocalTransformation.fromFile(file, id)) recoverWith {
-        case e: Exception =>
-          logger.error(s"Unabled to load [${id}] due to:\n ${e.getMessage}")
-          Failure(e)
+    val rootDir = transformationsRoot
+    if (!Files.isDirectory(rootDir)) {
+      logger.warn(s"Transformations path [$rootDir] is not found")
+      return Nil
+    }
+    val files = listFiles(rootDir)
+    val manifest = manifestPath map (path => new TransformationsManifest(new File(path)))
+    val cached = manifest.map(_.load()).getOrElse(Map.empty)
+
+    // Files are parsed and hashed concurrently, failures are collected to be reported at once
+    val parallelFiles = files.par
+    val pool = new ForkJoinPool(loadingParallelism max 1)
+    parallelFiles.tasksupport = new ForkJoinTaskSupport(pool)
+    val results = try {
+      parallelFiles.map(source => source -> Try(load(source, cached))).toList
+    } finally {
+      pool.shutdown()
+    }
+    val failures = results collect { case (source, Failure(e)) => s"[${source.id}] ${e.getMessage}" }
+    if (failures.nonEmpty) {
+      logger.error(s"Unable to load ${failures.size} transformation(s) due to:\n ${failures.sorted.mkString("\n ")}")
+    }
+    val loaded = results collect { case (source, Success(result)) => source.id -> result }
+
+    manifest foreach { m =>
+      val entries = loaded.map { case (id, (entry, _)) => id -> entry }.toMap
+      if (entries != cached) m.save(entries)
+    }
+    loaded.map(_._2._2) sortBy (t => FilePathKey(t.id))
+  }
+
+}
+
+object FileLocalTransformations {
+
+  /**
+   * Converts the classpath resource location to a path. Jar entries are accessed through the zip
+   * file system, which is opened once and kept open, so the entries are streamed without being extracted.
+   *
+   * @param uri resource location.
+   * @return the path.
+   */
+  def toPath(uri: URI): Path = uri.getScheme match {
+    case "jar" =>
+      val spec = uri.toString
+      val separator = spec.indexOf("!/")
+      val jar = URI.create(spec.substring(0, separator))
+      val fileSystem = synchronized {
+        try FileSystems.getFileSystem(jar) catch {
+          case e: FileSystemNotFoundException => FileSystems.newFileSystem(jar, java.util.Collections.emptyMap[String, Any])
+        }
       }
-    } filter (_.isSuccess) map (_.get) sortBy (_.id)
+      fileSystem.getPath(spec.substring(separator + 1))
+    case _ => Paths.get(uri)
   }
 
 }
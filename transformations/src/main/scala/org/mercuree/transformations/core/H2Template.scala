@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
+import scala.slick.jdbc.JdbcBackend.Database
+import scala.slick.jdbc.{StaticQuery => Q}
+import org.slf4j.LoggerFactory
+import Database.dynamicSession
+
+/**
+ * In-memory H2 database template. The template is initialized once, e.g. by running the transformations,
+ * and dumped to a script. Every clone is created by running that script, which is way faster than
+ * transforming a fresh database again. Meant for test suites needing a migrated database per test,
+ * rather than the ones testing the transformations themselves which must start from an empty database.
+ *
+ * @param name template database name.
+ * @param init initializes the template database.
+ * @author Alexander Valyugin
+ */
+class H2Template(name: String)(init: Database => Unit) {
+
+  private final val logger = LoggerFactory.getLogger(getClass)
+
+  private val clones = new AtomicInteger
+
+  // The database lives as long as the outer session is open
+  private def open(database: String) = Database.forURL(s"jdbc:h2:mem:$database", driver = "org.h2.Driver")
+
+  private def quoted(file: File) = "'" + file.getPath.replace("'", "''") + "'"
+
+  private lazy val script: File = {
+    val started = System.currentTimeMillis
+    val template = open(name)
+    val file = File.createTempFile(name, ".sql")
+    file.deleteOnExit()
+    template.withDynSession {
+      // Opens the connection keeping the database alive while initialized
+      Q.queryNA[Int]("select 1").first
+      init(template)
+      Q.updateNA(s"script to ${quoted(file)}").execute
+    }
+    logger.debug(s"Template [$name] created in ${System.currentTimeMillis - started} ms")
+    file
+  }
+
+  /**
+   * Creates a new database cloned from the template, which is dropped once the function returns.
+   * The template itself is created on the first call.
+   *
+   * @param f function using the clone.
+   * @tparam A result type.
+   * @return the function result.
+   */
+  def withClone[A](f: Database => A): A = {
+    val clone = open(s"$name-${clones.incrementAndGet}")
+    clone.withDynSession {
+      Q.updateNA(s"runscript from ${quoted(script)}").execute
+      f(clone)
+    }
+  }
+
+}
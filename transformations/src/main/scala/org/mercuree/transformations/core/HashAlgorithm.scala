@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.nio.charset.{Charset, CodingErrorAction}
+import java.nio.{ByteBuffer, CharBuffer}
+import java.security.MessageDigest
+
+/**
+ * Hash function the transformation scripts are tracked with. Hash sums are computed over UTF-8
+ * encoded text and carry the algorithm id as a prefix, e.g. `sha256:9f86d0...`, so the algorithm
+ * of a stored hash sum is always known. MD5 hash sums are kept bare for backward compatibility.
+ *
+ * Sinks are cached per thread, thus hashing allocates nearly nothing besides the result.
+ *
+ * @param id algorithm id.
+ * @author Alexander Valyugin
+ */
+abstract class HashAlgorithm(val id: String) {
+
+  private val sinks = new ThreadLocal[HashSink] {
+    override def initialValue = newSink()
+  }
+
+  protected def newEngine(): HashEngine
+
+  /**
+   * Formats the hash sum as it is stored.
+   *
+   * @param digest raw hash sum.
+   * @return formatted hash sum.
+   */
+  def format(digest: Array[Byte]): String = id + ":" + HashAlgorithm.hex(digest)
+
+  /**
+   * Creates a sink computing the hash sum of the text fed into it chunk by chunk.
+   *
+   * @return hash sink.
+   */
+  def newSink(): HashSink = new HashSink(this, newEngine())
+
+  /**
+   * Computes the hash sum of the text.
+   *
+   * @param text to hash.
+   * @return formatted hash sum.
+   */
+  def hash(text: String): String = {
+    val sink = sinks.get
+    sink.append(text)
+    sink.result
+  }
+
+  /**
+   * Checks whether the given hash sum computed with this algorithm belongs to the text.
+   *
+   * @param text to check.
+   * @param hash formatted hash sum.
+   * @return true if the text has such a hash sum.
+   */
+  def matches(text: String, hash: String): Boolean = this.hash(text) == hash
+
+  override def toString: String = id
+
+}
+
+object HashAlgorithm {
+
+  object MD5 extends HashAlgorithm("md5") {
+    override protected def newEngine() = new DigestEngine("MD5")
+
+    override def format(digest: Array[Byte]) = hex(digest)
+
+    // Hash sums used to be computed over the text encoded with the platform charset
+    override def matches(text: String, hash: String) =
+      super.matches(text, hash) || hex(MessageDigest.getInstance("MD5").digest(text.getBytes)) == hash
+  }
+
+  object SHA256 extends HashAlgorithm("sha256") {
+    override protected def newEngine() = new DigestEngine("SHA-256")
+  }
+
+  /**
+   * Non-cryptographic 128-bit MurmurHash3, much faster than the others on large scripts.
+   */
+  object Murmur3 extends HashAlgorithm("murmur3") {
+    override protected def newEngine() = new Murmur3Engine
+  }
+
+  val Default: HashAlgorithm = MD5
+
+  val supported: List[HashAlgorithm] = List(MD5, SHA256, Murmur3)
+
+  private val HexDigits = "0123456789abcdef".toCharArray
+
+  /**
+   * Finds the algorithm by its id.
+   *
+   * @param id algorithm id, case insensitive.
+   * @return hash algorithm.
+   */
+  def apply(id: String): HashAlgorithm = supported find (_.id equalsIgnoreCase id.trim) getOrElse {
+    throw TransformationException(s"Unknown hash algorithm [$id], supported are ${supported.mkString(", ")}")
+  }
+
+  /**
+   * Finds out the algorithm the given hash sum has been computed with.
+   *
+   * @param hash formatted hash sum.
+   * @return hash algorithm.
+   */
+  def of(hash: String): HashAlgorithm = hash.indexOf(':') match {
+    case -1 => MD5
+    case i => apply(hash.substring(0, i))
+  }
+
+  /**
+   * Checks whether the given hash sum belongs to the text regardless of the algorithm it has been computed with.
+   *
+   * @param text to check.
+   * @param hash formatted hash sum.
+   * @return true if the text has such a hash sum.
+   */
+  def matches(text: String, hash: String): Boolean = of(hash).matches(text, hash)
+
+  /**
+   * Encodes the bytes as a lower case hex string.
+   *
+   * @param bytes to encode.
+   * @return hex string.
+   */
+  def hex(bytes: Array[Byte]): String = {
+    val chars = new Array[Char](bytes.length * 2)
+    var i = 0
+    while (i < bytes.length) {
+      chars(i * 2) = HexDigits((bytes(i) >> 4) & 0xf)
+      chars(i * 2 + 1) = HexDigits(bytes(i) & 0xf)
+      i += 1
+    }
+    new String(chars)
+  }
+
+}
+
+/**
+ * Hash function state over a byte stream.
+ */
+trait HashEngine {
+
+  def update(bytes: Array[Byte], offset: Int, length: Int): Unit
+
+  /**
+   * Completes the computation and resets the engine.
+   *
+   * @return raw hash sum.
+   */
+  def digest(): Array[Byte]
+
+  def reset(): Unit
+
+}
+
+/**
+ * Engine backed by the JCA message digest.
+ *
+ * @param algorithm JCA algorithm name.
+ */
+class DigestEngine(algorithm: String) extends HashEngine {
+
+  private val messageDigest = MessageDigest.getInstance(algorithm)
+
+  override def update(bytes: Array[Byte], offset: Int, length: Int): Unit = messageDigest.update(bytes, offset, length)
+
+  override def digest(): Array[Byte] = messageDigest.digest
+
+  override def reset(): Unit = messageDigest.reset()
+
+}
+
+/**
+ * Incremental MurmurHash3 x64 128-bit with zero seed. The result is the two 64-bit halves
+ * in little endian order, which is the same Guava and the reference implementation produce.
+ */
+class Murmur3Engine extends HashEngine {
+
+  private final val C1 = 0x87c37b91114253d5L
+  private final val C2 = 0x4cf5ad432745937fL
+
+  private var h1 = 0L
+
+  private var h2 = 0L
+
+  private var length = 0L
+
+  private val tail = new Array[Byte](16)
+
+  private var tailLength = 0
+
+  private def long(bytes: Array[Byte], offset: Int): Long = {
+    var result = 0L
+    var i = 7
+    while (i >= 0) {
+      result = (result << 8) | (bytes(offset + i) & 0xff)
+      i -= 1
+    }
+    result
+  }
+
+  private def mixK1(k: Long): Long = java.lang.Long.rotateLeft(k * C1, 31) * C2
+
+  private def mixK2(k: Long): Long = java.lang.Long.rotateLeft(k * C2, 33) * C1
+
+  private def block(k1: Long, k2: Long): Unit = {
+    h1 ^= mixK1(k1)
+    h1 = java.lang.Long.rotateLeft(h1, 27) + h2
+    h1 = h1 * 5 + 0x52dce729
+    h2 ^= mixK2(k2)
+    h2 = java.lang.Long.rotateLeft(h2, 31) + h1
+    h2 = h2 * 5 + 0x38495ab5
+  }
+
+  private def fmix(value: Long): Long = {
+    var k = value
+    k ^= k >>> 33
+    k *= 0xff51afd7ed558ccdL
+    k ^= k >>> 33
+    k *= 0xc4ceb9fe1a85ec53L
+    k ^ (k >>> 33)
+  }
+
+  override def update(bytes: Array[Byte], offset: Int, count: Int): Unit = {
+    val end = offset + count
+    var i = offset
+    length += count
+    if (tailLength > 0) {
+      while (tailLength < 16 && i < end) {
+        tail(tailLength) = bytes(i)
+        tailLength += 1
+        i += 1
+      }
+      if (tailLength == 16) {
+        block(long(tail, 0), long(tail, 8))
+        tailLength = 0
+      }
+    }
+    while (end - i >= 16) {
+      block(long(bytes, i), long(bytes, i + 8))
+      i += 16
+    }
+    while (i < end) {
+      tail(tailLength) = bytes(i)
+      tailLength += 1
+      i += 1
+    }
+  }
+
+  override def digest(): Array[Byte] = {
+    var k1 = 0L
+    var k2 = 0L
+    var i = tailLength - 1
+    while (i >= 8) {
+      k2 ^= (tail(i) & 0xffL) << ((i - 8) * 8)
+      i -= 1
+    }
+    while (i >= 0) {
+      k1 ^= (tail(i) & 0xffL) << (i * 8)
+      i -= 1
+    }
+    if (tailLength > 8) h2 ^= mixK2(k2)
+    if (tailLength > 0) h1 ^= mixK1(k1)
+    h1 ^= length
+    h2 ^= length
+    h1 += h2
+    h2 += h1
+    h1 = fmix(h1)
+    h2 = fmix(h2)
+    h1 += h2
+    h2 += h1
+    val result = ByteBuffer.allocate(16).order(java.nio.ByteOrder.LITTLE_ENDIAN).putLong(h1).putLong(h2).array
+    reset()
+    result
+  }
+
+  override def reset(): Unit = {
+    h1 = 0L
+    h2 = 0L
+    length = 0L
+    tailLength = 0
+  }
+
+}
+
+/**
+ * Computes the hash sum of the text fed chunk by chunk. The text is encoded to UTF-8 through
+ * a fixed size buffer, so it is never copied as a whole. Surrogate pairs split between the
+ * chunks are handled. The sink is reusable: it is reset once the result is taken.
+ *
+ * @param algorithm to format the hash sum with.
+ * @param engine to compute the hash sum with.
+ */
+class HashSink(algorithm: HashAlgorithm, engine: HashEngine) extends TextSink {
+
+  private val encoder = Charset.forName("UTF-8").newEncoder
+    .onMalformedInput(CodingErrorAction.REPLACE)
+    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+
+  private val bytes = ByteBuffer.allocate(8192)
+
+  private val carry = CharBuffer.allocate(2)
+
+  // High surrogate waiting for its pair from the next chunk
+  private var pending: Char = 0
+
+  private def drain(): Unit = {
+    engine.update(bytes.array, 0, bytes.position)
+    bytes.clear()
+  }
+
+  private def encode(in: CharBuffer, endOfInput: Boolean): Unit = {
+    while (encoder.encode(in, bytes, endOfInput).isOverflow) drain()
+    if (in.hasRemaining) pending = in.get()
+  }
+
+  private def encodeChunk(in: CharBuffer): Unit = {
+    if (pending != 0 && in.hasRemaining) {
+      carry.clear()
+      carry.put(pending).put(in.get()).flip()
+      pending = 0
+      encode(carry, endOfInput = false)
+    }
+    encode(in, endOfInput = false)
+  }
+
+  override def append(chars: Array[Char], start: Int, length: Int): Unit =
+    encodeChunk(CharBuffer.wrap(chars, start, length))
+
+  /**
+   * Appends the whole text at once.
+   *
+   * @param text to append.
+   */
+  def append(text: CharSequence): Unit = encodeChunk(CharBuffer.wrap(text))
+
+  /**
+   * Completes the computation and resets the sink.
+   *
+   * @return formatted hash sum of the text received.
+   */
+  def result: String = try {
+    carry.clear()
+    if (pending != 0) carry.put(pending)
+    carry.flip()
+    pending = 0
+    encode(carry, endOfInput = true)
+    while (encoder.flush(bytes).isOverflow) drain()
+    drain()
+    algorithm.format(engine.digest())
+  } finally {
+    encoder.reset()
+    bytes.clear()
+    pending = 0
+    engine.reset()
+  }
+
+}
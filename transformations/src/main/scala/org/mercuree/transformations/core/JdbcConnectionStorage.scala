@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mercuree.transformations.core
+
+import java.lang.management.ManagementFactory
+import java.sql.{Connection, PreparedStatement, SQLException}
+import java.util.UUID
+import java.util.concurrent.{Executors, ThreadFactory, TimeUnit}
+import scala.util.{DynamicVariable, Random}
+import org.slf4j.LoggerFactory
+
+/**
+ * Part of the storage shared by the implementations running over a JDBC connection: applying the scripts
+ * and the lock lease protocol. The lock is a single row table coordinating the processes running
+ * transformations, an empty owner means the lock is free. The version is incremented every time
+ * the lock is released.
+ *
+ * @author Alexander Valyugin
+ */
+trait JdbcConnectionStorage extends StoredTransformations {
+
+  private final val logger = LoggerFactory.getLogger(getClass)
+
+  val transformationsTableName = "transformations"
+
+  /**
+   * Maximum number of consecutive data manipulation statements sent to the database at once.
+   */
+  val batchSize: Int = 100
+
+  /**
+   * Delimiter the scripts are split into statements with.
+   */
+  val statementDelimiter: String = ";"
+
+  /**
+   * Whether only one process at a time is allowed to run transformations over the database.
+   */
+  val lockEnabled: Boolean = true
+
+  /**
+   * Milliseconds the lock is held for unless renewed. The lock holder renews it in the background,
+   * so the lease only matters when the holder dies. Must exceed the clock difference between the nodes.
+   */
+  val lockLease: Long = 60 * 1000
+
+  /**
+   * Maximum milliseconds to wait for the lock.
+   */
+  val lockTimeout: Long = 15 * 60 * 1000
+
+  /**
+   * @return connection of the current session the scripts are applied over.
+   */
+  protected def currentConnection: Connection
+
+  /**
+   * Runs the function over a connection, opened for the call unless the implementation shares one
+   * among the nested calls. Used by the lock, which is also renewed from a thread of its own.
+   *
+   * @param f function to run.
+   * @tparam A result type.
+   * @return the function result.
+   */
+  protected def withConnection[A](f: Connection => A): A
+
+  /**
+   * Scripts of the transformation to store keyed by their hash sums. The update script of a streamed
+   * transformation is left out, since only its placeholder is known and the script table must map every
+   * hash sum to the text it has been computed over.
+   *
+   * @param transformation to store.
+   * @return hash sums and scripts.
+   */
+  protected def scriptsOf(transformation: LocalTransformation): List[(String, String)] = transformation match {
+    case streaming: StreamingLocalTransformation => List(streaming.rollbackScriptHash -> streaming.rollbackScript)
+    case _ => List(transformation.updateScriptHash -> transformation.updateScript,
+      transformation.rollbackScriptHash -> transformation.rollbackScript)
+  }
+
+  import TransformationsMetrics._
+
+  private final val LockName = "transformations"
+
+  private final val MaxPollingDelay = 2000L
+
+  /**
+   * Unique id of this lock holder.
+   */
+  private lazy val lockOwner = s"${ManagementFactory.getRuntimeMXBean.getName}/${UUID.randomUUID}"
+
+  private lazy val lockTableName = transformationsTableName + "_lock"
+
+  private lazy val lockTable = '"' + lockTableName + '"'
+
+  private val scriptCounts = new DynamicVariable[Option[Array[ScriptCounts]]](None)
+
+  /**
+   * Set once the lock held could not be renewed, another process might have taken it over since then.
+   */
+  @volatile private var lockLost = false
+
+  override def countingScripts(f: => Unit): ScriptCounts = {
+    val counts = Array(ScriptCounts())
+    scriptCounts.withValue(Some(counts))(f)
+    counts(0)
+  }
+
+  override def applyScript(script: String): Unit =
+    applyStreamedScript(_.append(script.toCharArray, 0, script.length))
+
+  override def applyStreamedScript(feed: TextSink => Unit): Unit =
+    executeScript(feed, batchSize)((executor, sql) => executor.execute(sql))
+
+  override def applyStatements(feed: TextSink => Unit, skip: Long, progress: Long => Unit): Unit = {
+    var position = 0L
+    // Not batched, so that the progress is exact
+    executeScript(feed, 1) { (executor, sql) =>
+      position += 1
+      if (position > skip) {
+        executor.execute(sql)
+        progress(position)
+      }
+    }
+  }
+
+  private def executeScript(feed: TextSink => Unit, batchSize: Int)(f: (BatchingStatementExecutor, String) => Unit): Unit = {
+    val executor = new BatchingStatementExecutor(currentConnection, batchSize)
+    try {
+      val splitter = new SqlStatementSplitter(sql => metrics.time(Statement)(f(executor, sql)), statementDelimiter)
+      feed(splitter)
+      splitter.finish()
+      metrics.time(Statement)(executor.flush())
+    } finally {
+      executor.close()
+      scriptCounts.value foreach (counts => counts(0) += executor.counts)
+    }
+  }
+
+  private def currentTime = System.currentTimeMillis
+
+  private def prepared[A](connection: Connection, sql: String, params: Any*)(f: PreparedStatement => A): A = {
+    val statement = connection.prepareStatement(sql)
+    try {
+      params.zipWithIndex foreach { case (value, i) => statement.setObject(i + 1, value) }
+      f(statement)
+    } finally {
+      statement.close()
+    }
+  }
+
+  private def lockUpdate(sql: String, params: Any*): Int =
+    withConnection(prepared(_, sql, params: _*)(_.executeUpdate()))
+
+  private def lockRow: Option[(String, Long, Long)] = withConnection { connection =>
+    prepared(connection, s"""select "owner", "expires_at", "version" from $lockTable where "name" = ?""", LockName) {
+      statement =>
+        val rs = statement.executeQuery()
+        try if (rs.next()) Some((rs.getString(1), rs.getLong(2), rs.getLong(3))) else None finally rs.close()
+    }
+  }
+
+  /**
+   * Creates the lock table and row if missing. Other processes might be doing the same at the moment.
+   */
+  private def createLock(): Unit = {
+    def exists = withConnection { connection =>
+      val rs = connection.getMetaData.getTables(null, null, lockTableName, null)
+      try rs.next() finally rs.close()
+    }
+    if (!exists) {
+      try lockUpdate(s"""create table $lockTable ("name" varchar(64) not null primary key, """ +
+        """"owner" varchar(256) not null, "expires_at" bigint not null, "version" bigint not null)""") catch {
+        case e: SQLException if exists => logger.debug("Lock table has been created by another process")
+      }
+    }
+    if (lockRow.isEmpty) {
+      try lockUpdate(s"insert into $lockTable values (?, '', 0, 0)", LockName) catch {
+        case e: SQLException if lockRow.isDefined => logger.debug("Lock has been created by another process")
+      }
+    }
+  }
+
+  private def tryLock(): Boolean = {
+    val now = currentTime
+    lockUpdate(s"""update $lockTable set "owner" = ?, "expires_at" = ? where "name" = ? and ("owner" = '' or "expires_at" < ?)""",
+      lockOwner, now + lockLease, LockName, now) == 1
+  }
+
+  private def renewLock(): Boolean =
+    lockUpdate(s"""update $lockTable set "expires_at" = ? where "name" = ? and "owner" = ?""",
+      currentTime + lockLease, LockName, lockOwner) == 1
+
+  private def releaseLock(): Unit =
+    lockUpdate(s"""update $lockTable set "owner" = '', "expires_at" = 0, "version" = "version" + 1 """ +
+      """where "name" = ? and "owner" = ?""", LockName, lockOwner)
+
+  /**
+   * Waits for the lock polling the lock row with an exponential backoff. Once the version changes
+   * the holder has just finished, so the lock is tried at once.
+   *
+   * @return true if had to wait.
+   */
+  private def acquireLock(): Boolean = metrics.time(LockWait) {
+    createLock()
+    val deadline = currentTime + lockTimeout
+    var delay = 50L
+    var waited = false
+    var lastVersion = -1L
+    while (!tryLock()) {
+      if (!waited) logger.info("Waiting for another process to finish transformations")
+      waited = true
+      if (currentTime > deadline) {
+        throw TransformationException(s"Unable to acquire the transformations lock within $lockTimeout ms")
+      }
+      var changed = false
+      while (!changed && currentTime <= deadline) {
+        Thread.sleep(delay + Random.nextInt((delay / 2).toInt + 1))
+        delay = (delay * 2) min MaxPollingDelay
+        changed = lockRow exists { case (owner, expiresAt, version) =>
+          val released = version != lastVersion && lastVersion != -1
+          lastVersion = version
+          released || owner.isEmpty || expiresAt < currentTime
+        }
+      }
+    }
+    logger.debug(s"Transformations lock acquired by [$lockOwner]")
+    waited
+  }
+
+  override def exclusively[A](f: Boolean => A): A = if (!lockEnabled) f(false) else {
+    val waited = acquireLock()
+    lockLost = false
+    val heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val thread = new Thread(r, "transformations-lock")
+        thread.setDaemon(true)
+        thread
+      }
+    })
+    heartbeat.scheduleWithFixedDelay(new Runnable {
+      override def run(): Unit = if (!lockLost) try {
+        if (!renewLock()) {
+          lockLost = true
+          logger.error("Transformations lock has been lost, another process might run transformations")
+        }
+      } catch {
+        case e: Exception =>
+          lockLost = true
+          logger.error(s"Unable to renew transformations lock due to:\n ${e.getMessage}")
+      }
+    }, lockLease / 3, lockLease / 3, TimeUnit.MILLISECONDS)
+    try {
+      f(waited)
+    } finally {
+      heartbeat.shutdownNow()
+      releaseLock()
+    }
+  }
+
+  override def ensureExclusive(): Unit = if (lockLost) {
+    throw TransformationException("Transformations lock has been lost, the run is aborted")
+  }
+
+}
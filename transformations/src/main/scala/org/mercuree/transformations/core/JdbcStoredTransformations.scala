@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.sql.{Connection, PreparedStatement, ResultSet, Types}
+import javax.sql.DataSource
+import scala.collection.mutable
+import org.slf4j.LoggerFactory
+
+/**
+ * Plain JDBC based implementation sharing the schema with [[SlickStoredTransformations]], so either one
+ * might be used over the same database. Statements are prepared once per connection and the connection
+ * is shared by all the nested calls made by the same thread.
+ *
+ * @author Alexander Valyugin
+ */
+trait JdbcStoredTransformations extends JdbcConnectionStorage {
+
+  private final val logger = LoggerFactory.getLogger(getClass)
+
+  private final val LegacyRunCheckpointId = "<run>"
+
+  val dataSource: DataSource
+
+  import TransformationsMetrics._
+
+  private def quoted(name: String) = '"' + name + '"'
+
+  private lazy val transformationsTable = quoted(transformationsTableName)
+
+  private lazy val scriptTableName = transformationsTableName + "_script"
+
+  private lazy val scriptTable = quoted(scriptTableName)
+
+  private lazy val checkpointTableName = transformationsTableName + "_checkpoint"
+
+  private lazy val checkpointTable = quoted(checkpointTableName)
+
+  private lazy val runCheckpointTableName = transformationsTableName + "_run"
+
+  private lazy val runCheckpointTable = quoted(runCheckpointTableName)
+
+  private lazy val historyTableName = transformationsTableName + "_history"
+
+  private lazy val historyTable = quoted(historyTableName)
+
+  /**
+   * Connection along with the statements prepared over it.
+   */
+  private final class JdbcSession(val connection: Connection) {
+
+    private val statements = mutable.Map[String, PreparedStatement]()
+
+    def prepare(sql: String): PreparedStatement = statements.getOrElseUpdate(sql, connection.prepareStatement(sql))
+
+    def close(): Unit = try statements.values foreach (_.close()) finally connection.close()
+
+  }
+
+  // Not inherited, threads of the pool processing transformations concurrently open their own
+  private val sessions = new ThreadLocal[JdbcSession]
+
+  private def session: JdbcSession = Option(sessions.get) getOrElse {
+    throw TransformationException("No connection is open by the current thread")
+  }
+
+  private def withSession[A](f: => A): A = if (sessions.get != null) f else {
+    val opened = new JdbcSession(dataSource.getConnection)
+    sessions.set(opened)
+    try f finally {
+      sessions.remove()
+      opened.close()
+    }
+  }
+
+  private def prepare(sql: String, params: Any*): PreparedStatement = {
+    val statement = session.prepare(sql)
+    params.zipWithIndex foreach {
+      case (value: String, i) => statement.setString(i + 1, value)
+      case (value: Long, i) => statement.setLong(i + 1, value)
+      case (value: Array[Byte], i) => statement.setBytes(i + 1, value)
+      case (Some(value: String), i) => statement.setString(i + 1, value)
+      case (None, i) => statement.setNull(i + 1, Types.VARCHAR)
+      case (value, i) => statement.setObject(i + 1, value)
+    }
+    statement
+  }
+
+  private def update(sql: String, params: Any*): Int = prepare(sql, params: _*).executeUpdate()
+
+  private def query[A](sql: String, params: Any*)(row: ResultSet => A): List[A] = {
+    val rs = prepare(sql, params: _*).executeQuery()
+    try {
+      val rows = List.newBuilder[A]
+      while (rs.next()) rows += row(rs)
+      rows.result()
+    } finally {
+      rs.close()
+    }
+  }
+
+  private def batch(sql: String, rows: Seq[Seq[Any]]): Unit = if (rows.nonEmpty) {
+    val statement = session.prepare(sql)
+    rows foreach { params =>
+      prepare(sql, params: _*)
+      statement.addBatch()
+    }
+    statement.executeBatch()
+  }
+
+  /**
+   * Checks the table existence through the database metadata, which doesn't read the table itself.
+   */
+  private def tableExists(name: String): Boolean = {
+    val rs = session.connection.getMetaData.getTables(null, null, name, null)
+    try {
+      var found = false
+      while (!found && rs.next()) found = rs.getString("TABLE_NAME") == name
+      found
+    } finally {
+      rs.close()
+    }
+  }
+
+  private def execute(sql: String): Unit = {
+    val statement = session.connection.createStatement()
+    try statement.execute(sql) finally statement.close()
+  }
+
+  @volatile private var tablesChecked = false
+
+  /**
+   * Creates the missing tables. The transformation table of the schema keeping the scripts inline
+   * must be migrated by [[SlickStoredTransformations]] first.
+   */
+  private def createTables(): Unit = {
+    if (!tableExists(scriptTableName)) {
+      execute(s"""create table $scriptTable ("hash" char(128) not null primary key, """ +
+        """"script_size" bigint not null, "content" blob not null)""")
+      logger.debug(s"Created script table [$scriptTableName]")
+    }
+    if (!tableExists(transformationsTableName)) {
+      logger.debug(s"Transformation table [$transformationsTableName] is missing!")
+      execute(s"""create table $transformationsTable ("name" varchar(256) not null primary key, """ +
+        """"update_script_hash" char(128) not null, "rollback_script_hash" char(128) not null)""")
+      logger.debug(s"Created transformation table [$transformationsTableName]")
+    } else {
+      val rs = session.connection.getMetaData.getColumns(null, null, transformationsTableName, "update_script")
+      val legacy = try rs.next() finally rs.close()
+      if (legacy) {
+        throw TransformationException(s"Transformation table [$transformationsTableName] keeps the scripts inline " +
+          "and has to be migrated first")
+      }
+    }
+    if (!tableExists(checkpointTableName)) {
+      execute(s"""create table $checkpointTable ("name" varchar(256) not null primary key, """ +
+        """"update_script_hash" char(128) not null, "position" bigint not null, "failure" varchar(1024))""")
+      logger.debug(s"Created checkpoint table [$checkpointTableName]")
+    }
+    if (!tableExists(runCheckpointTableName)) {
+      execute(s"""create table $runCheckpointTable ("fingerprint" char(128) not null, "position" bigint not null, """ +
+        """"failure" varchar(1024))""")
+      update(s"""delete from $checkpointTable where "name" = ?""", LegacyRunCheckpointId)
+      logger.debug(s"Created run checkpoint table [$runCheckpointTableName]")
+    }
+    if (!tableExists(historyTableName)) {
+      execute(s"""create table $historyTable ("name" varchar(256) not null, "action" varchar(16) not null, """ +
+        """"started_at" bigint not null, "finished_at" bigint not null, "duration_nanos" bigint not null, """ +
+        """"rows_affected" bigint not null, "node" varchar(256) not null, "outcome" varchar(16) not null)""")
+      logger.debug(s"Created history table [$historyTableName]")
+    }
+  }
+
+  override def findAllHashes(): Seq[StoredTransformationHash] = metrics.time(ControlRead) {
+    if (!tablesChecked && !tableExists(transformationsTableName)) {
+      // Nothing has been stored yet
+      Nil
+    } else {
+      query(s"""select t."name", t."update_script_hash", t."rollback_script_hash", s."script_size" """ +
+        s"""from $transformationsTable t left join $scriptTable s on s."hash" = t."rollback_script_hash"""") { rs =>
+        // Fixed length columns might come back padded with spaces, missing size is read as 0
+        StoredTransformationHash(rs.getString(1), rs.getString(2).trim, rs.getString(3).trim, rs.getLong(4))
+      }
+    }
+  }
+
+  override def findById(name: String): Option[StoredTransformation] = metrics.time(ControlRead) {
+    query(s"""select "update_script_hash", "rollback_script_hash" from $transformationsTable where "name" = ?""",
+      name)(rs => (rs.getString(1).trim, rs.getString(2).trim)).headOption map { case (updateHash, rollbackHash) =>
+      // Scripts are fetched over the current connection when accessed
+      new StoredTransformation(name, loadScript(updateHash), updateHash, loadScript(rollbackHash), rollbackHash)
+    }
+  }
+
+  private def loadScript(hash: String): String = metrics.time(ControlRead) {
+    query(s"""select "content" from $scriptTable where "hash" = ?""", hash)(_.getBytes(1)).headOption
+      .map(ScriptCompression.decompress) getOrElse {
+      throw TransformationException(s"Script [$hash] is missing in [$scriptTableName]")
+    }
+  }
+
+  /**
+   * Stores the script unless one with the same hash sum is already there, see [[SlickStoredTransformations]].
+   */
+  private def saveScript(hash: String, script: String): Unit =
+    if (update(s"""update $scriptTable set "script_size" = ? where "hash" = ?""", script.length.toLong, hash) == 0) {
+      SharedScripts.insertOnce(session.connection) {
+        update(s"insert into $scriptTable values (?, ?, ?)", hash, script.length.toLong, ScriptCompression.compress(script))
+      }(query(s"""select 1 from $scriptTable where "hash" = ?""", hash)(_.getInt(1)).nonEmpty)
+    }
+
+  private def saveScripts(transformation: LocalTransformation): Unit =
+    scriptsOf(transformation) foreach { case (hash, script) => saveScript(hash, script) }
+
+  private def storedHashes(id: String): List[String] =
+    query(s"""select "update_script_hash", "rollback_script_hash" from $transformationsTable where "name" = ?""", id) {
+      rs => List(rs.getString(1).trim, rs.getString(2).trim)
+    }.flatten
+
+  /**
+   * Deletes the scripts no transformation refers to anymore, checking the references in the same statement.
+   */
+  private def releaseScripts(hashes: List[String]): Unit = hashes.distinct foreach { hash =>
+    update(s"""delete from $scriptTable where "hash" = ? and not exists (select 1 from $transformationsTable """ +
+      """where "update_script_hash" = ? or "rollback_script_hash" = ?)""", hash, hash, hash)
+  }
+
+  override def insert(transformation: LocalTransformation): Unit = metrics.time(ControlWrite) {
+    saveScripts(transformation)
+    update(s"insert into $transformationsTable values (?, ?, ?)",
+      transformation.id, transformation.updateScriptHash, transformation.rollbackScriptHash)
+  }
+
+  override def insertAll(transformations: Seq[LocalTransformation]): Unit = metrics.time(ControlWrite) {
+    val known = query(s"""select "hash" from $scriptTable""")(_.getString(1).trim).toSet
+    val bodies = transformations flatMap scriptsOf filterNot (it => known(it._1))
+    batch(s"insert into $scriptTable values (?, ?, ?)", bodies.toMap.toSeq map { case (hash, script) =>
+      Seq(hash, script.length.toLong, ScriptCompression.compress(script))
+    })
+    batch(s"insert into $transformationsTable values (?, ?, ?)",
+      transformations map (t => Seq(t.id, t.updateScriptHash, t.rollbackScriptHash)))
+  }
+
+  override def delete(transformation: Transformation): Unit = metrics.time(ControlWrite) {
+    val previous = storedHashes(transformation.id)
+    update(s"""delete from $transformationsTable where "name" = ?""", transformation.id)
+    releaseScripts(previous)
+  }
+
+  override def update(transformation: LocalTransformation): Unit = metrics.time(ControlWrite) {
+    val previous = storedHashes(transformation.id)
+    saveScripts(transformation)
+    update(s"""update $transformationsTable set "update_script_hash" = ?, "rollback_script_hash" = ? where "name" = ?""",
+      transformation.updateScriptHash, transformation.rollbackScriptHash, transformation.id)
+    releaseScripts(previous)
+  }
+
+  override def findKeyRange(table: String, key: String): Option[(Long, Long)] =
+    query(s"select min($key), max($key) from $table") { rs =>
+      val min = rs.getLong(1)
+      if (rs.wasNull) None else Some((min, rs.getLong(2)))
+    }.head
+
+  override def findCheckpoint(id: String): Option[Checkpoint] =
+    if (!tablesChecked && !tableExists(checkpointTableName)) None else metrics.time(ControlRead) {
+      query(s"""select "update_script_hash", "position", "failure" from $checkpointTable where "name" = ?""", id) {
+        rs => Checkpoint(id, rs.getString(1).trim, rs.getLong(2), Option(rs.getString(3)))
+      }.headOption
+    }
+
+  override def saveCheckpoint(checkpoint: Checkpoint): Unit = metrics.time(ControlWrite) {
+    val failure = checkpoint.failure map (_ take 1024)
+    if (update(s"""update $checkpointTable set "update_script_hash" = ?, "position" = ?, "failure" = ? where "name" = ?""",
+      checkpoint.updateScriptHash, checkpoint.position, failure, checkpoint.id) == 0) {
+      update(s"insert into $checkpointTable values (?, ?, ?, ?)",
+        checkpoint.id, checkpoint.updateScriptHash, checkpoint.position, failure)
+    }
+  }
+
+  override def deleteCheckpoint(id: String): Unit = metrics.time(ControlWrite) {
+    update(s"""delete from $checkpointTable where "name" = ?""", id)
+  }
+
+  override def findRunCheckpoint(): Option[RunCheckpoint] =
+    if (!tablesChecked && !tableExists(runCheckpointTableName)) None else metrics.time(ControlRead) {
+      query(s"""select "fingerprint", "position", "failure" from $runCheckpointTable""") {
+        rs => RunCheckpoint(rs.getString(1).trim, rs.getLong(2), Option(rs.getString(3)))
+      }.headOption
+    }
+
+  override def saveRunCheckpoint(checkpoint: RunCheckpoint): Unit = metrics.time(ControlWrite) {
+    val failure = checkpoint.failure map (_ take 1024)
+    if (update(s"""update $runCheckpointTable set "fingerprint" = ?, "position" = ?, "failure" = ?""",
+      checkpoint.fingerprint, checkpoint.position, failure) == 0) {
+      update(s"insert into $runCheckpointTable values (?, ?, ?)", checkpoint.fingerprint, checkpoint.position, failure)
+    }
+  }
+
+  override def deleteRunCheckpoint(): Unit = metrics.time(ControlWrite) {
+    update(s"delete from $runCheckpointTable")
+  }
+
+  override def saveHistory(records: Seq[HistoryRecord]): Unit = metrics.time(ControlWrite) {
+    batch(s"insert into $historyTable values (?, ?, ?, ?, ?, ?, ?, ?)", records map { r =>
+      Seq(r.id, r.action, r.startedAt, r.finishedAt, r.duration, r.rows, r.node, r.outcome)
+    })
+  }
+
+  private lazy val historyColumns =
+    """"name", "action", "started_at", "finished_at", "duration_nanos", "rows_affected", "node", "outcome""""
+
+  private def historyRecord(rs: ResultSet): HistoryRecord =
+    HistoryRecord(rs.getString(1), rs.getString(2), rs.getLong(3), rs.getLong(4), rs.getLong(5), rs.getLong(6),
+      rs.getString(7), rs.getString(8))
+
+  override def findHistory(): Seq[HistoryRecord] =
+    if (!tablesChecked && !tableExists(historyTableName)) Nil else metrics.time(ControlRead) {
+      query(s"select $historyColumns from $historyTable")(historyRecord)
+    }
+
+  /**
+   * Limits the rows through the statement rather than the sql, which differs among the databases.
+   */
+  override def findSlowestHistory(n: Int): Seq[HistoryRecord] =
+    if (!tablesChecked && !tableExists(historyTableName)) Nil else metrics.time(ControlRead) {
+      val sql = s"""select $historyColumns from $historyTable where "outcome" = ? order by "duration_nanos" desc"""
+      val statement = session.prepare(sql)
+      statement.setMaxRows(n)
+      try query(sql, HistoryRecord.Success)(historyRecord) finally statement.setMaxRows(0)
+    }
+
+  override def findDurationRegressions(factor: Double): Seq[DurationRegression] =
+    if (!tablesChecked && !tableExists(historyTableName)) Nil else metrics.time(ControlRead) {
+      TransformationHistory.regressions(query(TransformationHistory.regressionsQuery(historyTable), factor) { rs =>
+        historyRecord(rs) -> rs.getLong(9)
+      })
+    }
+
+  override def transform[A](f: => A): A = withSession {
+    if (!tablesChecked) {
+      createTables()
+      tablesChecked = true
+    }
+    f
+  }
+
+  override def transactional[A](f: => A): A = {
+    val connection = session.connection
+    if (!connection.getAutoCommit) f else {
+      connection.setAutoCommit(false)
+      try {
+        val result = f
+        connection.commit()
+        result
+      } catch {
+        case e: Throwable =>
+          connection.rollback()
+          throw e
+      } finally {
+        connection.setAutoCommit(true)
+      }
+    }
+  }
+
+  override def inspect[A](f: => A): A = withSession(f)
+
+  override protected def currentConnection: Connection = session.connection
+
+  override protected def withConnection[A](f: Connection => A): A = withSession(f(session.connection))
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import javax.sql.DataSource
+
+/**
+ * Counterpart of the [[TransformationsMaster]] storing transformations over plain JDBC,
+ * see [[JdbcStoredTransformations]].
+ *
+ * @author Alexander Valyugin
+ */
+class JdbcTransformationsMaster(val dataSource: DataSource, protected val settings: TransformationsSettings,
+                                protected val sink: TransformationEventSink)
+  extends ConfiguredTransformations with JdbcStoredTransformations {
+
+  def this(dataSource: DataSource, settings: TransformationsSettings) = this(dataSource, settings, null)
+
+  def this(dataSource: DataSource) = this(dataSource, TransformationsSettings())
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.util.concurrent.{Callable, ExecutionException, Executors, ThreadFactory}
+import java.util.concurrent.atomic.AtomicInteger
+import scala.util.control.NonFatal
+import org.slf4j.LoggerFactory
+
+/**
+ * Outcome of the transformations run over a single target database.
+ *
+ * @param target name, e.g. the tenant id.
+ * @param duration nanoseconds taken.
+ * @param applied number of transformations applied, re-applied or rolled back.
+ * @param failed number of transformations failed.
+ * @param failure the reason the run has been stopped, if it has.
+ */
+case class TargetResult(target: String, duration: Long, applied: Long, failed: Long, failure: Option[String]) {
+
+  def succeeded: Boolean = failure.isEmpty && failed == 0
+
+}
+
+/**
+ * Runs the transformations over many target databases, e.g. one per tenant, with bounded parallelism.
+ * Targets are isolated from each other: a failed or broken target is reported and the rest
+ * are processed anyway, even when a target fails with an error rather than an exception.
+ *
+ * Local transformations are immutable once loaded, so they are meant to be loaded once and
+ * shared among the targets rather than read and hashed for every target again.
+ *
+ * @param parallelism maximum number of targets processed at the same time.
+ * @author Alexander Valyugin
+ */
+class MultiTargetTransformations(parallelism: Int) {
+
+  private final val logger = LoggerFactory.getLogger(getClass)
+
+  /**
+   * Runs the transformations of every target.
+   *
+   * @param targets transformations keyed by the target name.
+   * @return result of every target in the given order.
+   */
+  def run(targets: Seq[(String, Transformations with Metered)]): List[TargetResult] = {
+    val threads = new AtomicInteger
+    val executor = Executors.newFixedThreadPool(parallelism max 1, new ThreadFactory {
+      override def newThread(r: Runnable): Thread = new Thread(r, s"transformations-target-${threads.incrementAndGet}")
+    })
+    try {
+      val futures = targets map { case (name, transformations) =>
+        executor.submit(new Callable[TargetResult] {
+          override def call(): TargetResult = run(name, transformations)
+        })
+      }
+      val results = (targets zip futures).map { case ((name, _), future) =>
+        try future.get catch {
+          // Errors fatal to a target's thread still give the target its result
+          case e: ExecutionException => crashed(name, e.getCause)
+        }
+      }.toList
+      val failed = results.filterNot(_.succeeded)
+      logger.info(s"Transformed ${results.size} target(s): ${results.size - failed.size} succeeded, ${failed.size} failed")
+      failed foreach { r =>
+        logger.warn(s"[${r.target}] ${r.failure.getOrElse(s"${r.failed} transformation(s) failed")}")
+      }
+      results
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  private def run(name: String, transformations: Transformations with Metered): TargetResult = {
+    import TransformationsMetrics._
+    def count(counter: String) = transformations.metrics.counters.getOrElse(counter, 0L)
+    val before = List(Applied, Reapplied, RolledBack, Failed) map count
+    val started = System.nanoTime
+    val failure = try {
+      transformations.run
+      None
+    } catch {
+      case NonFatal(e) => Some(reason(name, e))
+    }
+    val after = List(Applied, Reapplied, RolledBack, Failed) map count
+    val done = (after zip before) map { case (a, b) => a - b }
+    TargetResult(name, System.nanoTime - started, done.take(3).sum, done(3), failure)
+  }
+
+  private def reason(name: String, e: Throwable): String = {
+    val reason = Option(e.getMessage) getOrElse e.getClass.getName
+    logger.error(s"Failed to transform [$name] due to:\n $reason")
+    reason
+  }
+
+  private def crashed(name: String, e: Throwable): TargetResult = TargetResult(name, 0, 0, 0, Some(reason(name, e)))
+
+}
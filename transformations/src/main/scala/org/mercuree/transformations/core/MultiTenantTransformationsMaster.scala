@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import javax.sql.DataSource
+import scala.collection.JavaConversions._
+
+/**
+ * Applies the transformations to every tenant database. The transformation files are read
+ * and hashed once for all the tenants.
+ *
+ * @param dataSources tenant databases keyed by the tenant id.
+ * @param settings shared by all the tenants.
+ * @param sink of the run events of every tenant; might be null.
+ * @author Alexander Valyugin
+ */
+class MultiTenantTransformationsMaster(dataSources: java.util.Map[String, DataSource],
+                                       settings: TransformationsSettings,
+                                       sink: TransformationEventSink) {
+
+  private final val EventsFlushTimeout = 10 * 1000L
+
+  def this(dataSources: java.util.Map[String, DataSource], settings: TransformationsSettings) =
+    this(dataSources, settings, null)
+
+  def this(dataSources: java.util.Map[String, DataSource]) = this(dataSources, TransformationsSettings())
+
+  /**
+   * Runs transformations over all the tenant databases.
+   *
+   * @return result of every tenant in the iteration order of the data sources given.
+   */
+  def run(): java.util.List[TargetResult] = if (dataSources.isEmpty) new java.util.ArrayList[TargetResult] else {
+    val tenants = dataSources.toList
+    // Any master reads the files the same way
+    val shared = new TransformationsMaster(tenants.head._2, settings).localTransformations
+    // A single delivery thread for all the tenants
+    val events = Option(sink) map {
+      case async: AsyncTransformationEventSink => async
+      case other => new AsyncTransformationEventSink(other)
+    }
+    val targets = tenants map { case (tenant, dataSource) =>
+      tenant -> new TransformationsMaster(dataSource, settings, events.orNull) {
+        override def localTransformations: List[Transformation] = shared
+      }
+    }
+    try {
+      new MultiTargetTransformations(settings.tenantParallelism).run(targets)
+    } finally {
+      // Stop delivering once the events are out, unless the sink is managed by the caller
+      events filter (_ ne sink) foreach { e =>
+        e.flush(EventsFlushTimeout)
+        e.close()
+      }
+    }
+  }
+
+}
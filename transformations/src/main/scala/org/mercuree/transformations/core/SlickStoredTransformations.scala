@@ -16,9 +16,13 @@
 
 package org.mercuree.transformations.core
 
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.nio.charset.StandardCharsets
+import java.sql.{Connection, SQLException}
+import java.util.zip.{DeflaterOutputStream, InflaterInputStream}
 import scala.slick.driver.{JdbcDriver, JdbcProfile}
 import scala.slick.jdbc.JdbcBackend._
-import scala.slick.jdbc.{StaticQuery => Sql}
+import scala.slick.jdbc.{StaticQuery => Q}
 import scala.language.implicitConversions
 import org.slf4j.LoggerFactory
 import Database.dynamicSession
@@ -28,77 +32,406 @@ import Database.dynamicSession
  *
  * @author Alexander Valyugin
  */
-trait SlickStoredTransformations extends StoredTransformations {
+trait SlickStoredTransformations extends JdbcConnectionStorage {
 
   private final val logger = LoggerFactory.getLogger(getClass)
 
-  val transformationsTableName = "transformations"
+  private final val LegacyRunCheckpointId = "<run>"
 
   val profile: JdbcProfile = GenericDriver
 
   val db: Database
 
   import profile.simple._
+  import TransformationsMetrics._
 
   /**
    * Database table schema definition. The table that keeps all database transformations applied.
+   * Scripts themselves are referenced by their hash sums.
    */
-  private class TransformationTable(tag: Tag, tableName: String) extends Table[StoredTransformation](tag, tableName) {
+  private class TransformationTable(tag: Tag, tableName: String) extends Table[(String, String, String)](tag, tableName) {
     def name = column[String]("name", O.PrimaryKey, O.DBType("varchar(256)"))
 
-    def sqlUpdate = column[String]("update_script", O.DBType("text"))
-
     def sqlUpdateHash = column[String]("update_script_hash", O.DBType("char(128)"))
 
-    def sqlRollback = column[String]("rollback_script", O.DBType("text"))
-
     def sqlRollbackHash = column[String]("rollback_script_hash", O.DBType("char(128)"))
 
-    // TODO: add timestamp
-    
-    def * = (name, sqlUpdate, sqlUpdateHash, sqlRollback, sqlRollbackHash) <>(StoredTransformation.fromTuple, StoredTransformation.unapply)
+    // When and how long it took is kept in the history table
+    def * = (name, sqlUpdateHash, sqlRollbackHash)
   }
 
   private lazy val storedTransformations = TableQuery[TransformationTable]((tag: Tag) => new TransformationTable(tag, transformationsTableName))
 
   /**
-   * Creates a transformation table if one is missing.
+   * Compressed script bodies keyed by their hash sums, so the same script is stored once
+   * no matter how many transformations refer to it.
+   */
+  private class ScriptTable(tag: Tag, tableName: String) extends Table[(String, Long, Array[Byte])](tag, tableName) {
+    def hash = column[String]("hash", O.PrimaryKey, O.DBType("char(128)"))
+
+    def size = column[Long]("script_size")
+
+    def content = column[Array[Byte]]("content")
+
+    def * = (hash, size, content)
+  }
+
+  private lazy val scriptTableName = transformationsTableName + "_script"
+
+  private lazy val scripts = TableQuery[ScriptTable]((tag: Tag) => new ScriptTable(tag, scriptTableName))
+
+  /**
+   * Progress of the chunked transformations being applied. Kept apart from the transformation table
+   * so its schema stays the same.
+   */
+  private class CheckpointTable(tag: Tag, tableName: String) extends Table[Checkpoint](tag, tableName) {
+    def name = column[String]("name", O.PrimaryKey, O.DBType("varchar(256)"))
+
+    def sqlUpdateHash = column[String]("update_script_hash", O.DBType("char(128)"))
+
+    def position = column[Long]("position")
+
+    def failure = column[Option[String]]("failure", O.DBType("varchar(1024)"))
+
+    def * = (name, sqlUpdateHash, position, failure) <>((Checkpoint.apply _).tupled, Checkpoint.unapply)
+  }
+
+  private lazy val checkpointTableName = transformationsTableName + "_checkpoint"
+
+  private lazy val checkpoints = TableQuery[CheckpointTable]((tag: Tag) => new CheckpointTable(tag, checkpointTableName))
+
+  /**
+   * Single row table keeping the checkpoint of the last failed run.
+   */
+  private class RunCheckpointTable(tag: Tag, tableName: String) extends Table[RunCheckpoint](tag, tableName) {
+    def fingerprint = column[String]("fingerprint", O.DBType("char(128)"))
+
+    def position = column[Long]("position")
+
+    def failure = column[Option[String]]("failure", O.DBType("varchar(1024)"))
+
+    def * = (fingerprint, position, failure) <>((RunCheckpoint.apply _).tupled, RunCheckpoint.unapply)
+  }
+
+  private lazy val runCheckpointTableName = transformationsTableName + "_run"
+
+  private lazy val runCheckpoints = TableQuery[RunCheckpointTable]((tag: Tag) => new RunCheckpointTable(tag, runCheckpointTableName))
+
+  /**
+   * Append-only execution history.
+   */
+  private class HistoryTable(tag: Tag, tableName: String) extends Table[HistoryRecord](tag, tableName) {
+    def name = column[String]("name", O.DBType("varchar(256)"))
+
+    def action = column[String]("action", O.DBType("varchar(16)"))
+
+    def startedAt = column[Long]("started_at")
+
+    def finishedAt = column[Long]("finished_at")
+
+    def duration = column[Long]("duration_nanos")
+
+    def rows = column[Long]("rows_affected")
+
+    def node = column[String]("node", O.DBType("varchar(256)"))
+
+    def outcome = column[String]("outcome", O.DBType("varchar(16)"))
+
+    def * = (name, action, startedAt, finishedAt, duration, rows, node, outcome) <>((HistoryRecord.apply _).tupled, HistoryRecord.unapply)
+  }
+
+  private lazy val historyTableName = transformationsTableName + "_history"
+
+  private lazy val history = TableQuery[HistoryTable]((tag: Tag) => new HistoryTable(tag, historyTableName))
+
+  private def transformationTableExists: Boolean = {
+    import scala.slick.jdbc.meta.MTable
+    MTable.getTables.list.exists(_.name.name == transformationsTableName)
+  }
+
+  /**
+   * Checks whether the transformation table still keeps the scripts inline, as it did before
+   * the script table has been introduced.
+   */
+  private def legacyTransformationTable: Boolean = {
+    import scala.slick.jdbc.meta.MTable
+    MTable.getTables.list.find(_.name.name == transformationsTableName) exists { table =>
+      table.getColumns.list.exists(_.name equalsIgnoreCase "update_script")
+    }
+  }
+
+  private def quoted(name: String): String = profile match {
+    case driver: JdbcDriver => driver.quoteIdentifier(name)
+    case _ => '"' + name + '"'
+  }
+
+  /**
+   * Creates a transformation table along with the script table if missing. The transformation table
+   * of the legacy schema is migrated.
    */
   private def createTransformationTable(): Unit = db.withDynSession {
     import scala.slick.jdbc.meta.MTable
-    if (!MTable.getTables.list.exists(_.name.name == transformationsTableName)) {
+    if (!MTable.getTables.list.exists(_.name.name == scriptTableName)) {
+      scripts.ddl.create
+      logger.debug(s"Created script table [$scriptTableName]")
+    }
+    if (!transformationTableExists) {
       logger.debug(s"Transformation table [$transformationsTableName] is missing!")
       storedTransformations.ddl.create
       logger.debug(s"Created transformation table [$transformationsTableName]")
+    } else if (legacyTransformationTable) {
+      migrateTransformationTable()
+    }
+  }
+
+  /**
+   * Moves the scripts kept inline into the script table row by row, then drops the script columns.
+   */
+  private def migrateTransformationTable(): Unit = {
+    val table = quoted(transformationsTableName)
+    val names = Q.queryNA[String](s"select ${quoted("name")} from $table").list
+    dynamicSession.withTransaction {
+      names flatMap findLegacy foreach { case (update, updateHash, rollback, rollbackHash) =>
+        saveScript(updateHash.trim, update)
+        saveScript(rollbackHash.trim, rollback)
+      }
+    }
+    List("update_script", "rollback_script") foreach { column =>
+      Q.updateNA(s"alter table $table drop column ${quoted(column)}").execute
+    }
+    logger.info(s"Moved scripts of ${names.size} transformation(s) to [$scriptTableName]")
+  }
+
+  private def checkpointTableExists: Boolean = {
+    import scala.slick.jdbc.meta.MTable
+    MTable.getTables.list.exists(_.name.name == checkpointTableName)
+  }
+
+  private def runCheckpointTableExists: Boolean = {
+    import scala.slick.jdbc.meta.MTable
+    MTable.getTables.list.exists(_.name.name == runCheckpointTableName)
+  }
+
+  /**
+   * Creates the checkpoint tables if missing. The run checkpoint used to be kept in the checkpoint table
+   * under a reserved id, such a row is dropped.
+   */
+  private def createCheckpointTable(): Unit = db.withDynSession {
+    if (!checkpointTableExists) {
+      checkpoints.ddl.create
+      logger.debug(s"Created checkpoint table [$checkpointTableName]")
+    }
+    if (!runCheckpointTableExists) {
+      runCheckpoints.ddl.create
+      checkpoints.where(_.name === LegacyRunCheckpointId).delete
+      logger.debug(s"Created run checkpoint table [$runCheckpointTableName]")
+    }
+  }
+
+  private def historyTableExists: Boolean = {
+    import scala.slick.jdbc.meta.MTable
+    MTable.getTables.list.exists(_.name.name == historyTableName)
+  }
+
+  /**
+   * Creates a history table if one is missing.
+   */
+  private def createHistoryTable(): Unit = db.withDynSession {
+    if (!historyTableExists) {
+      history.ddl.create
+      logger.debug(s"Created history table [$historyTableName]")
     }
   }
 
 //  override def all(): Seq[StoredTransformation] = storedTransformations.list
 
-  override def findAllExcept(ids: Set[String]): Seq[StoredTransformation] =
-    storedTransformations.filterNot(_.name.inSet(ids)).list
+  override def findAllHashes(): Seq[StoredTransformationHash] = metrics.time(ControlRead) {
+    val hashes = if (!transformationTableChecked && !transformationTableExists) {
+      // Nothing has been stored yet
+      Nil
+    } else if (!transformationTableChecked && legacyTransformationTable) {
+      // Not migrated yet
+      Q.queryNA[(String, String, String, Long)](s"select ${quoted("name")}, ${quoted("update_script_hash")}, " +
+        s"${quoted("rollback_script_hash")}, length(${quoted("rollback_script")}) " +
+        s"from ${quoted(transformationsTableName)}").list
+    } else {
+      (storedTransformations leftJoin scripts on (_.sqlRollbackHash === _.hash))
+        .map { case (t, s) => (t.name, t.sqlUpdateHash, t.sqlRollbackHash, s.size.?) }.list map {
+        case (name, updateHash, rollbackHash, rollbackSize) => (name, updateHash, rollbackHash, rollbackSize.getOrElse(0L))
+      }
+    }
+    hashes map {
+      // Fixed length columns might come back padded with spaces
+      case (name, updateHash, rollbackHash, rollbackSize) =>
+        StoredTransformationHash(name, updateHash.trim, rollbackHash.trim, rollbackSize)
+    }
+  }
 
-  override def findById(name: String): Option[StoredTransformation] =
-    storedTransformations.where(_.name === name).firstOption
+  override def findById(name: String): Option[StoredTransformation] = metrics.time(ControlRead) {
+    if (!transformationTableChecked && legacyTransformationTable) {
+      findLegacy(name) map { case (update, updateHash, rollback, rollbackHash) =>
+        StoredTransformation(name, update, updateHash.trim, rollback, rollbackHash.trim)
+      }
+    } else {
+      storedTransformations.where(_.name === name).firstOption map { case (id, updateHash, rollbackHash) =>
+        // Scripts are fetched within the current session when accessed
+        new StoredTransformation(id, loadScript(updateHash.trim), updateHash.trim,
+          loadScript(rollbackHash.trim), rollbackHash.trim)
+      }
+    }
+  }
 
-  override def insert(transformation: LocalTransformation): Unit =
-    storedTransformations += transformation
+  private def findLegacy(name: String): Option[(String, String, String, String)] =
+    Q.query[String, (String, String, String, String)](s"select ${quoted("update_script")}, " +
+      s"${quoted("update_script_hash")}, ${quoted("rollback_script")}, ${quoted("rollback_script_hash")} " +
+      s"from ${quoted(transformationsTableName)} where ${quoted("name")} = ?").firstOption(name)
 
-  override def delete(transformation: Transformation): Unit =
+  override def insert(transformation: LocalTransformation): Unit = metrics.time(ControlWrite) {
+    saveScripts(transformation)
+    storedTransformations += ((transformation.id, transformation.updateScriptHash, transformation.rollbackScriptHash))
+  }
+
+  override def insertAll(transformations: Seq[LocalTransformation]): Unit = metrics.time(ControlWrite) {
+    val known = scripts.map(_.hash).list.map(_.trim).toSet
+    val bodies = transformations flatMap scriptsOf filterNot (it => known(it._1))
+    scripts ++= bodies.toMap.toSeq map { case (hash, script) => (hash, script.length.toLong, ScriptCompression.compress(script)) }
+    storedTransformations ++= transformations map (t => (t.id, t.updateScriptHash, t.rollbackScriptHash))
+  }
+
+  override def delete(transformation: Transformation): Unit = metrics.time(ControlWrite) {
+    val previous = storedHashes(transformation.id)
     storedTransformations.where(_.name === transformation.id).delete
+    releaseScripts(previous)
+  }
+
+  override def update(transformation: LocalTransformation): Unit = metrics.time(ControlWrite) {
+    val previous = storedHashes(transformation.id)
+    saveScripts(transformation)
+    storedTransformations.where(_.name === transformation.id).map(t => (t.sqlUpdateHash, t.sqlRollbackHash))
+      .update((transformation.updateScriptHash, transformation.rollbackScriptHash))
+    releaseScripts(previous)
+  }
+
+  private def storedHashes(id: String): List[String] =
+    storedTransformations.where(_.name === id).map(t => (t.sqlUpdateHash, t.sqlRollbackHash)).firstOption.toList
+      .flatMap { case (updateHash, rollbackHash) => List(updateHash.trim, rollbackHash.trim) }
+
+  private def saveScripts(transformation: LocalTransformation): Unit =
+    scriptsOf(transformation) foreach { case (hash, script) => saveScript(hash, script) }
+
+  /**
+   * Stores the script unless one with the same hash sum is already there. An existing script is touched
+   * rather than just read, so a concurrent transaction can't release it until this one is over.
+   */
+  private def saveScript(hash: String, script: String): Unit =
+    if (scripts.where(_.hash === hash).map(_.size).update(script.length.toLong) == 0) {
+      SharedScripts.insertOnce(dynamicSession.conn) {
+        scripts += ((hash, script.length.toLong, ScriptCompression.compress(script)))
+      }(scripts.where(_.hash === hash).exists.run)
+    }
+
+  /**
+   * Deletes the scripts no transformation refers to anymore. The reference check and the delete
+   * are a single statement, so a reference added concurrently is never missed in between.
+   */
+  private def releaseScripts(hashes: List[String]): Unit = hashes.distinct foreach { hash =>
+    scripts.where(s => s.hash === hash && !storedTransformations.where(t =>
+      t.sqlUpdateHash === hash || t.sqlRollbackHash === hash).exists).delete
+  }
+
+  private def loadScript(hash: String): String = metrics.time(ControlRead) {
+    scripts.where(_.hash === hash).map(_.content).firstOption.map(ScriptCompression.decompress) getOrElse {
+      throw TransformationException(s"Script [$hash] is missing in [$scriptTableName]")
+    }
+  }
+
+  override def findKeyRange(table: String, key: String): Option[(Long, Long)] =
+    Q.queryNA[(Option[Long], Option[Long])](s"select min($key), max($key) from $table").first match {
+      case (Some(min), Some(max)) => Some((min, max))
+      case _ => None
+    }
+
+  override def findCheckpoint(id: String): Option[Checkpoint] =
+    if (!checkpointTableChecked && !checkpointTableExists) None else metrics.time(ControlRead) {
+      checkpoints.where(_.name === id).firstOption map (c => c.copy(updateScriptHash = c.updateScriptHash.trim))
+    }
+
+  override def saveCheckpoint(checkpoint: Checkpoint): Unit = metrics.time(ControlWrite) {
+    val saved = checkpoint.copy(failure = checkpoint.failure map (_ take 1024))
+    if (checkpoints.where(_.name === saved.id).update(saved) == 0) checkpoints += saved
+  }
+
+  override def deleteCheckpoint(id: String): Unit = metrics.time(ControlWrite) {
+    checkpoints.where(_.name === id).delete
+  }
+
+  override def findRunCheckpoint(): Option[RunCheckpoint] =
+    if (!checkpointTableChecked && !runCheckpointTableExists) None else metrics.time(ControlRead) {
+      runCheckpoints.firstOption map (c => c.copy(fingerprint = c.fingerprint.trim))
+    }
+
+  override def saveRunCheckpoint(checkpoint: RunCheckpoint): Unit = metrics.time(ControlWrite) {
+    val saved = checkpoint.copy(failure = checkpoint.failure map (_ take 1024))
+    if (runCheckpoints.update(saved) == 0) runCheckpoints += saved
+  }
+
+  override def deleteRunCheckpoint(): Unit = metrics.time(ControlWrite) {
+    runCheckpoints.delete
+  }
+
+  override def saveHistory(records: Seq[HistoryRecord]): Unit = metrics.time(ControlWrite) {
+    history ++= records
+  }
+
+  override def findHistory(): Seq[HistoryRecord] =
+    if (!historyTableChecked && !historyTableExists) Nil else metrics.time(ControlRead)(history.list)
+
+  override def findSlowestHistory(n: Int): Seq[HistoryRecord] =
+    if (!historyTableChecked && !historyTableExists) Nil else metrics.time(ControlRead) {
+      // Not limited within the query, as the generic driver only knows the standard syntax for it
+      val slowest = history.where(_.outcome === HistoryRecord.Success).sortBy(_.duration.desc).iterator
+      try slowest.take(n).toList finally slowest.close()
+    }
+
+  override def findDurationRegressions(factor: Double): Seq[DurationRegression] =
+    if (!historyTableChecked && !historyTableExists) Nil else metrics.time(ControlRead) {
+      val rows = Q.query[Double, (String, String, Long, Long, Long, Long, String, String, Long)](
+        TransformationHistory.regressionsQuery(quoted(historyTableName))).list(factor)
+      TransformationHistory.regressions(rows map { case (id, action, startedAt, finishedAt, duration, affected, node,
+      outcome, usual) => HistoryRecord(id, action, startedAt, finishedAt, duration, affected, node, outcome) -> usual
+      })
+    }
 
-  override def update(transformation: LocalTransformation): Unit =
-    storedTransformations.where(_.name === transformation.id).update(transformation)
+  @volatile private var transformationTableChecked = false
 
-  override def applyScript(script: String): Unit = Sql.updateNA(script).execute
+  @volatile private var checkpointTableChecked = false
+
+  @volatile private var historyTableChecked = false
 
   override def transform[A](f: => A): A = {
-    createTransformationTable
+    if (!transformationTableChecked) {
+      createTransformationTable
+      transformationTableChecked = true
+    }
+    if (!checkpointTableChecked) {
+      createCheckpointTable
+      checkpointTableChecked = true
+    }
+    if (!historyTableChecked) {
+      createHistoryTable
+      historyTableChecked = true
+    }
     db.withDynSession(f)
   }
 
   override def transactional[A](f: => A): A = dynamicSession.withTransaction(f)
 
+  override def inspect[A](f: => A): A = db.withDynSession(f)
+
+  override protected def currentConnection: Connection = dynamicSession.conn
+
+  override protected def withConnection[A](f: Connection => A): A = db.withDynSession(f(dynamicSession.conn))
+
 }
 
 /**
@@ -107,3 +440,74 @@ trait SlickStoredTransformations extends StoredTransformations {
  * @author Alexander Valyugin
  */
 object GenericDriver extends JdbcDriver
+
+/**
+ * Writes to the script table shared by the storage implementations.
+ *
+ * @author Alexander Valyugin
+ */
+object SharedScripts {
+
+  /**
+   * Inserts the script which might be inserted by a concurrent transaction at the same moment, e.g. the
+   * empty rollback script shared by most transformations. The duplicate key such an insert fails with
+   * is ignored once the script is found. Within a transaction the insert is guarded by a savepoint,
+   * as some databases refuse to go on with the transaction after a failed statement.
+   *
+   * @param connection the insert is run over.
+   * @param insert inserts the script.
+   * @param stored checks whether the script is there.
+   */
+  def insertOnce(connection: Connection)(insert: => Unit)(stored: => Boolean): Unit = {
+    val savepoint = if (connection.getAutoCommit) None else Some(connection.setSavepoint())
+    try {
+      insert
+      savepoint foreach connection.releaseSavepoint
+    } catch {
+      case e: SQLException =>
+        savepoint foreach connection.rollback
+        if (!stored) throw e
+    }
+  }
+
+}
+
+/**
+ * Compression of the scripts kept in the script table, shared by the storage implementations.
+ *
+ * @author Alexander Valyugin
+ */
+object ScriptCompression {
+
+  /**
+   * @param script to compress.
+   * @return deflated UTF-8 encoded script.
+   */
+  def compress(script: String): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream
+    val out = new DeflaterOutputStream(bytes)
+    try out.write(script.getBytes(StandardCharsets.UTF_8)) finally out.close()
+    bytes.toByteArray
+  }
+
+  /**
+   * @param content deflated UTF-8 encoded script.
+   * @return the script.
+   */
+  def decompress(content: Array[Byte]): String = {
+    val in = new InflaterInputStream(new ByteArrayInputStream(content))
+    val bytes = new ByteArrayOutputStream
+    try {
+      val buffer = new Array[Byte](8192)
+      var read = in.read(buffer)
+      while (read != -1) {
+        bytes.write(buffer, 0, read)
+        read = in.read(buffer)
+      }
+    } finally {
+      in.close()
+    }
+    new String(bytes.toByteArray, StandardCharsets.UTF_8)
+  }
+
+}
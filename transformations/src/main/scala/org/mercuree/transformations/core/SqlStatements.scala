@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.sql.Connection
+import java.util.regex.Pattern
+
+/**
+ * Consumer of a text that arrives in chunks.
+ */
+trait TextSink {
+
+  /**
+   * Appends the next chunk of the text.
+   *
+   * @param chars buffer holding the chunk.
+   * @param start chunk offset in the buffer.
+   * @param length chunk length.
+   */
+  def append(chars: Array[Char], start: Int, length: Int): Unit
+
+  /**
+   * Signals the end of the text.
+   */
+  def finish(): Unit = ()
+
+}
+
+/**
+ * Splits sql text into separate statements on the fly. Statement delimiters inside quoted
+ * literals, quoted identifiers, dollar quoted bodies (e.g. `$$ ... $$` or `$body$ ... $body$`)
+ * and comments are ignored. Delimiters are not included into statements and statements having
+ * nothing but comments are dropped.
+ *
+ * The delimiter could be changed in the middle of the script with a line like `DELIMITER //`,
+ * which is handy for stored procedure definitions.
+ *
+ * @param onStatement called for every statement found.
+ * @param initialDelimiter statement delimiter to start with.
+ * @author Alexander Valyugin
+ */
+class SqlStatementSplitter(onStatement: String => Unit, initialDelimiter: String = ";") extends TextSink {
+
+  private object State extends Enumeration {
+    val Code, SingleQuoted, DoubleQuoted, LineComment, BlockComment, DollarTag, DollarQuoted = Value
+  }
+
+  import State._
+  import SqlStatementSplitter.Directive
+
+  private val statement = new java.lang.StringBuilder
+
+  private var delimiter = initialDelimiter
+
+  private var state = Code
+
+  private var previous: Char = 0
+
+  // Statement has something besides comments and whitespaces
+  private var hasCode = false
+
+  private var lineStart = 0
+
+  private var hasCodeBeforeLine = false
+
+  private val dollarTag = new java.lang.StringBuilder
+
+  private var dollarQuoteStart = 0
+
+  private def emit(): Unit = {
+    if (hasCode) {
+      val text = statement.toString.trim
+      if (text.nonEmpty) onStatement(text)
+    }
+    statement.setLength(0)
+    hasCode = false
+    previous = 0
+    lineStart = 0
+    hasCodeBeforeLine = false
+  }
+
+  private def endsWith(suffix: CharSequence, from: Int): Boolean = {
+    val start = statement.length - suffix.length
+    start >= from && {
+      var i = 0
+      while (i < suffix.length && statement.charAt(start + i) == suffix.charAt(i)) i += 1
+      i == suffix.length
+    }
+  }
+
+  // Checks whether the line just finished is a delimiter change directive
+  private def directive(): Boolean = !hasCodeBeforeLine && statement.length - lineStart <= 64 && {
+    statement.substring(lineStart).trim match {
+      case Directive(newDelimiter) =>
+        delimiter = newDelimiter
+        true
+      case _ => false
+    }
+  }
+
+  private def code(c: Char): Unit = {
+    val commentStart = (previous == '-' && c == '-') || (previous == '/' && c == '*')
+    // Dash or slash on their own are code
+    if ((previous == '-' || previous == '/') && !commentStart) hasCode = true
+    previous = c
+    c match {
+      case _ if c == delimiter.last && endsWith(delimiter, 0) =>
+        statement.setLength(statement.length - delimiter.length)
+        emit()
+      case _ if commentStart =>
+        state = if (c == '-') LineComment else BlockComment
+        previous = 0
+      case '\'' =>
+        state = SingleQuoted
+        hasCode = true
+        previous = 0
+      case '"' =>
+        state = DoubleQuoted
+        hasCode = true
+        previous = 0
+      case '$' =>
+        state = DollarTag
+        dollarTag.setLength(0)
+        hasCode = true
+        previous = 0
+      case '\n' if directive() =>
+        statement.setLength(0)
+        hasCode = false
+        previous = 0
+      case '-' | '/' =>
+      case _ => if (c > ' ') hasCode = true
+    }
+  }
+
+  private def dollar(c: Char): Unit = c match {
+    case '$' =>
+      dollarTag.insert(0, '$').append('$')
+      dollarQuoteStart = statement.length
+      state = DollarQuoted
+    case _ if Character.isLetter(c) || c == '_' || (Character.isDigit(c) && dollarTag.length > 0) =>
+      dollarTag.append(c)
+    case _ =>
+      // Not a dollar quote but a positional parameter or alike
+      state = Code
+      code(c)
+  }
+
+  override def append(chars: Array[Char], start: Int, length: Int): Unit = {
+    var i = start
+    while (i < start + length) {
+      val c = chars(i)
+      statement.append(c)
+      state match {
+        case Code => code(c)
+        case SingleQuoted => if (c == '\'') state = Code
+        case DoubleQuoted => if (c == '"') state = Code
+        case LineComment => if (c == '\n') state = Code
+        case BlockComment =>
+          if (c == '/' && previous == '*') {
+            state = Code
+            previous = 0
+          } else {
+            previous = c
+          }
+        case DollarTag => dollar(c)
+        case DollarQuoted => if (c == '$' && endsWith(dollarTag, dollarQuoteStart)) state = Code
+      }
+      if (c == '\n') {
+        lineStart = statement.length
+        hasCodeBeforeLine = hasCode
+      }
+      i += 1
+    }
+  }
+
+  override def finish(): Unit = {
+    if (previous == '-' || previous == '/') hasCode = true
+    if (state == Code && directive()) {
+      statement.setLength(0)
+      hasCode = false
+    }
+    emit()
+    state = Code
+  }
+
+}
+
+object SqlStatementSplitter {
+
+  private val Directive = """(?i)delimiter\s+(\S+)""".r
+
+  /**
+   * Splits the whole sql script into statements.
+   *
+   * @param script to split.
+   * @param delimiter statement delimiter.
+   * @return list of statements.
+   */
+  def split(script: String, delimiter: String = ";"): List[String] = {
+    val statements = List.newBuilder[String]
+    val splitter = new SqlStatementSplitter(statements += _, delimiter)
+    splitter.append(script.toCharArray, 0, script.length)
+    splitter.finish()
+    statements.result()
+  }
+
+}
+
+/**
+ * Work done by the database executing the scripts.
+ *
+ * @param rows affected as reported by the database.
+ * @param statements executed.
+ * @param roundTrips database calls the statements have been sent in.
+ */
+case class ScriptCounts(rows: Long = 0, statements: Long = 0, roundTrips: Long = 0) {
+
+  def +(that: ScriptCounts): ScriptCounts =
+    ScriptCounts(rows + that.rows, statements + that.statements, roundTrips + that.roundTrips)
+
+}
+
+/**
+ * Executes sql statements one by one over the given connection. Consecutive data manipulation
+ * statements are grouped into JDBC batches, which saves a database round trip per statement.
+ *
+ * @param connection to execute statements with.
+ * @param batchSize maximum number of statements in a batch; batching is off when set to 1.
+ * @author Alexander Valyugin
+ */
+class BatchingStatementExecutor(connection: Connection, batchSize: Int) {
+
+  private val statement = connection.createStatement()
+
+  private val batching = batchSize > 1 && connection.getMetaData.supportsBatchUpdates
+
+  private var pending = 0
+
+  /**
+   * Number of statements executed so far.
+   */
+  var statements = 0
+
+  /**
+   * Number of database calls made so far.
+   */
+  var roundTrips = 0
+
+  /**
+   * Number of rows affected so far as reported by the database.
+   */
+  var rows = 0L
+
+  /**
+   * Executes the statement or adds it to the current batch.
+   *
+   * @param sql statement to execute.
+   */
+  def execute(sql: String): Unit = {
+    statements += 1
+    if (batching && BatchingStatementExecutor.isDml(sql)) {
+      statement.addBatch(sql)
+      pending += 1
+      if (pending >= batchSize) flush()
+    } else {
+      flush()
+      if (!statement.execute(sql)) rows += statement.getUpdateCount max 0
+      roundTrips += 1
+    }
+  }
+
+  /**
+   * Executes the current batch if any.
+   */
+  def flush(): Unit = if (pending > 0) {
+    pending = 0
+    roundTrips += 1
+    // Unknown counts are negative
+    rows += statement.executeBatch().filter(_ > 0).map(_.toLong).sum
+  }
+
+  /**
+   * @return work done so far.
+   */
+  def counts: ScriptCounts = ScriptCounts(rows, statements, roundTrips)
+
+  /**
+   * Releases the resources. Statements of the current batch not flushed yet are discarded.
+   */
+  def close(): Unit = statement.close()
+
+}
+
+object BatchingStatementExecutor {
+
+  private val Dml = Pattern.compile("""(?is)\s*(?:(?:--[^\n]*\n|/\*.*?\*/)\s*)*(?:insert|update|delete|merge|upsert|replace)\b""")
+
+  /**
+   * Checks whether the statement manipulates data, thus might be executed in a batch.
+   *
+   * @param sql statement to check.
+   * @return true if the statement is an insert, update, delete or merge.
+   */
+  def isDml(sql: String): Boolean = Dml.matcher(sql).lookingAt
+
+}
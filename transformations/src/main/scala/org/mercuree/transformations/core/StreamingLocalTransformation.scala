@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.io._
+import java.nio.charset.Charset
+import java.nio.file.{Files, Path}
+import javax.xml.stream.{XMLInputFactory, XMLStreamConstants, XMLStreamReader}
+
+/**
+ * A transformation which update script is never loaded into memory as a whole. Instead it is
+ * read from the source on every run and fed to the database chunk by chunk.
+ * Meant for very large seed or data scripts.
+ *
+ * @param open opens the transformation source.
+ * @param rollback rollback script loader.
+ * @param sourceSize size of the source if known without reading it.
+ * @author Alexander Valyugin
+ */
+class StreamingLocalTransformation(id: String, open: () => Reader,
+                                   updateScriptHash: String, rollbackScriptHash: String, rollback: => String,
+                                   runOnChange: Boolean, runAlways: Boolean,
+                                   runInTransaction: Boolean, dependsOn: List[String],
+                                   sourceSize: Option[Long] = None)
+  extends LocalTransformation(id, (StreamingLocalTransformation.placeholder(id), rollback),
+    updateScriptHash, rollbackScriptHash, runOnChange, runAlways, runInTransaction, dependsOn, sourceSize) {
+
+  /**
+   * Reads the update script feeding it to the given sink chunk by chunk. The hash sum is computed
+   * along the way and the source is considered modified if it doesn't match the known one.
+   *
+   * @param sink update script consumer.
+   */
+  def feedUpdateScript(sink: TextSink): Unit = {
+    val hash = HashAlgorithm.of(updateScriptHash).newSink()
+    val reader = open()
+    try {
+      StreamingLocalTransformation.parse(reader, new TrimmingSink(hash, sink), IgnoringSink)
+    } finally {
+      reader.close()
+    }
+    if (hash.result != updateScriptHash) {
+      throw TransformationException(s"Transformation [$id] has been modified while being processed")
+    }
+  }
+
+  override def updateScriptSize: Long = sourceSize getOrElse {
+    var size = 0L
+    feedUpdateScript(new TextSink {
+      override def append(chars: Array[Char], start: Int, length: Int): Unit = size += length
+    })
+    size
+  }
+
+  override def hasUpdateScriptHash(hash: String): Boolean = updateScriptHash == hash || {
+    val algorithm = HashAlgorithm.of(hash)
+    algorithm != HashAlgorithm.of(updateScriptHash) && {
+      val sink = algorithm.newSink()
+      feedUpdateScript(sink)
+      sink.result == hash
+    }
+  }
+
+}
+
+object StreamingLocalTransformation {
+
+  private val EnabledAttr = "enabled"
+  private val RunOnChangeAttr = "runOnChange"
+  private val RunInTransactionAttr = "runInTransaction"
+  private val RunAlwaysAttr = "runAlways"
+  private val DependsOnAttr = "dependsOn"
+
+  private val RootTag = "transformation"
+  private val UpdateTag = "update"
+  private val RollbackTag = "rollback"
+
+  private val BufferSize = 64 * 1024
+
+  private lazy val inputFactory = {
+    val factory = XMLInputFactory.newInstance()
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false)
+    factory.setProperty(XMLInputFactory.IS_COALESCING, false)
+    factory
+  }
+
+  /**
+   * The text stored instead of the update script, which is too large to keep.
+   *
+   * @param id transformation id.
+   * @return placeholder text.
+   */
+  def placeholder(id: String): String = s"-- [$id] update script is streamed from the source"
+
+  /**
+   * Loads the transformation from the given file. Only attributes, the update script hash sum and
+   * the rollback script are kept in memory.
+   *
+   * @param file to load from.
+   * @param id transformation id.
+   * @param hashAlgorithm to compute the scripts hash sums with.
+   * @return transformation object.
+   */
+  def fromFile(file: File, id: String, hashAlgorithm: HashAlgorithm = HashAlgorithm.Default): Transformation =
+    fromPath(file.toPath, id, hashAlgorithm)
+
+  /**
+   * Loads the transformation from the given path, which might be a jar entry.
+   *
+   * @param path to load from.
+   * @param id transformation id.
+   * @param hashAlgorithm to compute the scripts hash sums with.
+   * @return transformation object.
+   */
+  def fromPath(path: Path, id: String, hashAlgorithm: HashAlgorithm = HashAlgorithm.Default): Transformation =
+    load(opener(path), id, hashAlgorithm)
+
+  /**
+   * Creates a function opening the file for streaming.
+   *
+   * @param path to open.
+   * @return function opening the file.
+   */
+  def opener(path: Path): () => Reader = () => new SqlXmlReader(new InputStreamReader(
+    new BufferedInputStream(Files.newInputStream(path), BufferSize), Charset.defaultCharset))
+
+  /**
+   * Loads the transformation from the given source reading it once.
+   *
+   * @param open opens the transformation source; either sql or xml.
+   * @param id transformation id.
+   * @param hashAlgorithm to compute the scripts hash sums with.
+   * @return transformation object.
+   */
+  def load(open: () => Reader, id: String, hashAlgorithm: HashAlgorithm = HashAlgorithm.Default): Transformation = {
+    if (id startsWith "-") {
+      SkippedTransformation(id.substring(1))
+    } else {
+      val updateHash = hashAlgorithm.newSink()
+      val update = new TrimmingSink(updateHash)
+      val rollback = new StringSink
+      val reader = open()
+      val attributes = try {
+        parse(reader, update, new TrimmingSink(rollback))
+      } finally {
+        reader.close()
+      }
+      def toBoolean(name: String, default: Boolean = true) = attributes.get(name).map(_.trim.toBoolean).getOrElse(default)
+      val dependsOn = attributes.getOrElse(DependsOnAttr, "").split(',').map(_.trim).filter(_.nonEmpty).toList
+
+      if (!toBoolean(EnabledAttr)) {
+        DisabledTransformation(id)
+      } else if (update.isEmpty) {
+        throw TransformationException(s"Update script must be specified inside <$UpdateTag> tag")
+      } else {
+        val rollbackScript = rollback.toString
+        new StreamingLocalTransformation(id, open, updateHash.result,
+          hashAlgorithm.hash(rollbackScript), rollbackScript,
+          toBoolean(RunOnChangeAttr), toBoolean(RunAlwaysAttr, false), toBoolean(RunInTransactionAttr), dependsOn)
+      }
+    }
+  }
+
+  /**
+   * Restores the transformation which details are known upfront. The source is read only
+   * when the scripts are really needed.
+   */
+  def restore(open: () => Reader, id: String, updateScriptHash: String, rollbackScriptHash: String,
+              runOnChange: Boolean, runAlways: Boolean, runInTransaction: Boolean,
+              dependsOn: List[String], sourceSize: Option[Long] = None): StreamingLocalTransformation = {
+    def rollback = {
+      val rollback = new StringSink
+      val reader = open()
+      try {
+        parse(reader, IgnoringSink, new TrimmingSink(rollback))
+      } finally {
+        reader.close()
+      }
+      val rollbackScript = rollback.toString
+      if (!HashAlgorithm.matches(rollbackScript, rollbackScriptHash)) {
+        throw TransformationException(s"Transformation [$id] has been modified after it was cached")
+      }
+      rollbackScript
+    }
+    new StreamingLocalTransformation(id, open, updateScriptHash, rollbackScriptHash, rollback,
+      runOnChange, runAlways, runInTransaction, dependsOn, sourceSize)
+  }
+
+  /**
+   * Parses the transformation document feeding the update and rollback scripts text to the given sinks.
+   *
+   * @param source document reader.
+   * @param update update script text sink.
+   * @param rollback rollback script text sink.
+   * @return root element attributes.
+   */
+  private def parse(source: Reader, update: TextSink, rollback: TextSink): Map[String, String] = {
+    val reader = inputFactory.createXMLStreamReader(source)
+    try {
+      reader.nextTag()
+      if (reader.getLocalName != RootTag) {
+        throw TransformationException(s"Transformation root element must be <$RootTag> tag")
+      }
+      val attributes = (0 until reader.getAttributeCount).map(i =>
+        reader.getAttributeLocalName(i) -> reader.getAttributeValue(i)).toMap
+      if (attributes.get(EnabledAttr).forall(_.trim.toBoolean)) {
+        parseBody(reader, update, rollback)
+      }
+      attributes
+    } finally {
+      reader.close()
+    }
+  }
+
+  private def parseBody(reader: XMLStreamReader, update: TextSink, rollback: TextSink): Unit = {
+    var sink: Option[TextSink] = None
+    var depth = 0
+    while (reader.hasNext) {
+      reader.next() match {
+        case XMLStreamConstants.START_ELEMENT =>
+          if (sink.isEmpty) {
+            sink = reader.getLocalName match {
+              case UpdateTag => Some(update)
+              case RollbackTag => Some(rollback)
+              case _ => None
+            }
+          }
+          if (sink.isDefined) depth += 1
+        case XMLStreamConstants.END_ELEMENT =>
+          if (sink.isDefined) {
+            depth -= 1
+            if (depth == 0) sink = None
+          }
+        case XMLStreamConstants.CHARACTERS | XMLStreamConstants.CDATA | XMLStreamConstants.SPACE =>
+          sink foreach (_.append(reader.getTextCharacters, reader.getTextStart, reader.getTextLength))
+        case _ =>
+      }
+    }
+    update.finish()
+    rollback.finish()
+  }
+
+}
+
+/**
+ * Reader that turns sql commented tags like `--<update>` into plain xml tags on the fly,
+ * which is a streaming equivalent of `replace("--<", "<")`.
+ *
+ * @param in source reader.
+ */
+class SqlXmlReader(in: Reader) extends Reader {
+
+  private val buffer = new Array[Char](8192)
+
+  private var position = 0
+
+  private var limit = 0
+
+  private var eof = false
+
+  // Makes sure there are at least n chars buffered unless the end of stream is reached
+  private def available(n: Int): Int = {
+    if (limit - position < n && !eof) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position)
+      limit -= position
+      position = 0
+      while (limit < n && !eof) {
+        val read = in.read(buffer, limit, buffer.length - limit)
+        if (read == -1) eof = true else limit += read
+      }
+    }
+    limit - position
+  }
+
+  override def read(chars: Array[Char], offset: Int, length: Int): Int = {
+    var n = 0
+    while (n < length && available(3) > 0) {
+      val c = buffer(position)
+      if (c == '-' && limit - position >= 3 && buffer(position + 1) == '-' && buffer(position + 2) == '<') {
+        position += 2
+      } else {
+        chars(offset + n) = c
+        n += 1
+        position += 1
+      }
+    }
+    if (n == 0 && length > 0) -1 else n
+  }
+
+  override def close(): Unit = in.close()
+
+}
+
+/**
+ * Skips leading and trailing whitespaces of the text just like `String.trim` does.
+ *
+ * @param delegates sinks receiving the trimmed text.
+ */
+class TrimmingSink(delegates: TextSink*) extends TextSink {
+
+  private val pending = new java.lang.StringBuilder
+
+  private var started = false
+
+  /**
+   * @return true if nothing but whitespaces has been received so far.
+   */
+  def isEmpty: Boolean = !started
+
+  private def forward(chars: Array[Char], start: Int, length: Int): Unit =
+    if (length > 0) delegates foreach (_.append(chars, start, length))
+
+  override def append(chars: Array[Char], start: Int, length: Int): Unit = {
+    val end = start + length
+    var from = start
+    if (!started) {
+      while (from < end && chars(from) <= ' ') from += 1
+      started = from < end
+    }
+    var last = end - 1
+    while (last >= from && chars(last) <= ' ') last -= 1
+    if (last >= from) {
+      if (pending.length > 0) {
+        val whitespaces = pending.toString.toCharArray
+        pending.setLength(0)
+        forward(whitespaces, 0, whitespaces.length)
+      }
+      forward(chars, from, last + 1 - from)
+    }
+    if (started) pending.append(chars, last + 1 max from, end - (last + 1 max from))
+  }
+
+  override def finish(): Unit = delegates foreach (_.finish())
+
+}
+
+/**
+ * Collects the text in memory.
+ */
+class StringSink extends TextSink {
+
+  private val text = new java.lang.StringBuilder
+
+  override def append(chars: Array[Char], start: Int, length: Int): Unit = text.append(chars, start, length)
+
+  override def toString: String = text.toString
+
+}
+
+/**
+ * Ignores the text.
+ */
+object IgnoringSink extends TextSink {
+
+  override def append(chars: Array[Char], start: Int, length: Int): Unit = ()
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
+import org.slf4j.LoggerFactory
+import scala.util.control.NonFatal
+
+/**
+ * Lifecycle event of a transformations run.
+ */
+sealed trait TransformationEvent {
+
+  /**
+   * @return event name, e.g. `transformation.applied`.
+   */
+  def name: String
+
+  /**
+   * @return time the event has happened at in milliseconds since the epoch.
+   */
+  def timestamp: Long
+
+}
+
+/**
+ * Run has been started.
+ *
+ * @param node id of the process running transformations.
+ */
+case class RunStarted(node: String, timestamp: Long = System.currentTimeMillis) extends TransformationEvent {
+  def name = "run.started"
+}
+
+/**
+ * Transformation has been applied, re-applied or rolled back successfully.
+ *
+ * @param action one of the [[PlanAction]] names.
+ * @param duration nanoseconds taken.
+ * @param rows number of rows affected.
+ */
+case class TransformationApplied(id: String, action: String, duration: Long, rows: Long,
+                                 timestamp: Long = System.currentTimeMillis) extends TransformationEvent {
+  def name = "transformation.applied"
+}
+
+/**
+ * Transformation has failed.
+ *
+ * @param action one of the [[PlanAction]] names.
+ * @param duration nanoseconds taken.
+ * @param message failure message.
+ */
+case class TransformationFailed(id: String, action: String, duration: Long, message: String,
+                                timestamp: Long = System.currentTimeMillis) extends TransformationEvent {
+  def name = "transformation.failed"
+}
+
+/**
+ * Run has been finished.
+ *
+ * @param duration nanoseconds taken.
+ * @param applied number of transformations processed successfully.
+ * @param failed number of transformations failed.
+ * @param succeeded true if every transformation has been processed successfully.
+ */
+case class RunFinished(duration: Long, applied: Int, failed: Int, succeeded: Boolean,
+                       timestamp: Long = System.currentTimeMillis) extends TransformationEvent {
+  def name = "run.finished"
+}
+
+/**
+ * Consumer of the transformations events. Called on the transformations threads, so it must
+ * return at once; wrap it with [[AsyncTransformationEventSink]] otherwise.
+ */
+trait TransformationEventSink {
+
+  def publish(event: TransformationEvent): Unit
+
+}
+
+object TransformationEventSink {
+
+  /**
+   * Sink ignoring all the events.
+   */
+  object Ignoring extends TransformationEventSink {
+    override def publish(event: TransformationEvent): Unit = ()
+  }
+
+}
+
+/**
+ * Hands the events over to the given sink on a thread of its own. Publishing never blocks: when
+ * the sink falls behind and the queue is full the events are dropped and counted.
+ *
+ * @param sink to deliver the events to.
+ * @param capacity maximum number of events waiting for delivery.
+ * @author Alexander Valyugin
+ */
+class AsyncTransformationEventSink(sink: TransformationEventSink, capacity: Int = 1024)
+  extends TransformationEventSink with java.io.Closeable {
+
+  private final val logger = LoggerFactory.getLogger(getClass)
+
+  private val queue = new ArrayBlockingQueue[TransformationEvent](capacity)
+
+  private val droppedEvents = new AtomicLong
+
+  // Published but not delivered yet
+  private val pending = new AtomicLong
+
+  /**
+   * @return number of events dropped so far.
+   */
+  def dropped: Long = droppedEvents.get
+
+  override def publish(event: TransformationEvent): Unit = {
+    pending.incrementAndGet()
+    if (!queue.offer(event)) {
+      pending.decrementAndGet()
+      droppedEvents.incrementAndGet()
+    }
+  }
+
+  /**
+   * Waits for the events published so far to be delivered.
+   *
+   * @param timeout maximum milliseconds to wait.
+   * @return true if all of them have been delivered.
+   */
+  def flush(timeout: Long): Boolean = {
+    val deadline = System.currentTimeMillis + timeout
+    while (pending.get > 0 && System.currentTimeMillis < deadline) Thread.sleep(1)
+    pending.get == 0
+  }
+
+  private val thread = new Thread(new Runnable {
+    override def run(): Unit = try {
+      while (true) {
+        val event = queue.take()
+        try sink.publish(event) catch {
+          case NonFatal(e) => logger.warn(s"Unable to deliver [${event.name}] event due to:\n ${e.getMessage}")
+        } finally {
+          pending.decrementAndGet()
+        }
+      }
+    } catch {
+      case _: InterruptedException => // Closed
+    }
+  }, "transformations-events")
+
+  thread.setDaemon(true)
+  thread.start()
+
+  /**
+   * Stops delivering the events, the ones not delivered yet are discarded.
+   */
+  override def close(): Unit = thread.interrupt()
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.util.concurrent.Executors
+import scala.annotation.tailrec
+import scala.collection.immutable.TreeSet
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future}
+
+/**
+ * Dependency graph of the transformations. Every transformation depends on the previous one
+ * found in the same directory (ordering group) and on all the transformations listed in
+ * its `dependsOn` attribute. Transformations with no path between them are independent
+ * and might be processed concurrently.
+ *
+ * @param transformations in the order they should be processed sequentially.
+ * @author Alexander Valyugin
+ */
+class TransformationGraph(transformations: List[Transformation]) {
+
+  private val ordered = transformations.toVector
+
+  private val positions = transformations.map(_.id).zipWithIndex.toMap
+
+  /**
+   * Direct dependencies of every transformation.
+   */
+  val dependencies: Map[String, List[String]] = {
+    val previousInGroup = transformations.groupBy(t => TransformationGraph.group(t.id)).values flatMap { group =>
+      group.zip(group.tail) map { case (previous, next) => next.id -> previous.id }
+    }
+    val groupDependencies = previousInGroup.toMap
+    transformations.map { t =>
+      val declared = t match {
+        case local: LocalTransformation => local.dependsOn
+        case _ => Nil
+      }
+      declared filterNot positions.contains foreach { id =>
+        throw TransformationException(s"Transformation [${t.id}] depends on unknown [$id]")
+      }
+      t.id -> (groupDependencies.get(t.id).toList ++ declared).distinct
+    }.toMap
+  }
+
+  /**
+   * Transformations sorted topologically. Ties are resolved by the original order, thus the
+   * result is deterministic and equal to the original order when no dependency is violated.
+   */
+  lazy val sorted: List[Transformation] = {
+    val byId = transformations.map(t => t.id -> t).toMap
+    val dependants = dependencies.toList.flatMap { case (id, deps) => deps.map(_ -> id) }.groupBy(_._1)
+      .mapValues(_.map(_._2))
+    val inDegrees = dependencies.mapValues(_.size)
+
+    @tailrec
+    def sort(ready: TreeSet[Int], inDegrees: Map[String, Int], result: List[Transformation]): List[Transformation] =
+      if (ready.isEmpty) {
+        if (result.size != transformations.size) {
+          val cycle = inDegrees.filter(_._2 > 0).keys.toList.sortBy(positions)
+          throw TransformationException(s"Cyclic dependency found among ${cycle.mkString("[", ", ", "]")}")
+        }
+        result.reverse
+      } else {
+        val id = ordered(ready.head).id
+        val released = dependants.getOrElse(id, Nil)
+        val degrees = released.foldLeft(inDegrees)((degrees, d) => degrees.updated(d, degrees(d) - 1))
+        sort(ready.tail ++ released.filter(degrees(_) == 0).map(positions), degrees, byId(id) :: result)
+      }
+
+    sort(TreeSet(inDegrees.filter(_._2 == 0).keys.map(positions).toSeq: _*), inDegrees, Nil)
+  }
+
+  /**
+   * Processes every transformation with the given function once all its dependencies have been processed.
+   * If the function throws, the dependants of the transformation are not processed at all. A function
+   * that records a failure and returns normally, as [[Transformations]] do unless set to fail fast,
+   * lets the dependants be processed just like they would be in a sequential run.
+   *
+   * @param parallelism maximum number of transformations processed at the same time.
+   * @param f processing function.
+   */
+  def execute(parallelism: Int)(f: Transformation => Unit): Unit = {
+    if (parallelism <= 1) {
+      sorted foreach f
+    } else {
+      val executor = Executors.newFixedThreadPool(parallelism)
+      implicit val context = ExecutionContext.fromExecutorService(executor)
+      try {
+        val futures = sorted.foldLeft(Map[String, Future[Unit]]()) { (futures, t) =>
+          val dependenciesDone = Future.sequence(dependencies(t.id) map futures)
+          futures + (t.id -> dependenciesDone.map(_ => f(t)))
+        }
+        // Wait for everything to settle before reporting the first failure
+        sorted foreach (t => Await.ready(futures(t.id), Duration.Inf))
+        sorted foreach (t => futures(t.id).value.get.get)
+      } finally {
+        executor.shutdown()
+      }
+    }
+  }
+
+}
+
+object TransformationGraph {
+
+  /**
+   * Ordering group of the transformation is the directory it is located in.
+   *
+   * @param id transformation id.
+   * @return the group name.
+   */
+  def group(id: String): String = (id.lastIndexOf('/') max id.lastIndexOf(java.io.File.separatorChar)) match {
+    case -1 => ""
+    case i => id.substring(0, i)
+  }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+/**
+ * A single action done with a transformation. History records are never updated or deleted.
+ *
+ * @param id transformation id.
+ * @param action one of the [[PlanAction]] names.
+ * @param startedAt start time in milliseconds since the epoch.
+ * @param finishedAt end time in milliseconds since the epoch.
+ * @param duration nanoseconds taken.
+ * @param rows number of rows affected by the scripts as reported by the database.
+ * @param node id of the process done the action.
+ * @param outcome either [[HistoryRecord.Success]] or [[HistoryRecord.Failure]].
+ */
+case class HistoryRecord(id: String, action: String, startedAt: Long, finishedAt: Long, duration: Long,
+                         rows: Long, node: String, outcome: String) {
+
+  def succeeded: Boolean = outcome == HistoryRecord.Success
+
+}
+
+object HistoryRecord {
+
+  final val Success = "success"
+  final val Failure = "failure"
+
+}
+
+/**
+ * Transformation that has taken notably longer than it used to.
+ *
+ * @param id transformation id.
+ * @param latest the latest successful run.
+ * @param usualDuration average duration of the previous successful runs in nanoseconds.
+ */
+case class DurationRegression(id: String, latest: HistoryRecord, usualDuration: Long) {
+
+  def factor: Double = latest.duration.toDouble / (usualDuration max 1)
+
+}
+
+/**
+ * Queries over the execution history.
+ *
+ * @author Alexander Valyugin
+ */
+object TransformationHistory {
+
+  import HistoryRecord.Success
+
+  /**
+   * Finds out the slowest successful runs.
+   *
+   * @param records execution history.
+   * @param n maximum number of records.
+   * @return records, the slowest first.
+   */
+  def slowest(records: Seq[HistoryRecord], n: Int): Seq[HistoryRecord] =
+    records.filter(_.succeeded).sortBy(-_.duration).take(n)
+
+  /**
+   * Finds out the transformations which latest successful run of an action has taken longer than
+   * the average of the previous runs of the same action multiplied by the given factor.
+   *
+   * @param records execution history.
+   * @param factor slowdown considered a regression.
+   * @return regressions, the biggest first.
+   */
+  def regressions(records: Seq[HistoryRecord], factor: Double): Seq[DurationRegression] = {
+    val runs = records.filter(_.succeeded).groupBy(r => (r.id, r.action)).values
+    val found = runs flatMap { group =>
+      group.sortBy(_.startedAt) match {
+        case previous :+ latest if previous.nonEmpty =>
+          val usual = previous.map(_.duration).sum / previous.size
+          if (latest.duration > usual * factor) Some(DurationRegression(latest.id, latest, usual)) else None
+        case _ => None
+      }
+    }
+    found.toList.sortBy(-_.factor)
+  }
+
+  /**
+   * Builds the query finding the [[regressions]] within the database, so the history is not read as a whole.
+   * Takes the factor as the only parameter and returns the columns of the latest run in the history table
+   * order followed by the usual duration. Runs of the same action started at the same millisecond
+   * yield a row each.
+   *
+   * @param table quoted name of the history table.
+   * @return sql query.
+   */
+  def regressionsQuery(table: String): String =
+    """select h."name", h."action", h."started_at", h."finished_at", h."duration_nanos", h."rows_affected", """ +
+      """h."node", h."outcome", (s."total" - h."duration_nanos") / (s."runs" - 1) """ +
+      s"""from $table h join (select "name", "action", count(*) "runs", sum("duration_nanos") "total", """ +
+      s"""max("started_at") "latest" from $table where "outcome" = '$Success' group by "name", "action" """ +
+      """having count(*) > 1) s on h."name" = s."name" and h."action" = s."action" and h."started_at" = s."latest" """ +
+      s"""where h."outcome" = '$Success' and h."duration_nanos" > (s."total" - h."duration_nanos") / (s."runs" - 1) * ?"""
+
+  /**
+   * Turns the rows found by the [[regressionsQuery]] into regressions, taking a single row per action.
+   *
+   * @param rows latest runs along with the usual durations.
+   * @return regressions, the biggest first.
+   */
+  def regressions(rows: Seq[(HistoryRecord, Long)]): Seq[DurationRegression] = {
+    val latest = rows.groupBy(it => (it._1.id, it._1.action)).values.map(_.head)
+    latest.map { case (record, usual) => DurationRegression(record.id, record, usual) }.toList.sortBy(-_.factor)
+  }
+
+}
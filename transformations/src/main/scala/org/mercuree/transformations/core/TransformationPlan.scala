@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+/**
+ * What is going to be done with a transformation.
+ */
+object PlanAction extends Enumeration {
+  /**
+   * Transformation is applied for the first time.
+   */
+  val Apply = Value("apply")
+  /**
+   * Stored transformation is rolled back and applied again.
+   */
+  val Reapply = Value("reapply")
+  /**
+   * Only the stored hash sums and scripts are updated, nothing is run.
+   */
+  val UpdateHash = Value("update hash")
+  /**
+   * Stored transformation is rolled back and removed.
+   */
+  val Rollback = Value("rollback")
+  /**
+   * Nothing is done.
+   */
+  val Skip = Value("skip")
+}
+
+/**
+ * A single step of the plan.
+ *
+ * @param id transformation id.
+ * @param action to be done.
+ * @param reason human readable explanation of the action.
+ * @param scriptSize estimated number of characters of the scripts to be run.
+ */
+case class PlanStep(id: String, action: PlanAction.Value, reason: String, scriptSize: Long = 0)
+
+/**
+ * Describes what a run would do without doing it.
+ *
+ * @param steps in the order they are executed when transformations are applied one by one.
+ * @author Alexander Valyugin
+ */
+case class TransformationPlan(steps: List[PlanStep]) {
+
+  /**
+   * @return steps that change the database.
+   */
+  def changes: List[PlanStep] = steps filter (_.action != PlanAction.Skip)
+
+  /**
+   * @return true if the database is up to date.
+   */
+  def isEmpty: Boolean = changes.isEmpty
+
+  /**
+   * @return estimated number of characters of all the scripts to be run.
+   */
+  def scriptSize: Long = changes.map(_.scriptSize).sum
+
+  override def toString: String =
+    if (isEmpty) "Nothing to transform"
+    else changes.map(step => s"${step.action} [${step.id}] ${step.reason}").mkString("\n")
+
+}
@@ -17,11 +17,16 @@
 package org.mercuree.transformations.core
 
 import scala.io.Source
+import java.lang.management.ManagementFactory
+import java.lang.ref.SoftReference
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
 import java.net.URL
-import java.security.MessageDigest
 import org.slf4j.{Logger, LoggerFactory}
 import scala.language.implicitConversions
 import java.io.File
+import java.nio.charset.Charset
+import java.nio.file.{Files, Path}
 import scala.util.Try
 import scala.xml.NodeSeq
 
@@ -36,22 +41,80 @@ trait Transformation {
  * Transformation with parsed update and rollback scripts and their hash sum.
  */
 trait ScriptedTransformation extends Transformation {
-  val updateScript: String
+  def updateScript: String
   val updateScriptHash: String
-  val rollbackScript: String
+  def rollbackScript: String
   val rollbackScriptHash: String
 }
 
 /**
- * A transformation that has been already applied to a database.
+ * A transformation that has been already applied to a database. Scripts are loaded lazily
+ * and separately, so a rollback never fetches the update script.
+ *
+ * @param update update script loader.
+ * @param rollback rollback script loader.
  */
-case class StoredTransformation(id: String, updateScript: String, updateScriptHash: String,
-                                rollbackScript: String, rollbackScriptHash: String) extends ScriptedTransformation
+class StoredTransformation(val id: String, update: => String, val updateScriptHash: String,
+                           rollback: => String, val rollbackScriptHash: String) extends ScriptedTransformation {
 
-object StoredTransformation {
-  def fromTuple: ((String, String, String, String, String)) => StoredTransformation = {
-    case Tuple5(x1, x2, x3, x4, x5) => apply(x1, x2, x3, x4, x5)
+  lazy val updateScript: String = update
+
+  lazy val rollbackScript: String = rollback
+
+  override def equals(other: Any): Boolean = other match {
+    case that: StoredTransformation => id == that.id &&
+      updateScriptHash == that.updateScriptHash && rollbackScriptHash == that.rollbackScriptHash
+    case _ => false
   }
+
+  override def hashCode: Int = (id, updateScriptHash, rollbackScriptHash).hashCode
+
+  override def toString: String = s"StoredTransformation($id)"
+}
+
+object StoredTransformation {
+  def apply(id: String, updateScript: String, updateScriptHash: String,
+            rollbackScript: String, rollbackScriptHash: String): StoredTransformation =
+    new StoredTransformation(id, updateScript, updateScriptHash, rollbackScript, rollbackScriptHash)
+}
+
+/**
+ * Hash sums of a transformation that has been already applied to a database.
+ * Lightweight counterpart of the [[StoredTransformation]] without the scripts, only the rollback script size is known.
+ */
+case class StoredTransformationHash(id: String, updateScriptHash: String, rollbackScriptHash: String,
+                                    rollbackScriptSize: Long = 0) extends Transformation
+
+/**
+ * In-memory snapshot of the stored transformations hash sums.
+ * Allows to find out which transformations are new, changed or missing without querying the database.
+ *
+ * @param hashes stored transformations hash sums in the order they have been read.
+ */
+class StoredTransformationIndex(hashes: Seq[StoredTransformationHash]) {
+
+  private val byId = hashes.map(hash => hash.id -> hash).toMap
+
+  /**
+   * Finds the stored transformation hash sums by the transformation id.
+   *
+   * @param id to look for.
+   * @return stored transformation hash sums option.
+   */
+  def get(id: String): Option[StoredTransformationHash] = byId.get(id)
+
+  /**
+   * Finds all stored transformations except those which ids is found in the set.
+   *
+   * @param ids set of ids.
+   * @return sequence of stored transformations hash sums.
+   */
+  def allExcept(ids: Set[String]): Seq[StoredTransformationHash] = hashes.filterNot(hash => ids(hash.id))
+
+  /**
+   * @return true if nothing has been stored yet.
+   */
+  def isEmpty: Boolean = hashes.isEmpty
 }
 
 /**
@@ -65,30 +128,105 @@ case class SkippedTransformation(id: String) extends Transformation
 case class DisabledTransformation(id: String) extends Transformation
 
 /**
- * A user requested transformation to apply.
+ * A user requested transformation to apply. Hash sums are known upfront while the scripts
+ * are loaded lazily, only when they are really needed. Loaded scripts are softly referenced
+ * and dropped by [[release]], so the loader might be called again.
+ *
+ * @param scripts update and rollback scripts loader.
+ * @param sourceSize size of the source the scripts are loaded from, if known without loading them.
  */
-case class LocalTransformation(id: String, updateScript: String, rollbackScript: String,
-                               runOnChange: Boolean = true, runAlways: Boolean = false,
-                               runInTransaction: Boolean = true) extends ScriptedTransformation {
-  val updateScriptHash = md5(updateScript)
-  val rollbackScriptHash = md5(rollbackScript)
+class LocalTransformation(val id: String, scripts: => (String, String),
+                          val updateScriptHash: String, val rollbackScriptHash: String,
+                          val runOnChange: Boolean, val runAlways: Boolean,
+                          val runInTransaction: Boolean, val dependsOn: List[String],
+                          sourceSize: Option[Long] = None) extends ScriptedTransformation {
+
+  @volatile private var cache = new SoftReference[(String, String)](null)
+
+  private def loaded: (String, String) = {
+    val cached = cache.get
+    if (cached != null) cached else {
+      val loaded = scripts
+      cache = new SoftReference(loaded)
+      loaded
+    }
+  }
+
+  /**
+   * Drops the scripts loaded so far, they are loaded again when needed.
+   */
+  def release(): Unit = cache.clear()
+
+  def updateScript: String = loaded._1
+
+  def rollbackScript: String = loaded._2
+
+  override def equals(other: Any): Boolean = other match {
+    case that: LocalTransformation => id == that.id &&
+      updateScriptHash == that.updateScriptHash && rollbackScriptHash == that.rollbackScriptHash &&
+      runOnChange == that.runOnChange && runAlways == that.runAlways &&
+      runInTransaction == that.runInTransaction && dependsOn == that.dependsOn
+    case _ => false
+  }
+
+  override def hashCode: Int = (id, updateScriptHash, rollbackScriptHash).hashCode
+
+  /**
+   * Checks whether the update script has the given hash sum, which might be computed with another algorithm.
+   *
+   * @param hash formatted hash sum.
+   * @return true if the update script has such a hash sum.
+   */
+  def hasUpdateScriptHash(hash: String): Boolean =
+    updateScriptHash == hash || HashAlgorithm.matches(updateScript, hash)
+
+  /**
+   * Checks whether the rollback script has the given hash sum, which might be computed with another algorithm.
+   *
+   * @param hash formatted hash sum.
+   * @return true if the rollback script has such a hash sum.
+   */
+  def hasRollbackScriptHash(hash: String): Boolean =
+    rollbackScriptHash == hash || HashAlgorithm.matches(rollbackScript, hash)
 
-  private def md5(text: String) = MessageDigest.getInstance("MD5").digest(text.getBytes).map("%02x".format(_)).mkString
+  /**
+   * @return number of characters of the update script; estimated by the source size when known,
+   *         so the script is not loaded just to be measured.
+   */
+  def updateScriptSize: Long = sourceSize getOrElse updateScript.length.toLong
+
+  override def toString: String = s"LocalTransformation($id)"
 }
 
 object LocalTransformation {
 
+  def apply(id: String, updateScript: String, rollbackScript: String,
+            runOnChange: Boolean = true, runAlways: Boolean = false,
+            runInTransaction: Boolean = true, dependsOn: List[String] = Nil,
+            hashAlgorithm: HashAlgorithm = HashAlgorithm.Default): LocalTransformation =
+    new LocalTransformation(id, (updateScript, rollbackScript),
+      hashAlgorithm.hash(updateScript), hashAlgorithm.hash(rollbackScript),
+      runOnChange, runAlways, runInTransaction, dependsOn)
+
+  def unapply(local: LocalTransformation): Option[(String, String, String, Boolean, Boolean, Boolean, List[String])] =
+    Some((local.id, local.updateScript, local.rollbackScript,
+      local.runOnChange, local.runAlways, local.runInTransaction, local.dependsOn))
+
   //  private val IdAttr = "@id" TODO: need it?
   private val EnabledAttr = "@enabled"
   private val RunOnChangeAttr = "@runOnChange"
   private val RunInTransactionAttr = "@runInTransaction" // TODO: what to do with rollback? Do we need it at all?
   private val RunAlwaysAttr = "@runAlways"
+  private val DependsOnAttr = "@dependsOn"
+  private val ChunkTableAttr = "@chunkTable"
+  private val ChunkKeyAttr = "@chunkKey"
+  private val ChunkSizeAttr = "@chunkSize"
+  private val ChunkThrottleAttr = "@chunkThrottle"
 
   private val RootTag = "transformation"
   private val UpdateTag = "update"
   private val RollbackTag = "rollback"
   // TODO: private val AuthorAttr = "@author" ?
-  // TODO: private val DependsOn = "@dependsOn" do we need it?
 
   implicit def localToStored(local: LocalTransformation) = StoredTransformation(
     local.id, local.updateScript, local.updateScriptHash, local.rollbackScript, local.rollbackScriptHash)
@@ -98,11 +236,25 @@ object LocalTransformation {
    *
    * @param file to load from.
    * @param id transformation id.
+   * @param hashAlgorithm to compute the scripts hash sums with.
    * @return transformation object.
    */
-  def fromFile(file: File, id: String): Transformation = {
+  def fromFile(file: File, id: String, hashAlgorithm: HashAlgorithm = HashAlgorithm.Default): Transformation = {
     val source = Source.fromFile(file).mkString
-    parseSQL(source, id)
+    parseSQL(source, id, hashAlgorithm)
+  }
+
+  /**
+   * Loads the transformation from the given path, which might be a jar entry.
+   *
+   * @param path to load from.
+   * @param id transformation id.
+   * @param hashAlgorithm to compute the scripts hash sums with.
+   * @return transformation object.
+   */
+  def fromPath(path: Path, id: String, hashAlgorithm: HashAlgorithm = HashAlgorithm.Default): Transformation = {
+    val source = new String(Files.readAllBytes(path), Charset.defaultCharset)
+    parseSQL(source, id, hashAlgorithm)
   }
 
   /**
@@ -110,11 +262,12 @@ object LocalTransformation {
    *
    * @param url file path.
    * @param id transformation id.
+   * @param hashAlgorithm to compute the scripts hash sums with.
    * @return transformation object.
    */
-  def fromURL(url: URL, id: String): Transformation = {
+  def fromURL(url: URL, id: String, hashAlgorithm: HashAlgorithm = HashAlgorithm.Default): Transformation = {
     val source = Source.fromURL(url).mkString
-    parseSQL(source, id)
+    parseSQL(source, id, hashAlgorithm)
   }
 
   /**
@@ -132,11 +285,12 @@ object LocalTransformation {
    *
    * @param sql sql text.
    * @param id transformation id.
+   * @param hashAlgorithm to compute the scripts hash sums with.
    * @return transformation object.
    */
-  def parseSQL(sql: String, id: String): Transformation = {
+  def parseSQL(sql: String, id: String, hashAlgorithm: HashAlgorithm = HashAlgorithm.Default): Transformation = {
     val xml = scala.xml.XML.loadString(sql.replace("--<", "<"))
-    parseXML(xml, id)
+    parseXML(xml, id, hashAlgorithm)
   }
 
   /**
@@ -144,9 +298,11 @@ object LocalTransformation {
    *
    * @param xml xml document.
    * @param id transformation id.
+   * @param hashAlgorithm to compute the scripts hash sums with.
    * @return transformation object.
    */
-  def parseXML(xml: scala.xml.Elem, id: String): Transformation = {
+  def parseXML(xml: scala.xml.Elem, id: String,
+               hashAlgorithm: HashAlgorithm = HashAlgorithm.Default): Transformation = {
     if (xml.label != RootTag) {
       throw TransformationException(s"Transformation root element must be <$RootTag> tag")
     }
@@ -157,6 +313,8 @@ object LocalTransformation {
     lazy val runOnChange = toBoolean(xml \ RunOnChangeAttr)
     lazy val runInTransaction = toBoolean(xml \ RunInTransactionAttr)
     lazy val runAlways = toBoolean(xml \ RunAlwaysAttr, false)
+    // Comma separated list of transformation ids
+    lazy val dependsOn = (xml \ DependsOnAttr).text.split(',').map(_.trim).filter(_.nonEmpty).toList
 
     // Update script is mandatory
     lazy val sqlUpdate = (xml \\ UpdateTag).text.trim match {
@@ -167,12 +325,24 @@ object LocalTransformation {
     // Rollback script is not mandatory
     lazy val sqlRollback = (xml \\ RollbackTag).text.trim
 
+    // Chunked data transformation attributes
+    lazy val chunkTable = (xml \ ChunkTableAttr).text.trim
+    def toLong(seq: NodeSeq, default: Long) = seq.map(_.text.trim.toLong).headOption.getOrElse(default)
+
     if (id startsWith "-")
       SkippedTransformation(id.substring(1))
     else if (!enabled)
       DisabledTransformation(id)
+    else if (chunkTable.nonEmpty)
+      new ChunkedLocalTransformation(id, (sqlUpdate, sqlRollback),
+        hashAlgorithm.hash(sqlUpdate), hashAlgorithm.hash(sqlRollback), runOnChange, runAlways, dependsOn,
+        chunkTable, (xml \ ChunkKeyAttr).text.trim match {
+          case "" => throw TransformationException(s"Key column must be specified in ${ChunkKeyAttr.tail} attribute")
+          case column => column
+        }, toLong(xml \ ChunkSizeAttr, 1000), toLong(xml \ ChunkThrottleAttr, 0))
     else
-      LocalTransformation(id, sqlUpdate, sqlRollback, runOnChange, runAlways, runInTransaction)
+      LocalTransformation(id, sqlUpdate, sqlRollback, runOnChange, runAlways, runInTransaction, dependsOn,
+        hashAlgorithm)
   }
 }
 
@@ -181,14 +351,13 @@ case class TransformationException(message: String) extends RuntimeException(mes
 /**
  * Stored transformations component.
  */
-trait StoredTransformations {
+trait StoredTransformations extends Metered {
   /**
-   * Finds all stored transformations except those which ids is found in the set.
+   * Reads the hash sums of all stored transformations at once. Scripts are not fetched.
    *
-   * @param ids set of ids.
-   * @return sequence of stored transformations.
+   * @return sequence of stored transformations hash sums.
    */
-  def findAllExcept(ids: Set[String]): Seq[StoredTransformation]
+  def findAllHashes(): Seq[StoredTransformationHash]
 
   /**
    * Finds the stored transformation by it's id.
@@ -205,6 +374,13 @@ trait StoredTransformations {
    */
   def insert(transformation: LocalTransformation)
 
+  /**
+   * Inserts the local transformations to the underlying storage at once.
+   *
+   * @param transformations to insert.
+   */
+  def insertAll(transformations: Seq[LocalTransformation]): Unit = transformations foreach insert
+
   /**
    * Deletes the transformation from the underlying storage.
    *
@@ -220,6 +396,100 @@ trait StoredTransformations {
    */
   def update(transformation: LocalTransformation)
 
+  /**
+   * Finds the smallest and the largest values of the numeric key column of the table.
+   *
+   * @param table to look in.
+   * @param key column name.
+   * @return key range or none if the table is empty.
+   */
+  def findKeyRange(table: String, key: String): Option[(Long, Long)]
+
+  /**
+   * Finds the checkpoint of the chunked transformation.
+   *
+   * @param id transformation id.
+   * @return checkpoint option.
+   */
+  def findCheckpoint(id: String): Option[Checkpoint]
+
+  /**
+   * Saves the checkpoint replacing the previous one if any.
+   *
+   * @param checkpoint to save.
+   */
+  def saveCheckpoint(checkpoint: Checkpoint)
+
+  /**
+   * Deletes the checkpoint of the chunked transformation if any.
+   *
+   * @param id transformation id.
+   */
+  def deleteCheckpoint(id: String)
+
+  /**
+   * Finds the checkpoint left by the previous run if it has failed.
+   *
+   * @return checkpoint option.
+   */
+  def findRunCheckpoint(): Option[RunCheckpoint]
+
+  /**
+   * Saves the run checkpoint replacing the previous one if any.
+   *
+   * @param checkpoint to save.
+   */
+  def saveRunCheckpoint(checkpoint: RunCheckpoint)
+
+  /**
+   * Deletes the run checkpoint if any.
+   */
+  def deleteRunCheckpoint()
+
+  /**
+   * Appends the records to the execution history at once.
+   *
+   * @param records to append.
+   */
+  def saveHistory(records: Seq[HistoryRecord])
+
+  /**
+   * Reads the whole execution history.
+   *
+   * @return history records.
+   */
+  def findHistory(): Seq[HistoryRecord]
+
+  /**
+   * Finds out the slowest successful runs recorded in the execution history. Storages querying
+   * a database are expected to do it without reading the whole history.
+   *
+   * @param n maximum number of records.
+   * @return history records, the slowest first.
+   */
+  def findSlowestHistory(n: Int): Seq[HistoryRecord] = TransformationHistory.slowest(findHistory(), n)
+
+  /**
+   * Finds out the transformations which latest successful run of an action has taken longer than
+   * the average of the previous runs multiplied by the given factor, see [[TransformationHistory.regressions]].
+   *
+   * @param factor slowdown considered a regression.
+   * @return regressions, the biggest first.
+   */
+  def findDurationRegressions(factor: Double): Seq[DurationRegression] =
+    TransformationHistory.regressions(findHistory(), factor)
+
+  /**
+   * Counts the work done by the database applying the scripts of the given function in the current thread.
+   *
+   * @param f function applying scripts.
+   * @return rows affected, statements executed and round trips made; all zeros unless supported.
+   */
+  def countingScripts(f: => Unit): ScriptCounts = {
+    f
+    ScriptCounts()
+  }
+
   /**
    * Applies the given script to the underlying database.
    *
@@ -227,6 +497,35 @@ trait StoredTransformations {
    */
   def applyScript(script: String)
 
+  /**
+   * Applies the script which text is fed chunk by chunk by the given function,
+   * so the script doesn't have to be kept in memory as a whole.
+   *
+   * @param feed function feeding the script text to the sink given.
+   */
+  def applyStreamedScript(feed: TextSink => Unit): Unit = {
+    val script = new StringSink
+    feed(script)
+    applyScript(script.toString)
+  }
+
+  /**
+   * Applies the script statement by statement, each one on its own. Used for the scripts not run
+   * in transaction, so that a partially applied script could be resumed.
+   *
+   * @param feed function feeding the script text to the sink given.
+   * @param skip number of leading statements already executed.
+   * @param progress called with the number of statements executed so far after every statement.
+   */
+  def applyStatements(feed: TextSink => Unit, skip: Long, progress: Long => Unit): Unit = {
+    val script = new StringSink
+    feed(script)
+    SqlStatementSplitter.split(script.toString).zipWithIndex drop skip.toInt foreach { case (statement, i) =>
+      applyScript(statement)
+      progress(i + 1)
+    }
+  }
+
   /**
    * TODO: scaladoc
    * @param f
@@ -242,12 +541,40 @@ trait StoredTransformations {
    * @return
    */
   def transactional[A](f: => A): A
+
+  /**
+   * Runs the function that only reads the stored transformations. Unlike [[transform]] it must not
+   * change the database, e.g. missing storage is treated as empty rather than created.
+   *
+   * @param f function to run.
+   * @tparam A result type.
+   * @return the function result.
+   */
+  def inspect[A](f: => A): A = transform(f)
+
+  /**
+   * Runs the function exclusively among all the processes sharing the storage, e.g. cluster nodes
+   * starting at the same time. Waits for the others to finish first.
+   *
+   * @param f function to run, given true if it has waited for others.
+   * @tparam A result type.
+   * @return the function result.
+   */
+  def exclusively[A](f: Boolean => A): A = f(false)
+
+  /**
+   * Makes sure the function run by [[exclusively]] still runs exclusively, so that nothing is changed
+   * once another process might have taken over.
+   *
+   * @throws TransformationException if the exclusive access has been lost.
+   */
+  def ensureExclusive(): Unit = {}
 }
 
 /**
  * Local transformations contract.
  */
-trait LocalTransformations {
+trait LocalTransformations extends Metered {
   /**
    * Returns the list of user requested transformations to be applied.
    * Transformations are guaranteed to be applied in the order they follow in the list.
@@ -266,54 +593,244 @@ trait Transformations {this: LocalTransformations with StoredTransformations =>
 
   private final val logger = LoggerFactory.getLogger(getClass)
 
-  import System.{currentTimeMillis => currentTime}
+  import TransformationsMetrics._
+
+  /**
+   * Whether to stop the run at the first failure. Otherwise failures are logged and the rest of
+   * the transformations are processed anyway, including the ones depending on the failed transformation.
+   */
+  val failFast: Boolean = false
+
+  /**
+   * Id of this process written to the execution history.
+   */
+  val nodeId: String = ManagementFactory.getRuntimeMXBean.getName
+
+  /**
+   * Consumer of the run lifecycle events. Must not block, see [[AsyncTransformationEventSink]].
+   */
+  val eventSink: TransformationEventSink = TransformationEventSink.Ignoring
+
+  /**
+   * Id of the last transformation of the baseline. A fresh database gets all the transformations
+   * up to this one applied at once, in a single transaction, and only then the rest one by one.
+   * Failure of the baseline fails the whole run.
+   */
+  val baseline: Option[String] = None
+
+  private def publish(event: TransformationEvent): Unit = try eventSink.publish(event) catch {
+    case e: Exception => logger.warn(s"Unable to publish [${event.name}] event due to:\n ${e.getMessage}")
+  }
+
+  // Outcomes of the current run
+  private val appliedCount = new AtomicInteger
+
+  private val failedCount = new AtomicInteger
+
+  // History records are kept until the end of the run and then written at once
+  private val pendingHistory = new ConcurrentLinkedQueue[HistoryRecord]
+
+  // Transformations failed during the run along with the reason
+  private val failures = new ConcurrentLinkedQueue[(String, String)]
+
+  /**
+   * Measures the processing of the transformation recording it both as the given kind of work
+   * and as the transformation own time. Failures are measured as well. Every action but skip
+   * is measured, added to the execution history and published as an event.
+   *
+   * @return elapsed milliseconds and the work done by the database.
+   */
+  private def profile(name: String, id: String, action: PlanAction.Value)(f: => Unit): (Long, ScriptCounts) = {
+    val startedAt = System.currentTimeMillis
+    val started = System.nanoTime
+    var rows = 0L
+    var outcome = HistoryRecord.Failure
+    var message = ""
+    try {
+      val counts = countingScripts(f)
+      rows = counts.rows
+      outcome = HistoryRecord.Success
+      ((System.nanoTime - started) / 1000000, counts)
+    } catch {
+      case e: Exception =>
+        message = String.valueOf(e.getMessage)
+        throw e
+    } finally {
+      val elapsed = System.nanoTime - started
+      if (action != PlanAction.Skip) {
+        metrics.record(name, elapsed)
+        metrics.recordTransformation(id, elapsed)
+        pendingHistory.add(HistoryRecord(id, action.toString, startedAt, startedAt + elapsed / 1000000, elapsed,
+          rows, nodeId, outcome))
+        if (outcome == HistoryRecord.Success) {
+          appliedCount.incrementAndGet()
+          publish(TransformationApplied(id, action.toString, elapsed, rows))
+        } else {
+          failedCount.incrementAndGet()
+          publish(TransformationFailed(id, action.toString, elapsed, message))
+        }
+      }
+    }
+  }
+
+  /**
+   * Logs the transformation processed along with the round trips saved by batching its statements.
+   */
+  private def logProcessed(id: String, profiled: (Long, ScriptCounts)): Unit = {
+    val (elapsed, counts) = profiled
+    // TODO: instead of miliseconds consider human readable time like
+    // TODO: 245ms, 2342ms, 11s, 1m 12s, 13m, 1h 5m
+    val work = if (counts.statements <= 1) "" else s", ${counts.statements} statements in ${counts.roundTrips} " +
+      s"round trips (${counts.statements - counts.roundTrips} saved)"
+    logger.info(s"[$id] processed in $elapsed ms$work")
+  }
+
+  private def flushHistory(): Unit = {
+    val records = Iterator.continually(pendingHistory.poll()).takeWhile(_ != null).toList
+    if (records.nonEmpty) try {
+      transform(saveHistory(records))
+    } catch {
+      case e: Exception => logger.warn(s"Unable to save ${records.size} history record(s) due to:\n ${e.getMessage}")
+    }
+  }
 
-  private def profile[R](f: => R, t: Long = currentTime) = { f; currentTime - t }
+  private final val NotRunOnChange = "update script has been modified, but is set not to run on change!"
 
-  private def apply(local: LocalTransformation): Unit = transactional(local.runInTransaction) {
-    val storedOption = findById(local.id)
+  /**
+   * Decides what to do with the local transformation. Hash sums are compared only,
+   * unless they have been computed with different algorithms.
+   */
+  private def decide(local: LocalTransformation, storedOption: Option[StoredTransformationHash]): PlanStep = {
+    import PlanAction._
     storedOption match {
       case Some(stored) =>
-        def rollbackAndUpdate(): Unit = {
-          applyScript(stored.rollbackScript)
-          applyScript(local.updateScript)
-          update(local)
-        }
+        def reapply(reason: String) =
+          PlanStep(local.id, Reapply, reason, stored.rollbackScriptSize + local.updateScriptSize)
 
         if (local.runAlways) {
-          logger.info(s"> [${local.id}] is set to run always")
-          rollbackAndUpdate
-        } else if (local.updateScriptHash != stored.updateScriptHash) {
-          logger.info(s"> [${local.id}] update script has been modified")
-          if (local.runOnChange) {
-            rollbackAndUpdate
-          } else {
-            logger.warn(s"> [${local.id}] is set not to run on change!")
-          }
-        } else if (local.rollbackScriptHash != stored.rollbackScriptHash) {
-          logger.info(s"> [${local.id}] rollback script has been modified")
-          update(local)
+          reapply("is set to run always")
+        } else if (!local.hasUpdateScriptHash(stored.updateScriptHash)) {
+          if (local.runOnChange) reapply("update script has been modified") else PlanStep(local.id, Skip, NotRunOnChange)
+        } else if (!local.hasRollbackScriptHash(stored.rollbackScriptHash)) {
+          PlanStep(local.id, UpdateHash, "rollback script has been modified")
+        } else if (local.updateScriptHash != stored.updateScriptHash ||
+          local.rollbackScriptHash != stored.rollbackScriptHash) {
+          // Scripts are the same but hashed with another algorithm
+          PlanStep(local.id, UpdateHash, s"hash sums migrated to ${HashAlgorithm.of(local.updateScriptHash)}")
+        } else {
+          PlanStep(local.id, Skip, "is up to date")
         }
       case None =>
-        logger.info(s"> [${local.id}] is ran for the first time")
-        applyScript(local.updateScript)
-        insert(local)
+        PlanStep(local.id, Apply, "is ran for the first time", local.updateScriptSize)
     }
   }
 
-  protected def tryApply(local: LocalTransformation): Unit = {
+  private def apply(local: LocalTransformation, step: PlanStep): Unit = {
+    step.action match {
+      case PlanAction.Skip =>
+        if (step.reason == NotRunOnChange) logger.warn(s"> [${local.id}] ${step.reason}")
+      case action =>
+        local match {
+          case chunked: ChunkedLocalTransformation =>
+            logger.info(s"> [${local.id}] ${step.reason}")
+            applyChunked(chunked, action)
+          case _ if !local.runInTransaction && action != PlanAction.UpdateHash =>
+            logger.info(s"> [${local.id}] ${step.reason}")
+            applyStatementwise(local, action)
+          case _ => transactional(local.runInTransaction) {
+            logger.info(s"> [${local.id}] ${step.reason}")
+            if (action == PlanAction.Reapply) {
+              // Only now the full stored scripts are really needed
+              findById(local.id) foreach (it => applyScript(it.rollbackScript))
+            }
+            if (action != PlanAction.UpdateHash) applyUpdate(local)
+            if (action == PlanAction.Apply) insert(local) else update(local)
+          }
+        }
+        action match {
+          case PlanAction.Apply => metrics.increment(Applied)
+          case PlanAction.Reapply => metrics.increment(Reapplied)
+          case _ =>
+        }
+    }
+  }
+
+  /**
+   * Applies the chunked transformation range by range, each range in its own transaction along with
+   * the checkpoint. A checkpoint of the same update script means it is resumed after a failure,
+   * thus the rollback has been already done.
+   */
+  private def applyChunked(local: ChunkedLocalTransformation, action: PlanAction.Value): Unit = {
+    val checkpoint = findCheckpoint(local.id) filter (_.updateScriptHash == local.updateScriptHash)
+    checkpoint foreach (it => logger.info(s"> [${local.id}] resumed from ${local.key} ${it.position}"))
+    if (action == PlanAction.Reapply && checkpoint.isEmpty) transactional {
+      findById(local.id) foreach (it => applyScript(it.rollbackScript))
+    }
+    if (action != PlanAction.UpdateHash) {
+      findKeyRange(local.table, local.key) foreach { case (min, max) =>
+        var from = checkpoint.map(_.position).getOrElse(min)
+        while (from <= max) {
+          val to = from + local.chunkSize
+          transactional {
+            applyScript(local.chunkScript(from, to))
+            saveCheckpoint(Checkpoint(local.id, local.updateScriptHash, to))
+          }
+          logger.debug(s"> [${local.id}] processed ${local.key} from $from until $to")
+          from = to
+          if (local.throttle > 0 && from <= max) Thread.sleep(local.throttle)
+        }
+      }
+    }
+    transactional {
+      if (action == PlanAction.Apply) insert(local) else update(local)
+      deleteCheckpoint(local.id)
+    }
+  }
+
+  /**
+   * Applies the update script outside of a transaction checkpointing every statement executed,
+   * so that a failed script is resumed right after the last successful statement.
+   */
+  private def applyStatementwise(local: LocalTransformation, action: PlanAction.Value): Unit = {
+    val resumed = findCheckpoint(local.id) filter (_.updateScriptHash == local.updateScriptHash)
+    resumed foreach (it => logger.info(s"> [${local.id}] resumed after ${it.position} statement(s)"))
+    if (action == PlanAction.Reapply && resumed.isEmpty) {
+      findById(local.id) foreach (it => applyScript(it.rollbackScript))
+    }
+    val feed: TextSink => Unit = local match {
+      case streaming: StreamingLocalTransformation => streaming.feedUpdateScript
+      case _ => _.append(local.updateScript.toCharArray, 0, local.updateScript.length)
+    }
+    applyStatements(feed, resumed.map(_.position).getOrElse(0),
+      position => saveCheckpoint(Checkpoint(local.id, local.updateScriptHash, position)))
+    if (action == PlanAction.Apply) insert(local) else update(local)
+    deleteCheckpoint(local.id)
+  }
+
+  private def applyUpdate(local: LocalTransformation): Unit = local match {
+    case streaming: StreamingLocalTransformation => applyStreamedScript(streaming.feedUpdateScript)
+    case _ => applyScript(local.updateScript)
+  }
+
+  protected def tryApply(local: LocalTransformation, stored: Option[StoredTransformationHash]): Unit = {
     try {
       logger.info(s"Applying [${local.id}]")
-      val elapsed = profile(apply(local))
-      // TODO: instead of miliseconds consider human readable time like
-      // TODO: 245ms, 2342ms, 11s, 1m 12s, 13m, 1h 5m
-      logger.info(s"[${local.id}] processed in $elapsed ms")
+      val step = decide(local, stored)
+      logProcessed(local.id, profile(Apply, local.id, step.action)(apply(local, step)))
     } catch {
-      case e: Exception => logger.error(s"Failed to apply [${local.id}] due to:\n ${e.getMessage}")
+      case e: Exception =>
+        metrics.increment(Failed)
+        logger.error(s"Failed to apply [${local.id}] due to:\n ${e.getMessage}")
+        failures.add(local.id -> String.valueOf(e.getMessage))
+        if (failFast) throw e
+    } finally {
+      // Scripts are not needed anymore
+      local.release()
     }
   }
 
-  protected def onApply(local: LocalTransformation): Unit = tryApply(local)
+  protected def onApply(local: LocalTransformation, stored: Option[StoredTransformationHash]): Unit =
+    tryApply(local, stored)
 
   // TODO: think if we need to control transactional here
   private def rollback(transformation: Transformation): Unit = transactional {
@@ -321,16 +838,20 @@ trait Transformations {this: LocalTransformations with StoredTransformations =>
     storedOption map { stored =>
       applyScript(stored.rollbackScript)
       delete(stored)
+      metrics.increment(RolledBack)
     }
   }
 
   protected def tryRollback(transformation: Transformation): Unit = {
     try {
       logger.info(s"Rolling back [${transformation.id}]")
-      val elapsed = profile(rollback(transformation))
-      logger.info(s"[${transformation.id}] processed in $elapsed ms")
+      logProcessed(transformation.id, profile(Rollback, transformation.id, PlanAction.Rollback)(rollback(transformation)))
     } catch {
-      case e: Exception => logger.error(s"Failed to rollback [${transformation.id}}] due to:\n ${e.getMessage}")
+      case e: Exception =>
+        metrics.increment(Failed)
+        logger.error(s"Failed to rollback [${transformation.id}}] due to:\n ${e.getMessage}")
+        failures.add(transformation.id -> String.valueOf(e.getMessage))
+        if (failFast) throw e
     }
   }
 
@@ -339,26 +860,255 @@ trait Transformations {this: LocalTransformations with StoredTransformations =>
   private def transactional[A](enabled: Boolean)(f: => A): Unit = if (enabled) transactional(f) else f
 
   /**
-   * Runs transformations.
+   * Maximum number of independent transformations applied concurrently, each one in its own session.
+   * Transformations are applied strictly one by one when set to 1.
    */
-  def run {
+  val parallelism: Int = 1
+
+  private def process(transformation: Transformation, index: StoredTransformationIndex): Unit = transformation match {
+    case SkippedTransformation(id) => logger.debug(s"Transformation [$id] skipped")
+    case disabled: DisabledTransformation =>
+      logger.debug(s"Transformation [${disabled.id}] is disabled")
+      index.get(disabled.id) foreach { _ =>
+        ensureExclusive()
+        onRollback(disabled)
+      }
+    case local: LocalTransformation =>
+      logger.debug(s"Transformation [${local.id}] is found")
+      ensureExclusive()
+      onApply(local, index.get(local.id))
+  }
+
+  private def rollbackMissing(stored: StoredTransformationHash): Unit = {
+    logger.debug(s"Transformation [${stored.id}] is missing")
+    ensureExclusive()
+    onRollback(stored)
+  }
+
+  private def plan(locals: List[Transformation], index: StoredTransformationIndex): TransformationPlan = {
+    import PlanAction._
+    val steps = locals map {
+      case SkippedTransformation(id) => PlanStep(id, Skip, "is skipped")
+      case DisabledTransformation(id) => index.get(id) match {
+        case Some(stored) => PlanStep(id, Rollback, "is disabled", stored.rollbackScriptSize)
+        case None => PlanStep(id, Skip, "is disabled")
+      }
+      case local: LocalTransformation => try decide(local, index.get(local.id)) finally local.release()
+    }
+    val missing = index.allExcept(locals.map(_.id).toSet) map { stored =>
+      PlanStep(stored.id, Rollback, "is missing locally", stored.rollbackScriptSize)
+    }
+    TransformationPlan(steps ++ missing)
+  }
+
+  /**
+   * Finds out what a run would do without changing the database. Stored transformations
+   * are read with a single query, the scripts are read only if hash sums have been computed
+   * with different algorithms and are not kept afterwards.
+   *
+   * @return execution plan.
+   */
+  def plan(): TransformationPlan = {
     val locals = localTransformations
+    plan(locals, inspect(new StoredTransformationIndex(findAllHashes())))
+  }
+
+  /**
+   * Local transformations in the order they are processed in, that is the given order unless
+   * it violates the declared dependencies.
+   */
+  private def ordered(locals: List[Transformation]): List[Transformation] = new TransformationGraph(locals).sorted
+
+  /**
+   * Fingerprint of the transformations, which changes as soon as any of them is changed, added or removed.
+   */
+  private def fingerprint(transformations: List[Transformation]): String =
+    HashAlgorithm.Default.hash(transformations.map {
+      case local: LocalTransformation => s"${local.id}:${local.updateScriptHash}:${local.rollbackScriptHash}"
+      case DisabledTransformation(id) => s"$id:disabled"
+      case SkippedTransformation(id) => s"$id:skipped"
+    }.mkString("\n"))
+
+  /**
+   * Skips the transformations processed successfully by the previous run if it has failed and
+   * none of them has been changed since then. Those are not compared with the stored ones and their
+   * scripts are not read again. They are still loaded along with the rest though, since the fingerprint
+   * is computed over their hash sums; only the files restored from the manifest are not parsed and hashed.
+   */
+  private def resume(locals: List[Transformation], order: List[Transformation],
+                     previous: Option[RunCheckpoint]): List[Transformation] =
+    previous match {
+      case Some(checkpoint) if checkpoint.position <= order.size &&
+        fingerprint(order.take(checkpoint.position.toInt)) == checkpoint.fingerprint =>
+        logger.info(s"Resuming the previous run after ${checkpoint.position} transformation(s), " +
+          s"it failed due to:\n ${checkpoint.failure.getOrElse("unknown reason")}")
+        val done = order.take(checkpoint.position.toInt).map(_.id).toSet
+        locals map (t => if (done(t.id)) SkippedTransformation(t.id) else t)
+      case Some(_) =>
+        logger.info("Transformations have been changed since the previous run failed, starting over")
+        locals
+      case None => locals
+    }
+
+  /**
+   * Saves the position of the first failure, everything before it has been processed successfully.
+   * The checkpoint is removed once a run succeeds.
+   */
+  private def checkpointRun(order: List[Transformation], previous: Option[RunCheckpoint]): Unit = {
+    val failed = Iterator.continually(failures.poll()).takeWhile(_ != null).toMap
+    try {
+      order.indexWhere(t => failed.contains(t.id)) match {
+        case -1 if failed.isEmpty => if (previous.isDefined) transform(deleteRunCheckpoint())
+        case -1 => // Only the transformations missing locally have failed, nothing to skip
+          transform(saveRunCheckpoint(RunCheckpoint(fingerprint(order), order.size,
+            Some(failed.map { case (id, reason) => s"[$id] $reason" }.mkString("\n ")))))
+        case position =>
+          val id = order(position).id
+          transform(saveRunCheckpoint(RunCheckpoint(fingerprint(order.take(position)), position,
+            Some(s"[$id] ${failed(id)}"))))
+      }
+    } catch {
+      case e: Exception => logger.warn(s"Unable to save the run checkpoint due to:\n ${e.getMessage}")
+    }
+  }
+
+  /**
+   * Processes the given transformations only, as if nothing else has been changed since the index
+   * was read. Meant for applying the changes incrementally.
+   *
+   * @param changed local transformations to process in the given order.
+   * @param missing stored transformations to roll back.
+   * @param index of the stored transformations.
+   */
+  protected def transformChanged(changed: List[Transformation], missing: Seq[StoredTransformationHash],
+                                 index: StoredTransformationIndex): Unit =
+    exclusively { _ =>
+      try transform {
+        changed foreach (process(_, index))
+        missing foreach rollbackMissing
+      } finally {
+        flushHistory()
+        failures.clear()
+      }
+    }
+
+  /**
+   * Finds out the transformations to squash into the baseline, that is the leading ones up to the
+   * baseline marker, as long as the database is fresh. Those applied on their own, e.g. chunked ones
+   * or ones not run in transaction, end the baseline early.
+   */
+  private def baselineOf(locals: List[Transformation], index: StoredTransformationIndex): List[LocalTransformation] =
+    baseline match {
+      case Some(marker) if index.isEmpty =>
+        locals.indexWhere(_.id == marker) match {
+          case -1 =>
+            logger.warn(s"Baseline transformation [$marker] is not found, applying transformations one by one")
+            Nil
+          case position =>
+            locals.take(position + 1) takeWhile {
+              case _: ChunkedLocalTransformation => false
+              case local: LocalTransformation => local.runInTransaction
+              case _ => true
+            } collect {
+              case local: LocalTransformation => local
+            }
+        }
+      case _ => Nil
+    }
+
+  /**
+   * Applies the update scripts of the baseline transformations and stores them all in a single transaction.
+   */
+  private def applyBaseline(squashed: List[LocalTransformation]): Unit = {
+    val id = s"baseline:${squashed.last.id}"
+    logger.info(s"Applying baseline of ${squashed.size} transformation(s) up to [${squashed.last.id}]")
+    val profiled = try profile(Apply, id, PlanAction.Apply) {
+      transactional {
+        squashed foreach applyUpdate
+        insertAll(squashed)
+      }
+    } finally {
+      squashed foreach (_.release())
+    }
+    squashed foreach (_ => metrics.increment(Applied))
+    logProcessed(id, profiled)
+  }
+
+  private def transformAll(locals: List[Transformation], index: StoredTransformationIndex): Unit =
     transform {
-      // First apply local transformations as ordered in the list
-      locals.foreach {
-        case SkippedTransformation(id) => logger.debug(s"Transformation [$id] skipped")
-        case disabled: DisabledTransformation =>
-          logger.debug(s"Transformation [${disabled.id}] is disabled")
-          onRollback(disabled)
-        case local: LocalTransformation =>
-          logger.debug(s"Transformation [${local.id}] is found")
-          onApply(local)
+      val squashed = baselineOf(locals, index)
+      if (squashed.nonEmpty) applyBaseline(squashed)
+      val done = squashed.map(_.id).toSet
+      val rest = locals map (t => if (done(t.id)) SkippedTransformation(t.id) else t)
+
+      // First apply local transformations as ordered by their dependencies
+      val graph = new TransformationGraph(rest)
+      if (parallelism > 1) {
+        graph.execute(parallelism)(t => transform(process(t, index)))
+      } else {
+        graph.execute(parallelism)(process(_, index))
       }
 
       // Second rollback transformations missing locally
-      findAllExcept(locals.map(_.id).toSet).foreach { stored =>
-        logger.debug(s"Transformation [${stored.id}] is missing")
-        onRollback(stored)
+      index.allExcept(locals.map(_.id).toSet) foreach rollbackMissing
+    }
+
+  /**
+   * Finds out the slowest successful runs recorded in the execution history.
+   *
+   * @param n maximum number of records.
+   * @return history records, the slowest first.
+   */
+  def slowestTransformations(n: Int = 10): Seq[HistoryRecord] = inspect(findSlowestHistory(n))
+
+  /**
+   * Finds out the transformations which latest run has taken notably longer than the previous ones.
+   *
+   * @param factor slowdown considered a regression.
+   * @return regressions, the biggest first.
+   */
+  def durationRegressions(factor: Double = 2): Seq[DurationRegression] = inspect(findDurationRegressions(factor))
+
+  /**
+   * Runs transformations. Nothing is done, not even the database session is opened
+   * for transformations, when the database is up to date. Only one process at a time
+   * runs transformations, others wait and find out there's nothing left to do. If the previous
+   * run has failed, the run is resumed from the first failed transformation.
+   */
+  def run {
+    val started = System.nanoTime
+    appliedCount.set(0)
+    failedCount.set(0)
+    publish(RunStarted(nodeId))
+    var completed = false
+    try {
+      transformOutdated()
+      completed = true
+    } finally {
+      publish(RunFinished(System.nanoTime - started, appliedCount.get, failedCount.get,
+        completed && failedCount.get == 0))
+    }
+  }
+
+  private def transformOutdated(): Unit = {
+    val all = localTransformations
+    val order = ordered(all)
+    // The whole control table is read once, the rest is compared in memory
+    val (previous, index) = inspect((findRunCheckpoint(), new StoredTransformationIndex(findAllHashes())))
+    val locals = resume(all, order, previous)
+    if (plan(locals, index).isEmpty) {
+      logger.info("Nothing to transform, the database is up to date")
+      if (previous.isDefined) transform(deleteRunCheckpoint())
+    } else exclusively { waited =>
+      // The one waited for has most likely done the job already
+      val current = if (waited) inspect(new StoredTransformationIndex(findAllHashes())) else index
+      if (waited && plan(locals, current).isEmpty) {
+        logger.info("Nothing to transform, the database has been brought up to date by another process")
+      } else {
+        try transformAll(locals, current) finally {
+          flushHistory()
+          checkpointRun(order, previous)
+        }
       }
     }
   }
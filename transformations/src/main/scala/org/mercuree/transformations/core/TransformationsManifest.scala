@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.io._
+import java.nio.file.{Files, Path, StandardCopyOption}
+import org.slf4j.LoggerFactory
+import scala.util.control.NonFatal
+
+/**
+ * Parsed attributes and hash sums of a single transformation file,
+ * valid as long as the file size and modification time stay the same.
+ */
+case class ManifestEntry(id: String, size: Long, lastModified: Long, kind: Char,
+                         runOnChange: Boolean, runAlways: Boolean, runInTransaction: Boolean,
+                         dependsOn: List[String], updateScriptHash: String, rollbackScriptHash: String) {
+
+  /**
+   * Checks whether the entry still describes the given file.
+   *
+   * @param source file to check.
+   * @return true if the file hasn't been changed.
+   */
+  def matches(source: TransformationFile): Boolean = source.size == size && source.lastModified == lastModified
+
+  /**
+   * @return algorithm the hash sums have been computed with; none for transformations without scripts.
+   */
+  def hashAlgorithm: Option[HashAlgorithm] =
+    if (updateScriptHash.isEmpty) None else Some(HashAlgorithm.of(updateScriptHash))
+
+  /**
+   * Restores the transformation. Scripts of a [[LocalTransformation]] are read from the file
+   * only when needed and verified against the cached hash sums, the update script size is estimated
+   * by the file size. A [[ChunkedLocalTransformation]] is parsed again as its chunking attributes are not cached.
+   *
+   * @param path the transformation has been loaded from.
+   * @return transformation object.
+   */
+  def toTransformation(path: Path): Transformation = kind match {
+    case ManifestEntry.Skipped => SkippedTransformation(id)
+    case ManifestEntry.Disabled => DisabledTransformation(id)
+    case ManifestEntry.Streaming => StreamingLocalTransformation.restore(StreamingLocalTransformation.opener(path),
+      id, updateScriptHash, rollbackScriptHash, runOnChange, runAlways, runInTransaction, dependsOn, Some(size))
+    case ManifestEntry.Chunked => LocalTransformation.fromPath(path, id, HashAlgorithm.of(updateScriptHash))
+    case ManifestEntry.Local =>
+      def scripts = LocalTransformation.fromPath(path, id, HashAlgorithm.of(updateScriptHash)) match {
+        case local: LocalTransformation
+          if local.updateScriptHash == updateScriptHash && local.rollbackScriptHash == rollbackScriptHash =>
+          (local.updateScript, local.rollbackScript)
+        case _ => throw TransformationException(s"Transformation [$id] has been modified after it was cached")
+      }
+      new LocalTransformation(id, scripts, updateScriptHash, rollbackScriptHash,
+        runOnChange, runAlways, runInTransaction, dependsOn, Some(size))
+  }
+
+}
+
+object ManifestEntry {
+
+  final val Local = 'L'
+  final val Disabled = 'D'
+  final val Skipped = 'S'
+  final val Streaming = 'T'
+  final val Chunked = 'C'
+
+  /**
+   * Creates an entry describing the transformation loaded from the given file.
+   *
+   * @param source file the transformation has been loaded from.
+   * @param transformation loaded.
+   * @return manifest entry.
+   */
+  def apply(source: TransformationFile, transformation: Transformation): ManifestEntry = transformation match {
+    case local: LocalTransformation =>
+      val kind = local match {
+        case _: StreamingLocalTransformation => Streaming
+        case _: ChunkedLocalTransformation => Chunked
+        case _ => Local
+      }
+      ManifestEntry(local.id, source.size, source.lastModified, kind,
+      local.runOnChange, local.runAlways, local.runInTransaction, local.dependsOn,
+      local.updateScriptHash, local.rollbackScriptHash)
+    case DisabledTransformation(id) => ManifestEntry(id, source.size, source.lastModified, Disabled,
+      false, false, false, Nil, "", "")
+    case SkippedTransformation(id) => ManifestEntry(id, source.size, source.lastModified, Skipped,
+      false, false, false, Nil, "", "")
+  }
+
+}
+
+/**
+ * On-disk cache of the parsed transformation files keyed by the file path relative to the transformations root.
+ * Unchanged files are restored from the manifest without being read at all.
+ *
+ * @param file manifest file.
+ * @author Alexander Valyugin
+ */
+class TransformationsManifest(file: File) {
+
+  private final val logger = LoggerFactory.getLogger(getClass)
+
+  private final val Version = 1
+
+  /**
+   * Reads the manifest. Missing, outdated or corrupted manifest is treated as empty.
+   *
+   * @return entries keyed by the file path.
+   */
+  def load(): Map[String, ManifestEntry] = if (!file.isFile) Map.empty else {
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))
+    try {
+      if (in.readInt != Version) Map.empty else {
+        val entries = for (_ <- 1 to in.readInt) yield {
+          val path = in.readUTF
+          val entry = ManifestEntry(in.readUTF, in.readLong, in.readLong, in.readChar,
+            in.readBoolean, in.readBoolean, in.readBoolean,
+            List.fill(in.readInt)(in.readUTF), in.readUTF, in.readUTF)
+          path -> entry
+        }
+        entries.toMap
+      }
+    } catch {
+      case NonFatal(e) =>
+        logger.warn(s"Unable to read manifest [$file] due to:\n ${e.getMessage}")
+        Map.empty
+    } finally {
+      in.close()
+    }
+  }
+
+  /**
+   * Replaces the manifest with the given entries. The file is replaced atomically
+   * so a concurrent reader never sees a partially written manifest.
+   *
+   * @param entries keyed by the file path.
+   */
+  def save(entries: Map[String, ManifestEntry]): Unit = {
+    Option(file.getAbsoluteFile.getParentFile) foreach (_.mkdirs())
+    val temp = File.createTempFile(file.getName, ".tmp", file.getAbsoluteFile.getParentFile)
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))
+    try {
+      out.writeInt(Version)
+      out.writeInt(entries.size)
+      entries foreach { case (path, entry) =>
+        out.writeUTF(path)
+        out.writeUTF(entry.id)
+        out.writeLong(entry.size)
+        out.writeLong(entry.lastModified)
+        out.writeChar(entry.kind)
+        out.writeBoolean(entry.runOnChange)
+        out.writeBoolean(entry.runAlways)
+        out.writeBoolean(entry.runInTransaction)
+        out.writeInt(entry.dependsOn.size)
+        entry.dependsOn foreach out.writeUTF
+        out.writeUTF(entry.updateScriptHash)
+        out.writeUTF(entry.rollbackScriptHash)
+      }
+    } finally {
+      out.close()
+    }
+    Files.move(temp.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+  }
+
+}
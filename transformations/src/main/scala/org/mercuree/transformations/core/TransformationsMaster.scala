@@ -21,14 +21,52 @@ import scala.slick.jdbc.JdbcBackend
 import javax.sql.DataSource
 import scala.slick.jdbc.JdbcBackend._
 
+/**
+ * Transformations configured by the settings, shared by the masters whatever storage they use.
+ *
+ * @author Alexander Valyugin
+ */
+trait ConfiguredTransformations extends WatchingTransformations with JdbcConnectionStorage with FileLocalTransformations {
+
+  protected val settings: TransformationsSettings
+
+  /**
+   * Sink of the transformation events given by the caller, might be null. Events are delivered on the
+   * thread publishing them, a sink which might block should be wrapped into [[AsyncTransformationEventSink]]
+   * by the caller, who closes it once done.
+   */
+  protected val sink: TransformationEventSink
+
+  override val parallelism = settings.parallelism
+  override val manifestPath = settings.manifestPath
+  override val streamingThreshold = settings.streamingThreshold
+  override val batchSize = settings.batchSize
+  override val statementDelimiter = settings.statementDelimiter
+  override val hashAlgorithm = settings.hashAlgorithm
+  override val lockEnabled = settings.lockEnabled
+  override val lockLease = settings.lockLease
+  override val lockTimeout = settings.lockTimeout
+  override val failFast = settings.failFast
+  override val watchDebounce = settings.watchDebounce
+  override val baseline = settings.baseline
+  override val eventSink = Option(sink) getOrElse TransformationEventSink.Ignoring
+
+  override val transformationsPath = settings.transformationsPath
+}
+
 /**
  * TODO: docs
  *
  * @author Alexander Valyugin
  */
-class TransformationsMaster(val dataSource: DataSource)
-  extends Transformations with SlickStoredTransformations with FileLocalTransformations{
-  override val transformationsPath = "transformations"
+class TransformationsMaster(val dataSource: DataSource, protected val settings: TransformationsSettings,
+                            protected val sink: TransformationEventSink)
+  extends ConfiguredTransformations with SlickStoredTransformations {
+
+  def this(dataSource: DataSource, settings: TransformationsSettings) = this(dataSource, settings, null)
+
+  def this(dataSource: DataSource) = this(dataSource, TransformationsSettings())
+
   override val db: JdbcBackend.Database = Database.forDataSource(dataSource)
   override val profile: JdbcProfile = GenericDriver
 }
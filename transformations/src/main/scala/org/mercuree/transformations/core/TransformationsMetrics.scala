@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+import scala.collection.JavaConversions._
+
+/**
+ * Timing histogram of nanosecond durations. Values are counted in logarithmic buckets, four per
+ * power of two, so percentiles are estimated within 25%, never below the actual value, while recording stays lock free and cheap.
+ *
+ * @author Alexander Valyugin
+ */
+class TimingHistogram {
+
+  import TimingHistogram._
+
+  private val buckets = new AtomicLongArray(BucketCount)
+
+  private val totalNanos = new AtomicLong
+
+  private val maxNanos = new AtomicLong
+
+  /**
+   * Records the duration.
+   *
+   * @param nanos duration in nanoseconds.
+   */
+  def record(nanos: Long): Unit = {
+    val value = nanos max 0
+    buckets.incrementAndGet(bucket(value))
+    totalNanos.addAndGet(value)
+    var max = maxNanos.get
+    while (value > max && !maxNanos.compareAndSet(max, value)) max = maxNanos.get
+  }
+
+  /**
+   * @return current statistics; concurrent recording might make them slightly inconsistent.
+   */
+  def snapshot: TimingSnapshot = {
+    val counts = Array.tabulate(BucketCount)(buckets.get)
+    val count = counts.sum
+    def percentile(q: Double): Long = if (count == 0) 0 else {
+      val rank = math.ceil(q * count).toLong max 1
+      var i = 0
+      var seen = counts(0)
+      while (seen < rank) {
+        i += 1
+        seen += counts(i)
+      }
+      upperBound(i) min maxNanos.get
+    }
+    TimingSnapshot(count, totalNanos.get, maxNanos.get, percentile(0.5), percentile(0.95), percentile(0.99))
+  }
+
+}
+
+object TimingHistogram {
+
+  // Values up to 3 have buckets of their own, the largest long value falls into the last one
+  private final val BucketCount = 62 * 4
+
+  private def bucket(value: Long): Int = if (value < 4) value.toInt else {
+    val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+    exponent * 4 + ((value >>> (exponent - 2)) & 3).toInt - 4
+  }
+
+  private def lowerBound(bucket: Int): Long = if (bucket < 4) bucket else {
+    val exponent = bucket / 4 + 1
+    (4L + bucket % 4) << (exponent - 2)
+  }
+
+  private def upperBound(bucket: Int): Long =
+    if (bucket == BucketCount - 1) Long.MaxValue else lowerBound(bucket + 1) - 1
+
+}
+
+/**
+ * Statistics of the recorded durations, all in nanoseconds.
+ */
+case class TimingSnapshot(count: Long, total: Long, max: Long, p50: Long, p95: Long, p99: Long) {
+
+  def mean: Long = if (count == 0) 0 else total / count
+
+}
+
+/**
+ * Total time spent on a single transformation, in nanoseconds.
+ */
+case class TransformationTiming(count: Long, total: Long, max: Long)
+
+/**
+ * Keeps the total times of the slowest transformations only, so a long history doesn't
+ * grow the registry. A transformation pushed out and recorded again starts over.
+ *
+ * @param capacity maximum number of transformations kept.
+ */
+private class SlowestTransformations(capacity: Int) {
+
+  private val timings = new java.util.HashMap[String, TransformationTiming]
+
+  def record(id: String, nanos: Long): Unit = synchronized {
+    val timing = timings.get(id)
+    if (timing != null) {
+      timings.put(id, TransformationTiming(timing.count + 1, timing.total + nanos, timing.max max nanos))
+    } else if (timings.size < capacity) {
+      timings.put(id, TransformationTiming(1, nanos, nanos))
+    } else if (capacity > 0) {
+      val fastest = timings.entrySet.minBy(_.getValue.total)
+      if (fastest.getValue.total < nanos) {
+        timings.remove(fastest.getKey)
+        timings.put(id, TransformationTiming(1, nanos, nanos))
+      }
+    }
+  }
+
+  def toList: List[(String, TransformationTiming)] = synchronized(timings.toList)
+
+}
+
+/**
+ * Registry of the transformations timings and counters. Names are free form; the ones recorded by
+ * the transformations themselves are listed in the companion object. Timers of the individual
+ * transformations are kept for the slowest ones only and without percentiles.
+ *
+ * @param slowestCapacity number of the slowest transformations to keep the timings of.
+ * @author Alexander Valyugin
+ */
+class TransformationsMetrics(slowestCapacity: Int = TransformationsMetrics.SlowestCapacity) {
+
+  private val histograms = new ConcurrentHashMap[String, TimingHistogram]
+
+  private val counts = new ConcurrentHashMap[String, AtomicLong]
+
+  private val slowestTransformations = new SlowestTransformations(slowestCapacity)
+
+  // Looked up first, so neither a new instance nor a wrapper is allocated once the name is known
+  private def histogram(name: String): TimingHistogram = {
+    val histogram = histograms.get(name)
+    if (histogram != null) histogram else {
+      histograms.putIfAbsent(name, new TimingHistogram)
+      histograms.get(name)
+    }
+  }
+
+  private def counter(name: String): AtomicLong = {
+    val counter = counts.get(name)
+    if (counter != null) counter else {
+      counts.putIfAbsent(name, new AtomicLong)
+      counts.get(name)
+    }
+  }
+
+  /**
+   * Records the duration. Names starting with [[TransformationsMetrics.Transformation]]
+   * are recorded as the individual transformation timings.
+   *
+   * @param name timer name.
+   * @param nanos duration in nanoseconds.
+   */
+  def record(name: String, nanos: Long): Unit =
+    if (name startsWith TransformationsMetrics.Transformation) {
+      recordTransformation(name.substring(TransformationsMetrics.Transformation.length), nanos)
+    } else {
+      histogram(name).record(nanos)
+    }
+
+  /**
+   * Adds the duration to the transformation total time.
+   *
+   * @param id transformation id.
+   * @param nanos duration in nanoseconds.
+   */
+  def recordTransformation(id: String, nanos: Long): Unit = slowestTransformations.record(id, nanos max 0)
+
+  /**
+   * Measures the given function. The time is recorded even if the function fails.
+   *
+   * @param name timer name.
+   * @param f function to measure.
+   * @return function result.
+   */
+  def time[A](name: String)(f: => A): A = {
+    val started = System.nanoTime
+    try f finally record(name, System.nanoTime - started)
+  }
+
+  /**
+   * Increments the counter.
+   *
+   * @param name counter name.
+   */
+  def increment(name: String): Unit = counter(name).incrementAndGet()
+
+  /**
+   * @return statistics of every timer keyed by the name.
+   */
+  def timers: Map[String, TimingSnapshot] = histograms.toMap.mapValues(_.snapshot).view.force
+
+  /**
+   * @return value of every counter keyed by the name.
+   */
+  def counters: Map[String, Long] = counts.toMap.mapValues(_.get).view.force
+
+  /**
+   * Flattens the metrics into plain values: counters as is and timer statistics in milliseconds,
+   * e.g. `apply.count`, `apply.mean`, `apply.p99` or `transformation.1.0/create.sql.total`.
+   *
+   * @return values keyed by the metric name.
+   */
+  def toMap: java.util.Map[String, Number] = {
+    val values = new java.util.TreeMap[String, Number]
+    counters foreach { case (name, value) => values.put(name, value) }
+    def millis(nanos: Long): Number = nanos / 1e6
+    timers foreach { case (name, t) =>
+      values.put(name + ".count", t.count)
+      values.put(name + ".total", millis(t.total))
+      values.put(name + ".mean", millis(t.mean))
+      values.put(name + ".max", millis(t.max))
+      values.put(name + ".p50", millis(t.p50))
+      values.put(name + ".p95", millis(t.p95))
+      values.put(name + ".p99", millis(t.p99))
+    }
+    slowestTransformations.toList foreach { case (id, t) =>
+      val name = TransformationsMetrics.Transformation + id
+      values.put(name + ".count", t.count)
+      values.put(name + ".total", millis(t.total))
+    }
+    values
+  }
+
+  /**
+   * Finds out the transformations that took the most time in total. Only the slowest
+   * transformations are tracked, see the registry capacity.
+   *
+   * @param n maximum number of transformations.
+   * @return transformation ids along with their timings, the slowest first.
+   */
+  def slowest(n: Int): List[(String, TransformationTiming)] =
+    slowestTransformations.toList sortBy (-_._2.total) take n
+
+}
+
+object TransformationsMetrics {
+
+  /** Reading, parsing and hashing of a transformation file, done in a single pass. */
+  final val Load = "load"
+  /** Applying or re-applying a transformation. */
+  final val Apply = "apply"
+  /** Rolling back a transformation. */
+  final val Rollback = "rollback"
+  /** Executing a single statement, or a whole batch when it is sent. */
+  final val Statement = "statement"
+  /** Reading the control table. */
+  final val ControlRead = "control.read"
+  /** Writing the control table. */
+  final val ControlWrite = "control.write"
+  /** Waiting for the transformations lock. */
+  final val LockWait = "lock.wait"
+  /** Prefix of the timers of the individual transformations followed by the transformation id. */
+  final val Transformation = "transformation."
+  /** Default number of the slowest transformations to keep the timings of. */
+  final val SlowestCapacity = 100
+
+  final val Applied = "applied"
+  final val Reapplied = "reapplied"
+  final val RolledBack = "rolledBack"
+  final val Failed = "failed"
+
+}
+
+/**
+ * A component recording its timings into the shared metrics registry.
+ */
+trait Metered {
+
+  /**
+   * Metrics registry. Overridden to share one registry among several transformations instances.
+   */
+  val metrics: TransformationsMetrics = new TransformationsMetrics
+
+}
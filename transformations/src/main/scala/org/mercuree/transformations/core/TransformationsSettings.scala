@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mercuree.transformations.core
+
+/**
+ * Settings of the transformations masters, each one defaults to the value the engine uses
+ * when nothing is configured.
+ *
+ * @param transformationsPath classpath location of the transformation files.
+ * @param parallelism maximum number of independent transformations applied concurrently.
+ * @param manifestPath file keeping the parsed transformations between runs, none by default.
+ * @param streamingThreshold size of the script in bytes starting from which it is streamed from the file.
+ * @param batchSize maximum number of statements sent to the database in a single round trip.
+ * @param statementDelimiter delimiter of the statements in the scripts.
+ * @param hashAlgorithm used to compute the hash sums of the scripts.
+ * @param lockEnabled whether only one process at a time runs transformations.
+ * @param lockLease milliseconds the lock is held for unless renewed.
+ * @param lockTimeout milliseconds to wait for the lock at most.
+ * @param failFast whether the run stops at the first failure.
+ * @param watchDebounce milliseconds to wait for the file changes to settle while watching.
+ * @param baseline id of the last transformation applied at once to a fresh database, none by default.
+ * @param tenantParallelism maximum number of tenant databases transformed concurrently.
+ * @author Alexander Valyugin
+ */
+case class TransformationsSettings(transformationsPath: String = "transformations",
+                                   parallelism: Int = 1,
+                                   manifestPath: Option[String] = None,
+                                   streamingThreshold: Long = 16 * 1024 * 1024,
+                                   batchSize: Int = 100,
+                                   statementDelimiter: String = ";",
+                                   hashAlgorithm: HashAlgorithm = HashAlgorithm.Default,
+                                   lockEnabled: Boolean = true,
+                                   lockLease: Long = 60 * 1000,
+                                   lockTimeout: Long = 15 * 60 * 1000,
+                                   failFast: Boolean = false,
+                                   watchDebounce: Long = 300,
+                                   baseline: Option[String] = None,
+                                   tenantParallelism: Int = 4)
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.io.{Closeable, IOException}
+import java.nio.file._
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.TimeUnit
+import org.slf4j.LoggerFactory
+import scala.collection.mutable
+import scala.util.control.NonFatal
+
+/**
+ * Keeps the database in sync with the transformation files while they are being edited. After the
+ * usual run the transformations directory is watched, and every time files are changed only those
+ * are parsed and applied, re-applied or rolled back. The stored transformations are kept in memory,
+ * so a change costs a file and a row rather than a full run.
+ *
+ * Meant for development and testing environments.
+ *
+ * @author Alexander Valyugin
+ */
+trait WatchingTransformations extends Transformations {this: FileLocalTransformations with StoredTransformations =>
+
+  private final val logger = LoggerFactory.getLogger(getClass)
+
+  /**
+   * Milliseconds of quiet to wait for after a file event, so that a burst of events is processed at once.
+   */
+  val watchDebounce: Long = 300
+
+  // Stored transformations hash sums as of the last change processed
+  @volatile private var stored = Map[String, StoredTransformationHash]()
+
+  /**
+   * Runs transformations and starts watching the transformations directory.
+   *
+   * @return the watch; closing it stops watching.
+   */
+  def watch(): TransformationsWatch = {
+    if (transformationsRoot.getFileSystem != FileSystems.getDefault) {
+      throw TransformationException(s"Transformations packaged into [${transformationsRoot.getFileSystem}] can't be watched")
+    }
+    run
+    stored = inspect(findAllHashes()).map(hash => hash.id -> hash).toMap
+    val watch = new TransformationsWatch(transformationsRoot, watchDebounce, applyChanges)
+    logger.info(s"Watching [$transformationsRoot] for changes")
+    watch
+  }
+
+  private def applyChanges(paths: Set[Path]): Unit = {
+    val root = transformationsRoot
+    def id(path: Path) = root.relativize(path).toString
+    val (present, gone) = paths partition (Files.exists(_))
+    val changed = present.toList flatMap { path =>
+      try loadTransformation(path) catch {
+        case NonFatal(e) =>
+          logger.error(s"Unable to load [${id(path)}] due to:\n ${e.getMessage}")
+          None
+      }
+    } sortBy (t => FilePathKey(t.id))
+    // A whole directory might have gone
+    val goneIds = gone.map(id)
+    val missing = stored.values.filter(s => goneIds(s.id) || goneIds.exists(g => s.id startsWith g + root.getFileSystem.getSeparator))
+    if (changed.nonEmpty || missing.nonEmpty) {
+      logger.info(s"Changes found in ${(changed.map(_.id) ++ missing.map(_.id)).mkString("[", ", ", "]")}")
+      transformChanged(changed, missing.toSeq, new StoredTransformationIndex(stored.values.toSeq))
+      val touched = changed.map(_.id) ++ missing.map(_.id)
+      stored = inspect {
+        touched.foldLeft(stored) { (index, id) =>
+          findById(id) match {
+            case Some(it) => index + (id -> StoredTransformationHash(id, it.updateScriptHash, it.rollbackScriptHash,
+              it.rollbackScript.length))
+            case None => index - id
+          }
+        }
+      }
+    }
+  }
+
+}
+
+/**
+ * Watches the directory tree reporting the files changed, created or deleted. Events are collected
+ * until there are none for the given period and then reported at once on the watching thread.
+ *
+ * @param root directory to watch.
+ * @param debounce milliseconds of quiet to wait for before reporting.
+ * @param onChange called with the paths changed; directories created are reported along with their files.
+ * @author Alexander Valyugin
+ */
+class TransformationsWatch(root: Path, debounce: Long, onChange: Set[Path] => Unit) extends Closeable {
+
+  private final val logger = LoggerFactory.getLogger(getClass)
+
+  private val service = root.getFileSystem.newWatchService()
+
+  private val directories = mutable.Map[WatchKey, Path]()
+
+  @volatile private var closed = false
+
+  private def walk(dir: Path)(f: (Path, BasicFileAttributes) => Unit): Unit =
+    Files.walkFileTree(dir, new SimpleFileVisitor[Path] {
+      override def preVisitDirectory(path: Path, attrs: BasicFileAttributes): FileVisitResult = {
+        f(path, attrs)
+        FileVisitResult.CONTINUE
+      }
+
+      override def visitFile(path: Path, attrs: BasicFileAttributes): FileVisitResult = {
+        f(path, attrs)
+        FileVisitResult.CONTINUE
+      }
+
+      override def visitFileFailed(path: Path, e: IOException): FileVisitResult = FileVisitResult.CONTINUE
+    })
+
+  // Registers the directories of the tree, files found are added to the changed ones if given
+  private def register(dir: Path, changed: Option[mutable.Set[Path]]): Unit = walk(dir) { (path, attrs) =>
+    if (attrs.isDirectory) {
+      directories += path.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY) -> path
+    } else {
+      changed foreach (_ += path)
+    }
+  }
+
+  private def collect(key: WatchKey, changed: mutable.Set[Path]): Unit = {
+    directories.get(key) foreach { dir =>
+      val events = key.pollEvents()
+      for (i <- 0 until events.size) {
+        val event = events.get(i)
+        if (event.kind == StandardWatchEventKinds.OVERFLOW) {
+          // Events have been lost, everything might have been changed
+          walk(root)((path, attrs) => if (!attrs.isDirectory) changed += path)
+        } else {
+          val path = dir.resolve(event.context.asInstanceOf[Path])
+          if (event.kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+            register(path, Some(changed))
+          } else if (!Files.isDirectory(path)) {
+            changed += path
+          }
+        }
+      }
+    }
+    if (!key.reset()) directories -= key
+  }
+
+  private val thread = new Thread(new Runnable {
+    override def run(): Unit = try {
+      while (!closed) {
+        val changed = mutable.Set[Path]()
+        collect(service.take(), changed)
+        var key = service.poll(debounce, TimeUnit.MILLISECONDS)
+        while (key != null) {
+          collect(key, changed)
+          key = service.poll(debounce, TimeUnit.MILLISECONDS)
+        }
+        if (changed.nonEmpty) try onChange(changed.toSet) catch {
+          case NonFatal(e) => logger.error(s"Unable to apply the changes due to:\n ${e.getMessage}")
+        }
+      }
+    } catch {
+      case _: ClosedWatchServiceException | _: InterruptedException => // Closed
+    }
+  }, "transformations-watch")
+
+  register(root, None)
+  thread.setDaemon(true)
+  thread.start()
+
+  /**
+   * Stops watching.
+   */
+  override def close(): Unit = {
+    closed = true
+    service.close()
+  }
+
+}
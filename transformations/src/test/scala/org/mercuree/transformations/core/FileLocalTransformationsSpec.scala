@@ -18,6 +18,9 @@ package org.mercuree.transformations.core
 
 import org.scalatest.FlatSpec
 import scala.util.Random
+import java.io.File
+import java.net.URI
+import java.nio.file.{FileSystems, Files, Path}
 
 /**
  * [[FileLocalTransformations]] test.
@@ -26,7 +29,14 @@ import scala.util.Random
  */
 class FileLocalTransformationsSpec extends FlatSpec {
 
-  class TestTransformations(override val transformationsPath: String) extends FileLocalTransformations
+  class TestTransformations(override val transformationsPath: String,
+                            override val manifestPath: Option[String] = None) extends FileLocalTransformations
+
+  private def write(file: File, text: String, lastModified: Long): Unit = {
+    file.getParentFile.mkdirs()
+    Files.write(file.toPath, text.getBytes)
+    file.setLastModified(lastModified)
+  }
 
   "Paths" should "follow in the given order" in {
     val expectedPaths = List(
@@ -47,6 +57,15 @@ class FileLocalTransformationsSpec extends FlatSpec {
     val actualPaths = Random.shuffle(expectedPaths) sorted FilePathOrdering
 
     expectedPaths zip actualPaths foreach (it => assert(it._1 === it._2))
+    assert(expectedPaths === Random.shuffle(expectedPaths).sortBy(FilePathKey(_)))
+  }
+
+  "Path keys" should "compare versions of different lengths" in {
+    assert(FilePathKey("1.2/a.sql") < FilePathKey("1.10/a.sql"))
+    assert(FilePathKey("1.0.1/a.sql") > FilePathKey("1.0.0.5/a.sql"))
+    assert(0 === FilePathKey("1.0/a.sql").compare(FilePathKey("1/a.sql")))
+    assert(0 === FilePathOrdering.compare("2.1/1.0/some.sql", "2.1/1/some.sql"))
+    assert(FilePathKey("2.1/1.0/some.sql") < FilePathKey("2.1/1/some/other.sql"))
   }
 
   "Local transformations" should "be loaded from the classpath" in {
@@ -59,4 +78,86 @@ class FileLocalTransformationsSpec extends FlatSpec {
     assert("3.0/add_data.sql" === local(2).id)
   }
 
+  "Unchanged files" should "be restored from the manifest without being parsed" in {
+    val root = Files.createTempDirectory("transformations").toFile
+    val manifest = new File(root, "manifest.bin")
+    val script = new File(root, "scripts/1.0/create.sql")
+    write(script, "--<transformation>--<update>create</update>--</transformation>", 100000L)
+    write(new File(root, "scripts/1.0/disabled.xml"),
+      "<transformation enabled=\"false\"><update>drop</update></transformation>", 100000L)
+
+    val first = new TestTransformations(root.getPath + "/scripts", Some(manifest.getPath)).localTransformations
+    assert(manifest.isFile)
+
+    // Same size and modification time but broken content
+    write(script, "--<transformation>--<update>CREATE</update>--</transformation>", 100000L)
+    val second = new TestTransformations(root.getPath + "/scripts", Some(manifest.getPath)).localTransformations
+
+    assert(first === second)
+    assert(DisabledTransformation("1.0/disabled.xml") === second(1))
+    intercept[TransformationException] {
+      second(0).asInstanceOf[LocalTransformation].updateScript
+    }
+  }
+
+  "Modified files" should "be parsed again" in {
+    val root = Files.createTempDirectory("transformations").toFile
+    val manifest = new File(root, "manifest.bin")
+    val script = new File(root, "scripts/create.sql")
+    write(script, "--<transformation>--<update>create</update>--</transformation>", 100000L)
+
+    new TestTransformations(root.getPath + "/scripts", Some(manifest.getPath)).localTransformations
+    write(script, "--<transformation>--<update>create table</update>--</transformation>", 200000L)
+    val local = new TestTransformations(root.getPath + "/scripts", Some(manifest.getPath)).localTransformations
+
+    assert("create table" === local(0).asInstanceOf[LocalTransformation].updateScript)
+  }
+
+  "Broken files" should "be skipped without affecting the others" in {
+    val root = Files.createTempDirectory("transformations").toFile
+    write(new File(root, "1.0/broken.sql"), "--<transformation>--<update>create", 100000L)
+    write(new File(root, "1.0/valid.sql"), "--<transformation>--<update>create</update>--</transformation>", 100000L)
+    write(new File(root, "2.0/broken.xml"), "<transformation></transformation>", 100000L)
+
+    val local = new TestTransformations(root.getPath).localTransformations
+
+    assert(List("1.0/valid.sql") === local.map(_.id))
+  }
+
+  "Parsed files" should "not keep the scripts in memory" in {
+    val root = Files.createTempDirectory("transformations").toFile
+    val script = new File(root, "create.sql")
+    write(script, "--<transformation>--<update>create</update>--</transformation>", 100000L)
+
+    val local = new TestTransformations(root.getPath).localTransformations
+    write(script, "--<transformation>--<update>CREATE</update>--</transformation>", 100000L)
+
+    intercept[TransformationException] {
+      local(0).asInstanceOf[LocalTransformation].updateScript
+    }
+  }
+
+  "Transformations packaged into a jar" should "be read right from the jar" in {
+    val jar = new File(Files.createTempDirectory("transformations").toFile, "transformations.jar")
+    val env = new java.util.HashMap[String, String]()
+    env.put("create", "true")
+    val zip = FileSystems.newFileSystem(URI.create("jar:" + jar.toURI), env)
+    try {
+      Files.createDirectories(zip.getPath("/db/1.0"))
+      Files.write(zip.getPath("/db/1.0/create.sql"),
+        "--<transformation>--<update>create</update>--</transformation>".getBytes)
+      Files.write(zip.getPath("/db/2.0.xml"), "<transformation><update>alter</update></transformation>".getBytes)
+    } finally {
+      zip.close()
+    }
+
+    val root = FileLocalTransformations.toPath(URI.create("jar:" + jar.toURI + "!/db"))
+    val local = new TestTransformations("db") {
+      override def transformationsRoot: Path = root
+    }.localTransformations
+
+    assert(List("2.0.xml", "1.0/create.sql") === local.map(_.id))
+    assert("alter" === local(0).asInstanceOf[LocalTransformation].updateScript)
+  }
+
 }
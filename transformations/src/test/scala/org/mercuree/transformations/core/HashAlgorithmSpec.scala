@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import org.scalatest.FlatSpec
+
+/**
+ * [[HashAlgorithm]] test spec.
+ *
+ * @author Alexander Valyugin
+ */
+class HashAlgorithmSpec extends FlatSpec {
+
+  val Text = "The quick brown fox jumps over the lazy dog"
+
+  private def hashInChunks(algorithm: HashAlgorithm, text: String, chunk: Int): String = {
+    val sink = algorithm.newSink()
+    text.toCharArray.grouped(chunk) foreach (chars => sink.append(chars, 0, chars.length))
+    sink.result
+  }
+
+  "Hash sums" should "be formatted with the algorithm id" in {
+    assert("9e107d9d372bb6826bd81d3542a419d6" === HashAlgorithm.MD5.hash(Text))
+    assert("sha256:d7a8fbb307d7809469ca9abcb0082e4f8d5651e46d3cdb762d02d0bf37c9e592" === HashAlgorithm.SHA256.hash(Text))
+    assert("murmur3:6c1b07bc7bbc4be347939ac4a93c437a" === HashAlgorithm.Murmur3.hash(Text))
+    assert("murmur3:00000000000000000000000000000000" === HashAlgorithm.Murmur3.hash(""))
+  }
+
+  they should "not depend on the way the text is fed" in {
+    val text = Text * 10 + " 😀 ünïcödé"
+    HashAlgorithm.supported foreach { algorithm =>
+      val expected = algorithm.hash(text)
+      assert(expected === algorithm.hash(text))
+      for (chunk <- List(1, 3, 16, 17, 1000)) {
+        assert(expected === hashInChunks(algorithm, text, chunk))
+      }
+    }
+  }
+
+  "Hash algorithm" should "be found out by the hash sum" in {
+    assert(HashAlgorithm.MD5 === HashAlgorithm.of(HashAlgorithm.MD5.hash(Text)))
+    assert(HashAlgorithm.SHA256 === HashAlgorithm.of(HashAlgorithm.SHA256.hash(Text)))
+    assert(HashAlgorithm.Murmur3 === HashAlgorithm.of(HashAlgorithm.Murmur3.hash(Text)))
+    assert(HashAlgorithm.matches(Text, HashAlgorithm.Murmur3.hash(Text)))
+    assert(!HashAlgorithm.matches(Text + ".", HashAlgorithm.Murmur3.hash(Text)))
+  }
+
+  it should "be found by the id" in {
+    assert(HashAlgorithm.SHA256 === HashAlgorithm("SHA256"))
+    intercept[TransformationException] {
+      HashAlgorithm("crc32")
+    }
+  }
+
+}
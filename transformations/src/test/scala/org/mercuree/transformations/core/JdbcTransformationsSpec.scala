@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import javax.sql.DataSource
+import org.h2.jdbcx.JdbcDataSource
+import org.scalatest.FlatSpec
+import scala.slick.jdbc.JdbcBackend.Database
+import scala.slick.jdbc.{StaticQuery => Sql}
+import Database.dynamicSession
+
+/**
+ * [[JdbcStoredTransformations]] test spec.
+ *
+ * @author Alexander Valyugin
+ */
+class JdbcTransformationsSpec extends FlatSpec {
+
+  val Url = "jdbc:h2:mem:jdbc"
+
+  class TestTransformations(override val localTransformations: List[Transformation],
+                            override val baseline: Option[String] = None,
+                            override val parallelism: Int = 1,
+                            override val failFast: Boolean = false,
+                            url: String = Url)
+    extends Transformations with LocalTransformations with JdbcStoredTransformations {
+    val dataSource: DataSource = {
+      val dataSource = new JdbcDataSource
+      dataSource.setURL(url)
+      dataSource
+    }
+  }
+
+  class SlickTransformations(override val localTransformations: List[Transformation])
+    extends Transformations with LocalTransformations with SlickStoredTransformations {
+    val db = Database.forURL(Url, driver = "org.h2.Driver")
+  }
+
+  val db = Database.forURL(Url, driver = "org.h2.Driver")
+
+  private def prepareTestTable(): Unit = Sql.updateNA("create table persons (id int, fullname varchar(255));").execute
+
+  private def names(): List[String] = Sql.queryNA[String]("select fullname from persons order by id;").list
+
+  "Transformations" should "be applied, reapplied and rolled back" in {
+    val john = LocalTransformation("1.0/john.sql", "insert into persons values (1, 'John');", "delete from persons where id = 1;")
+    val jane = LocalTransformation("1.0/jane.sql", "insert into persons values (2, 'Jane');", "delete from persons where id = 2;")
+    val johnny = LocalTransformation("1.0/john.sql", "insert into persons values (1, 'Johnny');", "delete from persons where id = 1;")
+
+    db.withDynSession {
+      prepareTestTable
+      new TestTransformations(List(john, jane)).run
+      assert(List("John", "Jane") === names)
+
+      val pack = new TestTransformations(List(johnny))
+      pack.run
+      assert(List("Johnny") === names)
+      assert(pack.inspect(pack.findById("1.0/john.sql")).exists(it => pack.inspect(it.rollbackScript) == johnny.rollbackScript))
+      assert(List("1.0/john.sql", "1.0/jane.sql", "1.0/john.sql", "1.0/jane.sql") === pack.inspect(pack.findHistory()).map(_.id))
+      assert(pack.plan().isEmpty)
+    }
+  }
+
+  "Stored transformations" should "be shared with the Slick implementation" in {
+    val locals = List(
+      LocalTransformation("1.0/john.sql", "insert into persons values (1, 'John');", "delete from persons where id = 1;"),
+      LocalTransformation("2.0/jane.sql", "insert into persons values (2, 'Jane');", "delete from persons where id = 2;"))
+
+    db.withDynSession {
+      prepareTestTable
+      new TestTransformations(locals, baseline = Some("1.0/john.sql")).run
+      assert(List("John", "Jane") === names)
+
+      val slick = new SlickTransformations(locals.tail)
+      assert(1 === slick.plan().steps.count(_.action == PlanAction.Rollback))
+      slick.run
+      assert(List("Jane") === names)
+      assert(new TestTransformations(locals.tail).plan().isEmpty)
+    }
+  }
+
+  "Run checkpoint" should "be kept apart from the transformation checkpoints" in {
+    val john = LocalTransformation("1.0/john.sql", "insert into persons values (1, 'John');", "")
+    val failing = LocalTransformation("1.0/jane.sql", "insert into persons values (2, 3, 4);", "")
+
+    db.withDynSession {
+      prepareTestTable
+      intercept[Exception] {
+        new TestTransformations(List(john, failing), failFast = true).run
+      }
+      val checkpoint = new SlickTransformations(Nil).findRunCheckpoint()
+      assert(checkpoint.exists(c => c.position == 1 && c.failure.exists(_ startsWith "[1.0/jane.sql]")))
+      assert(0 == Sql.queryNA[Int]("select count(*) from \"transformations_checkpoint\";").first)
+    }
+  }
+
+  "Scripts" should "be shared safely by transformations applied concurrently" in {
+    val url = "jdbc:h2:mem:jdbcShared;MVCC=TRUE"
+    def pack(version: Int) = new TestTransformations((1 to 32).toList map { i =>
+      LocalTransformation(s"$i/test", s"create table t${i}_$version (id int);", "")
+    }, parallelism = 4, failFast = true, url = url)
+
+    Database.forURL(url, driver = "org.h2.Driver").withDynSession {
+      // Keeps the database alive between the sessions
+      Sql.queryNA[Int]("select 1").first
+      pack(1).run
+      val reapplied = pack(2)
+      reapplied.run
+      assert(33 == Sql.queryNA[Int]("select count(*) from \"transformations_script\";").first)
+      assert(reapplied.inspect(reapplied.findHistory()).forall(_.succeeded))
+    }
+  }
+
+  "Script counts" should "add up the work of every script applied" in {
+    val pack = new TestTransformations(Nil)
+
+    db.withDynSession {
+      prepareTestTable
+      val counts = pack.transform(pack.countingScripts {
+        pack.applyScript("insert into persons values (1, 'John'); insert into persons values (2, 'Jane');")
+        pack.applyScript("delete from persons where id = 1;")
+      })
+      assert(ScriptCounts(rows = 3, statements = 3, roundTrips = 2) === counts)
+    }
+  }
+
+  "Execution history" should "be queried for the slowest runs and regressions within the database" in {
+    def record(id: String, startedAt: Long, duration: Long, outcome: String = HistoryRecord.Success) =
+      HistoryRecord(id, "reapply", startedAt, startedAt + duration, duration, 0, "node", outcome)
+    val history = List(
+      record("a", 1, 100), record("a", 2, 120), record("a", 3, 400),
+      record("b", 1, 500), record("b", 2, 450),
+      record("c", 1, 50), record("c", 2, 5000, HistoryRecord.Failure),
+      record("d", 1, 1000))
+    val pack = new TestTransformations(Nil)
+
+    db.withDynSession {
+      // Keeps the database alive between the sessions
+      Sql.queryNA[Int]("select 1").first
+      pack.transform(pack.saveHistory(history))
+
+      assert(TransformationHistory.slowest(history, 2) === pack.slowestTransformations(2))
+      assert(TransformationHistory.regressions(history, 2) === pack.durationRegressions(2))
+      assert(List(110L) === pack.durationRegressions(2).map(_.usualDuration))
+    }
+  }
+
+}
@@ -33,6 +33,10 @@ class LocalTransformationSpec extends FlatSpec {
   private val NoRollbackScriptXml = <transformation><update>script</update></transformation>
   private val DisabledXml = <transformation enabled="false"><update>script</update></transformation>
   private val SkippedXml = <transformation><update>script</update></transformation>
+  private val DependentXml = <transformation dependsOn="1.0/a.sql, 2.0/b.sql"><update>script</update></transformation>
+  private val ChunkedXml = <transformation chunkTable="persons" chunkKey="id" chunkSize="500" chunkThrottle="20">
+    <update>{"update persons set name = upper(name) where id >= ${from} and id < ${to};"}</update>
+  </transformation>
 
   "A transformation construction" should "fail if the root tag is invalid" in {
     intercept[TransformationException] {
@@ -61,7 +65,7 @@ class LocalTransformationSpec extends FlatSpec {
   it should "not fail if the rollback script is missing" in {
     val transformation = LocalTransformation.parseXML(NoRollbackScriptXml, "id")
     transformation match {
-      case LocalTransformation(_, _, "", _, _, _) => assert(true)
+      case LocalTransformation(_, _, "", _, _, _, _) => assert(true)
       case _ => assert(false, "Rollback script should not be mandatory")
     }
   }
@@ -95,6 +99,29 @@ class LocalTransformationSpec extends FlatSpec {
 
   }
 
+  "Transformation dependencies" should "be loaded from the attribute" in {
+    val transformation = LocalTransformation.parseXML(DependentXml, "id")
+
+    transformation match {
+      case t: LocalTransformation => assert(List("1.0/a.sql", "2.0/b.sql") === t.dependsOn)
+      case _ => assert(false, "Should be instanceof LocalTransformation")
+    }
+  }
+
+  "Chunked transformation" should "be loaded from the attributes" in {
+    val transformation = LocalTransformation.parseXML(ChunkedXml, "id")
+
+    transformation match {
+      case t: ChunkedLocalTransformation =>
+        assert("persons" === t.table)
+        assert("id" === t.key)
+        assert(500 === t.chunkSize)
+        assert(20 === t.throttle)
+        assert("update persons set name = upper(name) where id >= 1 and id < 501;" === t.chunkScript(1, 501))
+      case _ => assert(false, "Should be instanceof ChunkedLocalTransformation")
+    }
+  }
+
   "Disabled transformation" should "be loaded properly" in {
     val transformation = LocalTransformation.parseXML(DisabledXml, "id")
 
@@ -113,4 +140,20 @@ class LocalTransformationSpec extends FlatSpec {
     }
   }
 
+  "Released scripts" should "be loaded again when needed" in {
+    var loads = 0
+    val local = new LocalTransformation("test", {
+      loads += 1
+      ("update", "rollback")
+    }, "", "", true, false, true, Nil)
+
+    assert(0 === loads)
+    assert("update" === local.updateScript)
+    assert("rollback" === local.rollbackScript)
+    assert(1 === loads)
+    local.release()
+    assert("update" === local.updateScript)
+    assert(2 === loads)
+  }
+
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import org.scalatest.FlatSpec
+import scala.slick.jdbc.JdbcBackend.Database
+import scala.slick.jdbc.{StaticQuery => Sql}
+import Database.dynamicSession
+
+/**
+ * [[MultiTargetTransformations]] test spec.
+ *
+ * @author Alexander Valyugin
+ */
+class MultiTargetTransformationsSpec extends FlatSpec {
+
+  private def url(tenant: String) = s"jdbc:h2:mem:$tenant;DB_CLOSE_DELAY=-1"
+
+  class TestTransformations(override val localTransformations: List[Transformation], tenant: String,
+                            override val failFast: Boolean = false)
+    extends Transformations with LocalTransformations with SlickStoredTransformations {
+    val db = Database.forURL(url(tenant), driver = "org.h2.Driver")
+  }
+
+  "Targets" should "be transformed independently of each other" in {
+    val shared = List(
+      LocalTransformation("1", "insert into persons values (1, 'John');", "delete from persons;"),
+      LocalTransformation("2", "insert into persons values (2, 'Jane');", ""))
+    val tenants = List("tenant1", "tenant2", "tenant3")
+    tenants foreach { tenant =>
+      Database.forURL(url(tenant), driver = "org.h2.Driver") withDynSession {
+        Sql.updateNA("create table persons (id int, fullname varchar(255));").execute
+      }
+    }
+    val targets = tenants.map(t => t -> new TestTransformations(shared, t)) ++ List(
+      "partial" -> new TestTransformations(shared, "partial"),
+      "broken" -> new TestTransformations(shared, "broken", failFast = true),
+      "crashed" -> new TestTransformations(shared, "crashed") {
+        override def run: Unit = throw new NoClassDefFoundError("org/h2/Driver")
+      },
+      "overflowed" -> new TestTransformations(shared, "overflowed") {
+        override def run: Unit = throw new StackOverflowError
+      })
+
+    val results = new MultiTargetTransformations(2).run(targets)
+
+    assert(tenants ++ List("partial", "broken", "crashed", "overflowed") === results.map(_.target))
+    assert(Some("org/h2/Driver") === results(5).failure)
+    assert(Some(classOf[StackOverflowError].getName) === results(6).failure)
+    results.take(3) foreach { r =>
+      assert(r.succeeded)
+      assert(2 === r.applied)
+    }
+    assert(!results(3).succeeded && results(3).failure.isEmpty && 2 === results(3).failed)
+    assert(!results(4).succeeded && results(4).failure.isDefined)
+    tenants foreach { tenant =>
+      Database.forURL(url(tenant), driver = "org.h2.Driver") withDynSession {
+        assert(2 == Sql.queryNA[Int]("select count(*) from persons;").first)
+      }
+    }
+  }
+
+}
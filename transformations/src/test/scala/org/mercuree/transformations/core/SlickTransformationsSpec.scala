@@ -20,6 +20,7 @@ import org.scalatest.FlatSpec
 import scala.slick.driver.H2Driver
 import scala.slick.jdbc.JdbcBackend.{Database, Session}
 import scala.slick.jdbc.{StaticQuery => Sql}
+import scala.slick.jdbc.meta.MTable
 import Database.dynamicSession
 
 /**
@@ -29,7 +30,12 @@ import Database.dynamicSession
  */
 class SlickTransformationsSpec extends FlatSpec {
 
-  class TestTransformations(override val localTransformations: List[Transformation])
+  class TestTransformations(override val localTransformations: List[Transformation],
+                            override val parallelism: Int = 1,
+                            override val lockTimeout: Long = 60 * 1000,
+                            override val lockLease: Long = 60 * 1000,
+                            override val failFast: Boolean = false,
+                            override val baseline: Option[String] = None)
     extends Transformations with LocalTransformations with SlickStoredTransformations {
     val db = Database.forURL("jdbc:h2:mem:test", driver = "org.h2.Driver")
   }
@@ -56,6 +62,13 @@ class SlickTransformationsSpec extends FlatSpec {
 
   private def countPersons(): Int = Sql.queryNA[Int](CountPersonsSql).first
 
+  private def createLockTable(): Unit = Sql.updateNA("""create table "transformations_lock" (
+    |"name" varchar(64) primary key,
+    |"owner" varchar(256),
+    |"expires_at" bigint,
+    |"version" bigint
+    |);""".stripMargin).execute
+
   "Disabled transformation" should "be rolled back if had been applied previously" in {
     val local1 = LocalTransformation("test", InsertPersonSql, DeletePersonSql)
     val local2 = DisabledTransformation("test")
@@ -97,4 +110,382 @@ class SlickTransformationsSpec extends FlatSpec {
     }
   }
 
+  "Independent transformations" should "be applied concurrently" in {
+    val local1 = LocalTransformation("a/test", InsertPersonSql, DeletePersonSql)
+    val local2 = LocalTransformation("b/test", "insert into persons values (2, 'Jane Smith');", "")
+    val local3 = LocalTransformation("b/test2", "update persons set fullname = 'Jane' where id = 2;", "")
+    val pack = new TestTransformations(List(local1, local2, local3), parallelism = 2)
+
+    db.withDynSession {
+      prepareTestTable
+      pack.run
+      assert(2 == countPersons)
+      assert(1 == Sql.queryNA[Int]("select count(*) from persons where fullname = 'Jane';").first)
+      assert(3 == pack.findAllHashes().size)
+    }
+  }
+
+  "Streamed transformation" should "be applied statement by statement" in {
+    val text = s"<transformation><update>$InsertPersonSql insert into persons values (2, 'Jane Smith');</update>" +
+      s"<rollback>delete from persons;</rollback></transformation>"
+    val local = StreamingLocalTransformation.load(() => new java.io.StringReader(text), "test")
+    val pack = new TestTransformations(List(local))
+
+    db.withDynSession {
+      prepareTestTable
+      pack.run
+      assert(2 == countPersons)
+      assert(pack.findById("test").exists(_.rollbackScript == "delete from persons;"))
+    }
+  }
+
+  it should "not store the placeholder under the hash sum of its update script" in {
+    val update = "update persons set fullname = upper(fullname); update persons set fullname = trim(fullname);"
+    val text = s"<transformation><update>$update</update></transformation>"
+    val streamed = StreamingLocalTransformation.load(() => new java.io.StringReader(text), "streamed")
+      .asInstanceOf[StreamingLocalTransformation]
+    val copy = LocalTransformation("copy", update, "")
+
+    db.withDynSession {
+      prepareTestTable
+      new TestTransformations(List(streamed)).run
+      val pack = new TestTransformations(List(streamed, copy))
+      pack.run
+      assert(streamed.updateScriptHash === copy.updateScriptHash)
+      assert(Some(update) === pack.findById("copy").map(_.updateScript))
+    }
+  }
+
+  "Hash sums of another algorithm" should "be migrated without applying the transformation again" in {
+    val insert = "insert into persons (fullname) values ('John Smith');"
+    val pack1 = new TestTransformations(List(LocalTransformation("test", insert, "")))
+    val pack2 = new TestTransformations(List(LocalTransformation("test", insert, "",
+      hashAlgorithm = HashAlgorithm.SHA256)))
+
+    db.withDynSession {
+      prepareTestTable
+      pack1.run
+      pack2.run
+      assert(1 == countPersons)
+      assert(pack2.findAllHashes().head.updateScriptHash === HashAlgorithm.SHA256.hash(insert))
+    }
+  }
+
+  "Plan" should "not change the database" in {
+    val pack = new TestTransformations(List(LocalTransformation("test", InsertPersonSql, DeletePersonSql)))
+
+    db.withDynSession {
+      val plan = pack.plan()
+      assert(List(PlanAction.Apply) === plan.steps.map(_.action))
+      assert(InsertPersonSql.length === plan.scriptSize)
+      assert(MTable.getTables.list.isEmpty)
+    }
+  }
+
+  it should "estimate the stored rollback scripts size" in {
+    val pack1 = new TestTransformations(List(LocalTransformation("test", InsertPersonSql, DeletePersonSql)))
+    val pack2 = new TestTransformations(List())
+
+    db.withDynSession {
+      prepareTestTable
+      pack1.run
+      assert(pack1.plan().isEmpty)
+      assert(List(PlanStep("test", PlanAction.Rollback, "is missing locally", DeletePersonSql.length)) ===
+        pack2.plan().steps)
+    }
+  }
+
+  "Transformations" should "be run by one process at a time" in {
+    val insert = "insert into persons (fullname) values ('John Smith');"
+    val packs = List.fill(4)(new TestTransformations(List(LocalTransformation("test", insert, ""))))
+
+    db.withDynSession {
+      prepareTestTable
+      val threads = packs map (pack => new Thread(new Runnable {
+        override def run(): Unit = pack.run
+      }))
+      threads foreach (_.start())
+      threads foreach (_.join())
+      assert(1 == countPersons)
+      assert(1 == packs.head.findAllHashes().size)
+      assert("" == Sql.queryNA[String]("""select "owner" from "transformations_lock";""").first)
+    }
+  }
+
+  "Transformations lock" should "be taken over once expired" in {
+    val pack = new TestTransformations(List(LocalTransformation("test", InsertPersonSql, "")), lockTimeout = 500)
+
+    db.withDynSession {
+      prepareTestTable
+      createLockTable()
+      Sql.updateNA("""insert into "transformations_lock" values ('transformations', 'dead', 0, 7);""").execute
+      pack.run
+      assert(1 == countPersons)
+    }
+  }
+
+  it should "not be taken over while held" in {
+    val pack = new TestTransformations(List(LocalTransformation("test", InsertPersonSql, "")), lockTimeout = 500)
+
+    db.withDynSession {
+      prepareTestTable
+      createLockTable()
+      Sql.updateNA(s"""insert into "transformations_lock" values ('transformations', 'alive', ${Long.MaxValue}, 7);""").execute
+      intercept[TransformationException] {
+        pack.run
+      }
+      assert(0 == countPersons)
+    }
+  }
+
+  it should "abort the run once lost" in {
+    val steal = LocalTransformation("1/steal", """update "transformations_lock" set "owner" = 'thief';""", "")
+    val insert = LocalTransformation("2/insert", InsertPersonSql, "")
+    val pack = new TestTransformations(List(steal, insert), lockLease = 300) {
+      override protected def onApply(local: LocalTransformation, stored: Option[StoredTransformationHash]): Unit = {
+        super.onApply(local, stored)
+        // Gives the lock a chance to be renewed
+        Thread.sleep(lockLease)
+      }
+    }
+
+    db.withDynSession {
+      prepareTestTable
+      intercept[TransformationException] {
+        pack.run
+      }
+      assert(0 == countPersons)
+      assert(List("1/steal") === pack.findAllHashes().map(_.id))
+    }
+  }
+
+  "Chunked transformation" should "process the table range by range" in {
+    val update = "update persons set fullname = 'Jane' where id >= ${from} and id < ${to};"
+    val local = new ChunkedLocalTransformation("test", (update, ""), HashAlgorithm.Default.hash(update),
+      HashAlgorithm.Default.hash(""), true, false, Nil, "persons", "id", 10, 0)
+    val pack = new TestTransformations(List(local))
+
+    db.withDynSession {
+      prepareTestTable
+      (1 to 25) foreach (_ => Sql.updateNA("insert into persons (fullname) values ('John');").execute)
+      pack.run
+      assert(25 == Sql.queryNA[Int]("select count(*) from persons where fullname = 'Jane';").first)
+      assert(pack.findById("test").isDefined)
+      assert(pack.findCheckpoint("test").isEmpty)
+    }
+  }
+
+  it should "be resumed from the checkpoint" in {
+    val update = "update persons set fullname = 'Jane' where id >= ${from} and id < ${to};"
+    val local = new ChunkedLocalTransformation("test", (update, ""), HashAlgorithm.Default.hash(update),
+      HashAlgorithm.Default.hash(""), true, false, Nil, "persons", "id", 10, 0)
+    val pack = new TestTransformations(List(local))
+
+    db.withDynSession {
+      prepareTestTable
+      (1 to 25) foreach (_ => Sql.updateNA("insert into persons (fullname) values ('John');").execute)
+      pack.transform(pack.saveCheckpoint(Checkpoint("test", local.updateScriptHash, 21)))
+      pack.run
+      assert(5 == Sql.queryNA[Int]("select count(*) from persons where fullname = 'Jane';").first)
+      assert(0 == Sql.queryNA[Int]("select count(*) from persons where fullname = 'Jane' and id < 21;").first)
+      assert(pack.findCheckpoint("test").isEmpty)
+    }
+  }
+
+  "Execution history" should "record every action" in {
+    val insert = "insert into persons (fullname) values ('John Smith'); insert into persons (fullname) values ('Jane Smith');"
+    val local = LocalTransformation("test", insert, "delete from persons;")
+    val pack = new TestTransformations(List(local))
+
+    db.withDynSession {
+      prepareTestTable
+      pack.run
+      new TestTransformations(Nil).run
+      val history = pack.findHistory().sortBy(_.startedAt)
+
+      assert(List("apply", "rollback") === history.map(_.action))
+      assert(List(2L, 2L) === history.map(_.rows))
+      assert(history.forall(r => r.succeeded && r.id == "test" && r.node == pack.nodeId))
+      assert(history.forall(r => r.duration > 0 && r.finishedAt >= r.startedAt))
+      assert(history.map(_.duration).max === pack.slowestTransformations(1).head.duration)
+    }
+  }
+
+  "Fail fast run" should "stop at the first failure and be resumed from it" in {
+    val always = LocalTransformation("a/1", "insert into persons (fullname) values ('Always');", "", runAlways = true)
+    val failing = LocalTransformation("a/2", FailingSql, "")
+    val fixed = LocalTransformation("a/2", "insert into persons (fullname) values ('Fixed');", "")
+    val last = LocalTransformation("a/3", "insert into persons (fullname) values ('Last');", "")
+
+    db.withDynSession {
+      prepareTestTable
+      intercept[Exception] {
+        new TestTransformations(List(always, failing, last), failFast = true).run
+      }
+      assert(1 == countPersons)
+      val pack = new TestTransformations(List(always, fixed, last), failFast = true)
+      val checkpoint = pack.findRunCheckpoint()
+      assert(checkpoint.exists(c => c.position == 1 && c.failure.exists(_ startsWith "[a/2]")))
+
+      // The one run always is not run again as it has been processed by the failed run
+      pack.run
+      assert(3 == countPersons)
+      assert(pack.findRunCheckpoint().isEmpty)
+      pack.run
+      assert(4 == countPersons)
+    }
+  }
+
+  "Transformation not run in transaction" should "be resumed after the last successful statement" in {
+    val script = "insert into persons (fullname) values ('John'); insert into others values (1);"
+    val local = LocalTransformation("test", script, "", runInTransaction = false)
+    val pack = new TestTransformations(List(local))
+
+    db.withDynSession {
+      prepareTestTable
+      pack.run
+      assert(1 == countPersons)
+      assert(pack.findCheckpoint("test").exists(_.position == 1))
+      assert(pack.findById("test").isEmpty)
+
+      Sql.updateNA("create table others (id int);").execute
+      pack.run
+      assert(1 == countPersons)
+      assert(1 == Sql.queryNA[Int]("select count(*) from others;").first)
+      assert(pack.findCheckpoint("test").isEmpty)
+      assert(pack.findById("test").isDefined)
+    }
+  }
+
+  "Scripts" should "be stored once and deleted once not referenced" in {
+    val local1 = LocalTransformation("test1", InsertPersonSql, "delete from persons;")
+    val local2 = LocalTransformation("test2", "insert into persons values (2, 'Jane Smith');", "delete from persons;")
+    def countScripts = Sql.queryNA[Int]("select count(*) from \"transformations_script\";").first
+
+    db.withDynSession {
+      prepareTestTable
+      new TestTransformations(List(local1, local2)).run
+      assert(3 == countScripts)
+
+      val pack = new TestTransformations(List(local1))
+      pack.run
+      assert(2 == countScripts)
+      assert(pack.findById("test1").exists(_.rollbackScript == "delete from persons;"))
+      assert(pack.findAllHashes().head.rollbackScriptSize == "delete from persons;".length)
+    }
+  }
+
+  it should "be shared safely by transformations applied concurrently" in {
+    // Row level locking, so that concurrent transactions really interleave over the script table
+    val database = Database.forURL("jdbc:h2:mem:shared;MVCC=TRUE", driver = "org.h2.Driver")
+    def pack(version: Int) = new TestTransformations((1 to 32).toList map { i =>
+      LocalTransformation(s"$i/test", s"create table t${i}_$version (id int);", "")
+    }, parallelism = 4, failFast = true) {
+      override val db = database
+    }
+
+    database.withDynSession {
+      // Keeps the database alive between the sessions
+      Sql.queryNA[Int]("select 1").first
+      pack(1).run
+      // Every transformation is reapplied, releasing its previous update script
+      pack(2).run
+      assert(33 == Sql.queryNA[Int]("select count(*) from \"transformations_script\";").first)
+      assert((1 to 32).forall(i => pack(2).findById(s"$i/test").exists(_.rollbackScript == "")))
+      assert(pack(2).findHistory().forall(_.succeeded))
+    }
+  }
+
+  "Transformation table keeping the scripts inline" should "be migrated to the script table" in {
+    val local = LocalTransformation("test", InsertPersonSql, DeletePersonSql)
+    val pack = new TestTransformations(List(local))
+
+    db.withDynSession {
+      prepareTestTable
+      Sql.updateNA(InsertPersonSql).execute
+      Sql.updateNA("""create table "transformations" (
+        |"name" varchar(256) primary key,
+        |"update_script" text,
+        |"update_script_hash" char(128),
+        |"rollback_script" text,
+        |"rollback_script_hash" char(128)
+        |);""".stripMargin).execute
+      Sql.update[(String, String, String, String)]("""insert into "transformations" values ('test', ?, ?, ?, ?)""")
+        .first((InsertPersonSql, local.updateScriptHash, DeletePersonSql, local.rollbackScriptHash))
+      assert(DeletePersonSql.length == pack.findAllHashes().head.rollbackScriptSize)
+
+      pack.run
+      assert(1 == countPersons)
+      assert(pack.findById("test").exists(_.rollbackScript == DeletePersonSql))
+
+      val modified = new TestTransformations(List(LocalTransformation("test", InsertPersonSql, "delete from persons;")))
+      modified.run
+      assert(!MTable.getTables("transformations").first.getColumns.list.exists(_.name == "update_script"))
+      assert(modified.findById("test").exists(_.updateScript == InsertPersonSql))
+    }
+  }
+
+  "Baseline" should "be applied to a fresh database at once" in {
+    val locals = List(
+      LocalTransformation("1.0/john.sql", InsertPersonSql, DeletePersonSql),
+      LocalTransformation("1.0/jane.sql", "insert into persons values (2, 'Jane Smith');", ""),
+      LocalTransformation("2.0/jim.sql", "insert into persons values (3, 'Jim Smith');", ""))
+    val pack = new TestTransformations(locals, baseline = Some("1.0/jane.sql"))
+
+    db.withDynSession {
+      prepareTestTable
+      pack.run
+      assert(3 == countPersons)
+      assert(3 == pack.findAllHashes().size)
+      assert(List("baseline:1.0/jane.sql", "2.0/jim.sql") === pack.findHistory().map(_.id))
+    }
+  }
+
+  "Template clones" should "be independent copies of the transformed database" in {
+    val local = LocalTransformation("test", InsertPersonSql, DeletePersonSql)
+    val template = new H2Template("template")(database => database.withDynSession {
+      prepareTestTable
+      new TestTransformations(List(local)) {
+        override val db = database
+      }.run
+    })
+
+    template.withClone { database =>
+      database.withDynSession {
+        assert(1 == countPersons)
+        Sql.updateNA(DeletePersonSql).execute
+      }
+    }
+    template.withClone { database =>
+      val pack = new TestTransformations(List(local)) {
+        override val db = database
+      }
+      database.withDynSession {
+        assert(1 == countPersons)
+        assert(pack.plan().isEmpty)
+      }
+    }
+  }
+
+  "Execution history" should "be queried for the slowest runs and regressions within the database" in {
+    def record(id: String, startedAt: Long, duration: Long, outcome: String = HistoryRecord.Success) =
+      HistoryRecord(id, "reapply", startedAt, startedAt + duration, duration, 0, "node", outcome)
+    val history = List(
+      record("a", 1, 100), record("a", 2, 120), record("a", 3, 400),
+      record("b", 1, 500), record("b", 2, 450),
+      record("c", 1, 50), record("c", 2, 5000, HistoryRecord.Failure),
+      record("d", 1, 1000))
+    val pack = new TestTransformations(Nil)
+
+    db.withDynSession {
+      // Keeps the database alive between the sessions
+      Sql.queryNA[Int]("select 1").first
+      pack.transform(pack.saveHistory(history))
+
+      assert(TransformationHistory.slowest(history, 2) === pack.slowestTransformations(2))
+      assert(TransformationHistory.regressions(history, 2) === pack.durationRegressions(2))
+      assert(List(110L) === pack.durationRegressions(2).map(_.usualDuration))
+    }
+  }
+
 }
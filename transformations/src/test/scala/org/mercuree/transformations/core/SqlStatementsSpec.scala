@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import org.scalatest.FlatSpec
+import java.sql.DriverManager
+
+/**
+ * [[SqlStatementSplitter]] and [[BatchingStatementExecutor]] test.
+ *
+ * @author Alexander Valyugin
+ */
+class SqlStatementsSpec extends FlatSpec {
+
+  "Sql script" should "be split by the delimiter" in {
+    assert(List("create table a (id int)", "drop table a") ===
+      SqlStatementSplitter.split("create table a (id int);\n drop table a;\n"))
+  }
+
+  it should "keep the last statement without the delimiter" in {
+    assert(List("insert into a values (1)", "delete from a") ===
+      SqlStatementSplitter.split("insert into a values (1); delete from a"))
+  }
+
+  "Delimiters inside literals and comments" should "be ignored" in {
+    val script =
+      """insert into a values ('a;b', "c;d");
+        |-- comment; here
+        |/* block; comment */ delete from a where b = 'it''s;';
+        |-- trailing comment;""".stripMargin
+
+    assert(List("insert into a values ('a;b', \"c;d\")",
+      "-- comment; here\n/* block; comment */ delete from a where b = 'it''s;'") === SqlStatementSplitter.split(script))
+  }
+
+  "Arithmetic operators" should "not be taken as comments" in {
+    assert(List("select 4 - 2 / 1", "-") === SqlStatementSplitter.split("select 4 - 2 / 1;-"))
+  }
+
+  "Text split into chunks" should "give the same statements" in {
+    val script = "insert into a values ('x;y'); /* c;\n */ delete from a; -- end;\n update a set b = 1"
+    val statements = List.newBuilder[String]
+    val splitter = new SqlStatementSplitter(statements += _)
+    script.toCharArray.grouped(3) foreach (chunk => splitter.append(chunk, 0, chunk.length))
+    splitter.finish()
+
+    assert(SqlStatementSplitter.split(script) === statements.result())
+  }
+
+  "Dollar quoted bodies" should "not be split" in {
+    val script = "create function f() returns int as $body$ select 1; $body$ language sql; " +
+      "create alias g as $$ int g() { return 1; } $$; select $1 from a"
+
+    assert(List("create function f() returns int as $body$ select 1; $body$ language sql",
+      "create alias g as $$ int g() { return 1; } $$", "select $1 from a") === SqlStatementSplitter.split(script))
+  }
+
+  "Custom delimiter" should "be used to split" in {
+    assert(List("begin select 1; end", "select 2") === SqlStatementSplitter.split("begin select 1; end//select 2//", "//"))
+  }
+
+  "Delimiter directive" should "change the delimiter" in {
+    val script = "select 1;\nDELIMITER //\ncreate procedure p() begin select 1; end//\ndelimiter ;\nselect 2;"
+
+    assert(List("select 1", "create procedure p() begin select 1; end", "select 2") === SqlStatementSplitter.split(script))
+  }
+
+  "Data manipulation statements" should "be recognized" in {
+    assert(BatchingStatementExecutor.isDml("  INSERT into a values (1)"))
+    assert(BatchingStatementExecutor.isDml("-- comment\n/* block */ update a set b = 1"))
+    assert(BatchingStatementExecutor.isDml("delete from a"))
+    assert(!BatchingStatementExecutor.isDml("create table inserts (id int)"))
+    assert(!BatchingStatementExecutor.isDml("insertion"))
+  }
+
+  "Consecutive data manipulation statements" should "be executed in batches" in {
+    val connection = DriverManager.getConnection("jdbc:h2:mem:batching")
+    try {
+      val executor = new BatchingStatementExecutor(connection, 3)
+      executor.execute("create table a (id int)")
+      (1 to 7) foreach (i => executor.execute(s"insert into a values ($i)"))
+      executor.execute("create index a_id on a (id)")
+      executor.execute("delete from a where id = 1")
+      executor.flush()
+      executor.close()
+
+      assert(10 === executor.statements)
+      assert(6 === executor.roundTrips)
+      val result = connection.createStatement().executeQuery("select count(*) from a")
+      result.next()
+      assert(6 === result.getInt(1))
+    } finally {
+      connection.close()
+    }
+  }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import org.scalatest.FlatSpec
+import java.io.{File, StringReader}
+import java.nio.file.Files
+
+/**
+ * [[StreamingLocalTransformation]] test.
+ *
+ * @author Alexander Valyugin
+ */
+class StreamingLocalTransformationSpec extends FlatSpec {
+
+  private def load(text: String, id: String = "id") =
+    StreamingLocalTransformation.load(() => new SqlXmlReader(new StringReader(text)), id)
+
+  "Streamed transformation" should "have the same hash sums as the parsed one" in {
+    val file = new File(getClass.getResource("/transformations/1.0/create_table.sql").toURI)
+    val parsed = LocalTransformation.fromFile(file, "id").asInstanceOf[LocalTransformation]
+    val streamed = StreamingLocalTransformation.fromFile(file, "id").asInstanceOf[StreamingLocalTransformation]
+
+    assert(parsed.updateScriptHash === streamed.updateScriptHash)
+    assert(parsed.rollbackScriptHash === streamed.rollbackScriptHash)
+    assert(parsed.rollbackScript === streamed.rollbackScript)
+    assert(parsed.runInTransaction === streamed.runInTransaction)
+  }
+
+  it should "feed update statements one by one" in {
+    val text = "--<transformation runAlways=\"true\">\n--<update>\n insert into a values (1);\n" +
+      "insert into a values ('a;b');\n--</update>\n--<rollback>delete from a;</rollback>\n--</transformation>"
+    val streamed = load(text).asInstanceOf[StreamingLocalTransformation]
+    val statements = List.newBuilder[String]
+    streamed.feedUpdateScript(new SqlStatementSplitter(statements += _))
+
+    assert(List("insert into a values (1)", "insert into a values ('a;b')") === statements.result())
+    assert("delete from a;" === streamed.rollbackScript)
+    assert(streamed.runAlways)
+  }
+
+  it should "fail if modified after being loaded" in {
+    val file = Files.createTempFile("transformation", ".sql")
+    Files.write(file, "<transformation><update>insert into a values (1);</update></transformation>".getBytes)
+    val streamed = StreamingLocalTransformation.fromFile(file.toFile, "id").asInstanceOf[StreamingLocalTransformation]
+    Files.write(file, "<transformation><update>insert into a values (2);</update></transformation>".getBytes)
+
+    intercept[TransformationException] {
+      streamed.feedUpdateScript(IgnoringSink)
+    }
+  }
+
+  "Transformation without update script" should "not be loaded" in {
+    intercept[TransformationException] {
+      load("<transformation><update> </update></transformation>")
+    }
+  }
+
+  "Disabled and skipped transformations" should "be recognized" in {
+    assert(DisabledTransformation("id") === load("<transformation enabled=\"false\"></transformation>"))
+    assert(SkippedTransformation("id") === load("<transformation></transformation>", "-id"))
+  }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.util.concurrent.CountDownLatch
+import org.h2.jdbcx.JdbcDataSource
+import org.scalatest.FlatSpec
+import scala.collection.JavaConversions._
+
+/**
+ * [[AsyncTransformationEventSink]] test spec.
+ *
+ * @author Alexander Valyugin
+ */
+class TransformationEventsSpec extends FlatSpec {
+
+  "Asynchronous sink" should "deliver the events in order" in {
+    val delivered = List.newBuilder[TransformationEvent]
+    val sink = new AsyncTransformationEventSink(new TransformationEventSink {
+      override def publish(event: TransformationEvent): Unit = delivered += event
+    })
+    val events = (1 to 100).map(i => TransformationApplied(i.toString, "apply", i, 0)).toList
+    events foreach sink.publish
+
+    assert(sink.flush(5000))
+    assert(events === delivered.result())
+    sink.close()
+  }
+
+  it should "drop the events rather than block when the sink falls behind" in {
+    val release = new CountDownLatch(1)
+    val sink = new AsyncTransformationEventSink(new TransformationEventSink {
+      override def publish(event: TransformationEvent): Unit = release.await()
+    }, 2)
+    val started = System.currentTimeMillis
+    (1 to 10) foreach (_ => sink.publish(RunStarted("node")))
+
+    assert(System.currentTimeMillis - started < 1000)
+    assert(sink.dropped >= 7)
+    release.countDown()
+    assert(sink.flush(5000))
+    sink.close()
+  }
+
+  "Master" should "publish the events to the sink given rather than start a thread of its own" in {
+    def deliveryThreads = Thread.getAllStackTraces.keySet.count(_.getName == "transformations-events")
+    val dataSource = new JdbcDataSource
+    dataSource.setURL("jdbc:h2:mem:events")
+    val delivered = List.newBuilder[TransformationEvent]
+    val threads = deliveryThreads
+    val master = new JdbcTransformationsMaster(dataSource, TransformationsSettings(transformationsPath = "test"),
+      new TransformationEventSink {
+        override def publish(event: TransformationEvent): Unit = delivered += event
+      })
+    master.run
+
+    assert(delivered.result().last.isInstanceOf[RunFinished])
+    assert(threads === deliveryThreads)
+  }
+
+}
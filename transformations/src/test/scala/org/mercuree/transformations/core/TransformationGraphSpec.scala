@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import org.scalatest.FlatSpec
+import java.util.concurrent.ConcurrentLinkedQueue
+import scala.collection.JavaConversions._
+
+/**
+ * [[TransformationGraph]] test.
+ *
+ * @author Alexander Valyugin
+ */
+class TransformationGraphSpec extends FlatSpec {
+
+  private def local(id: String, dependsOn: String*) = LocalTransformation(id, "", "", dependsOn = dependsOn.toList)
+
+  "Transformations of the same directory" should "depend on the previous one" in {
+    val graph = new TransformationGraph(List(local("a/1"), local("b/1"), local("a/2"), local("3")))
+
+    assert(List("a/1") === graph.dependencies("a/2"))
+    assert(Nil === graph.dependencies("a/1"))
+    assert(Nil === graph.dependencies("b/1"))
+    assert(Nil === graph.dependencies("3"))
+  }
+
+  "Declared dependencies" should "reorder transformations" in {
+    val graph = new TransformationGraph(List(local("a/1", "b/1"), local("b/1"), local("c/1")))
+
+    assert(List("b/1", "a/1", "c/1") === graph.sorted.map(_.id))
+  }
+
+  "Unknown dependency" should "be reported" in {
+    intercept[TransformationException] {
+      new TransformationGraph(List(local("a/1", "b/1")))
+    }
+  }
+
+  "Cyclic dependency" should "be reported" in {
+    intercept[TransformationException] {
+      new TransformationGraph(List(local("a/1", "b/1"), local("b/1", "a/1"))).sorted
+    }
+  }
+
+  "Dependency chains" should "keep their order when executed concurrently" in {
+    val chains = List("a", "b", "c", "d")
+    val transformations = for (i <- (1 to 20).toList; chain <- chains) yield local(s"$chain/$i")
+    val processed = new ConcurrentLinkedQueue[String]()
+
+    new TransformationGraph(transformations).execute(4)(t => processed.add(t.id))
+
+    assert(transformations.size === processed.size)
+    chains foreach { chain =>
+      val expected = (1 to 20).map(i => s"$chain/$i").toList
+      assert(expected === processed.toList.filter(_.startsWith(chain + "/")))
+    }
+  }
+
+  "Dependants of a failed transformation" should "not be processed" in {
+    val processed = new ConcurrentLinkedQueue[String]()
+    val graph = new TransformationGraph(List(local("a/1"), local("a/2"), local("b/1")))
+
+    intercept[TransformationException] {
+      graph.execute(2) { t =>
+        if (t.id == "a/1") throw TransformationException("failed")
+        processed.add(t.id)
+      }
+    }
+    assert(List("b/1") === processed.toList)
+  }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import org.scalatest.FlatSpec
+
+/**
+ * [[TransformationHistory]] test spec.
+ *
+ * @author Alexander Valyugin
+ */
+class TransformationHistorySpec extends FlatSpec {
+
+  private def record(id: String, startedAt: Long, duration: Long, outcome: String = HistoryRecord.Success) =
+    HistoryRecord(id, "reapply", startedAt, startedAt + duration, duration, 0, "node", outcome)
+
+  val History = List(
+    record("a", 1, 100), record("a", 2, 120), record("a", 3, 400),
+    record("b", 1, 500), record("b", 2, 450),
+    record("c", 1, 50), record("c", 2, 5000, HistoryRecord.Failure),
+    record("d", 1, 1000)
+  )
+
+  "Slowest runs" should "be listed first" in {
+    assert(List(("d", 1000L), ("b", 500L)) === TransformationHistory.slowest(History, 2).map(r => (r.id, r.duration)))
+  }
+
+  "Duration regressions" should "be found comparing the latest run to the previous ones" in {
+    val regressions = TransformationHistory.regressions(History, 2)
+
+    assert(List("a") === regressions.map(_.id))
+    assert(110 === regressions.head.usualDuration)
+    assert(400 === regressions.head.latest.duration)
+  }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import org.scalatest.FlatSpec
+
+/**
+ * [[TransformationsMetrics]] test spec.
+ *
+ * @author Alexander Valyugin
+ */
+class TransformationsMetricsSpec extends FlatSpec {
+
+  "Timing histogram" should "estimate percentiles within a quarter" in {
+    val histogram = new TimingHistogram
+    (1 to 1000) foreach (i => histogram.record(i * 1000L))
+    val snapshot = histogram.snapshot
+
+    assert(1000 === snapshot.count)
+    assert(1000000 === snapshot.max)
+    assert(500500 === snapshot.mean)
+    assert(math.abs(snapshot.p50 - 500000) <= 125000)
+    assert(math.abs(snapshot.p95 - 950000) <= 237500)
+    assert(math.abs(snapshot.p99 - 990000) <= 247500)
+    assert(snapshot.p99 <= snapshot.max)
+  }
+
+  it should "keep small and huge values apart" in {
+    val histogram = new TimingHistogram
+    histogram.record(0)
+    histogram.record(3)
+    histogram.record(Long.MaxValue)
+
+    assert(3 === histogram.snapshot.p50)
+    assert(Long.MaxValue === histogram.snapshot.max)
+  }
+
+  "Metrics" should "be flattened into counters and milliseconds" in {
+    val metrics = new TransformationsMetrics
+    metrics.increment(TransformationsMetrics.Applied)
+    metrics.increment(TransformationsMetrics.Applied)
+    metrics.record(TransformationsMetrics.Apply, 2000000)
+    metrics.record(TransformationsMetrics.Transformation + "1.0/a.sql", 2000000)
+    val values = metrics.toMap
+
+    assert(2L === values.get("applied"))
+    assert(1L === values.get("apply.count"))
+    assert(2.0 === values.get("apply.p99"))
+    assert(2.0 === values.get("transformation.1.0/a.sql.total"))
+    assert(!values.containsKey("transformation.1.0/a.sql.p99"))
+  }
+
+  they should "list the slowest transformations first" in {
+    val metrics = new TransformationsMetrics
+    metrics.record(TransformationsMetrics.Transformation + "a", 10)
+    metrics.record(TransformationsMetrics.Transformation + "b", 30)
+    metrics.record(TransformationsMetrics.Transformation + "c", 20)
+    metrics.record(TransformationsMetrics.Apply, 60)
+
+    assert(List("b", "c") === metrics.slowest(2).map(_._1))
+  }
+
+  they should "keep the timings of the slowest transformations only" in {
+    val metrics = new TransformationsMetrics(slowestCapacity = 2)
+    metrics.recordTransformation("a", 10)
+    metrics.recordTransformation("b", 30)
+    metrics.recordTransformation("c", 20)
+    metrics.recordTransformation("d", 5)
+    metrics.recordTransformation("b", 30)
+
+    assert(List("b" -> TransformationTiming(2, 60, 30), "c" -> TransformationTiming(1, 20, 20)) === metrics.slowest(10))
+    assert(!metrics.toMap.containsKey("transformation.a.total"))
+  }
+
+}
@@ -31,7 +31,7 @@ class TransformationsSpec extends FlatSpec with MockFactory {
 
     val mocked = stub[StoredTransformations]
 
-    override def findAllExcept(names: Set[String]): Seq[StoredTransformation] = mocked.findAllExcept(names)
+    override def findAllHashes(): Seq[StoredTransformationHash] = mocked.findAllHashes()
 
     override def findById(name: String): Option[StoredTransformation] = mocked.findById(name)
 
@@ -43,30 +43,62 @@ class TransformationsSpec extends FlatSpec with MockFactory {
 
     override def applyScript(script: String): Unit = mocked.applyScript(script)
 
+    override def findKeyRange(table: String, key: String): Option[(Long, Long)] = mocked.findKeyRange(table, key)
+
+    override def findCheckpoint(id: String): Option[Checkpoint] = mocked.findCheckpoint(id)
+
+    override def saveCheckpoint(checkpoint: Checkpoint): Unit = mocked.saveCheckpoint(checkpoint)
+
+    override def deleteCheckpoint(id: String): Unit = mocked.deleteCheckpoint(id)
+
+    override def findRunCheckpoint(): Option[RunCheckpoint] = mocked.findRunCheckpoint()
+
+    override def saveRunCheckpoint(checkpoint: RunCheckpoint): Unit = mocked.saveRunCheckpoint(checkpoint)
+
+    override def deleteRunCheckpoint(): Unit = mocked.deleteRunCheckpoint()
+
+    override def saveHistory(records: Seq[HistoryRecord]): Unit = mocked.saveHistory(records)
+
+    override def findHistory(): Seq[HistoryRecord] = mocked.findHistory()
+
     override def transform[A](f: => A): A = f
 
     override def transactional[A](f: => A): A = f
 
+    override def inspect[A](f: => A): A = f
+
   }
 
   class TestTransformations(override val localTransformations: List[Transformation])
-    extends Transformations with LocalTransformations with MockStoredTransformations
+    extends Transformations with LocalTransformations with MockStoredTransformations {
+
+    var transforms = 0
+
+    // No run has failed previously
+    (mocked.findRunCheckpoint _).when().returns(None)
+    (mocked.findCheckpoint _).when(*).returns(None)
+
+    override def transform[A](f: => A): A = {
+      transforms += 1
+      f
+    }
+  }
 
   "A new transformation" should "be applied" in {
     val local = LocalTransformation("test", "create", "")
     val pack = new TestTransformations(List(local))
 
     import pack.mocked._
-    (findById _).when("test").returns(None)
-    (findAllExcept _).when(Set("test")).returns(Nil)
+    (findAllHashes _).when().returns(Nil)
 
     pack.run
 
     inSequence {
-      (findById _).verify("test")
+      (findAllHashes _).verify()
       (applyScript _).verify("create")
       (insert _).verify(local)
     }
+    (findById _).verify(*).never
   }
 
   "Disabled transformation" should "not be applied" in {
@@ -74,11 +106,11 @@ class TransformationsSpec extends FlatSpec with MockFactory {
     val pack = new TestTransformations(List(disabled))
 
     import pack.mocked._
-    (findById _).when("test").returns(None)
-    (findAllExcept _).when(Set("test")).returns(Nil)
+    (findAllHashes _).when().returns(Nil)
 
     pack.run
 
+    (findById _).verify(*).never
     (applyScript _).verify(*).never
     (insert _).verify(*).never
     (delete _).verify(*).never
@@ -91,8 +123,8 @@ class TransformationsSpec extends FlatSpec with MockFactory {
     val pack = new TestTransformations(List(disabled))
 
     import pack.mocked._
+    (findAllHashes _).when().returns(List(StoredTransformationHash("test", "", "")))
     (findById _).when("test").returns(Some(stored))
-    (findAllExcept _).when(Set("test")).returns(Nil)
 
     pack.run
 
@@ -108,8 +140,8 @@ class TransformationsSpec extends FlatSpec with MockFactory {
     val pack = new TestTransformations(List())
 
     import pack.mocked._
+    (findAllHashes _).when().returns(List(StoredTransformationHash("test", "", "")))
     (findById _).when("test").returns(Some(stored))
-    (findAllExcept _).when(Set[String]()).returns(List(stored))
 
     pack.run
 
@@ -126,8 +158,8 @@ class TransformationsSpec extends FlatSpec with MockFactory {
     val pack = new TestTransformations(List(local))
 
     import pack.mocked._
+    (findAllHashes _).when().returns(List(StoredTransformationHash("test", "", local.rollbackScriptHash)))
     (findById _).when("test").returns(Some(stored))
-    (findAllExcept _).when(Set("test")).returns(Nil)
 
     pack.run
 
@@ -141,18 +173,16 @@ class TransformationsSpec extends FlatSpec with MockFactory {
 
   "Modified transformation" should "not be applied if not set to run on change" in {
     val local = LocalTransformation("test", "update", "", runOnChange = false)
-    val stored = StoredTransformation("test", "", "", "rollback", local.rollbackScriptHash)
     val pack = new TestTransformations(List(local))
 
     import pack.mocked._
-    (findById _).when("test").returns(Some(stored))
-    (findAllExcept _).when(Set("test")).returns(Nil)
+    (findAllHashes _).when().returns(List(StoredTransformationHash("test", "", local.rollbackScriptHash)))
 
     pack.run
 
-    inSequence {
-      (findById _).verify("test")
-    }
+    (findById _).verify(*).never
+    (applyScript _).verify(*).never
+    (update _).verify(*).never
   }
 
   "Run always transformation" should "be rolled back and applied again" in {
@@ -161,8 +191,8 @@ class TransformationsSpec extends FlatSpec with MockFactory {
     val pack = new TestTransformations(List(local))
 
     import pack.mocked._
+    (findAllHashes _).when().returns(List(StoredTransformationHash("test", local.updateScriptHash, local.rollbackScriptHash)))
     (findById _).when("test").returns(Some(stored))
-    (findAllExcept _).when(Set("test")).returns(Nil)
 
     pack.run
 
@@ -176,19 +206,16 @@ class TransformationsSpec extends FlatSpec with MockFactory {
 
   "If rollback script modified it" should "only update the stored transformation" in {
     val local = LocalTransformation("test", "", "A")
-    val stored = StoredTransformation("test", "", local.updateScriptHash, "", "")
     val pack = new TestTransformations(List(local))
 
     import pack.mocked._
-    (findById _).when("test").returns(Some(stored))
-    (findAllExcept _).when(Set("test")).returns(Nil)
+    (findAllHashes _).when().returns(List(StoredTransformationHash("test", local.updateScriptHash, "")))
 
     pack.run
 
-    inSequence {
-      (findById _).verify("test")
-      (update _).verify(local)
-    }
+    (update _).verify(local)
+    (findById _).verify(*).never
+    (applyScript _).verify(*).never
   }
 
   "Transformations" should "be applied in the given order" in {
@@ -198,18 +225,14 @@ class TransformationsSpec extends FlatSpec with MockFactory {
     val pack = new TestTransformations(List(local2, local1))
 
     import pack.mocked._
-    (findById _).when("test1").returns(None)
-    (findById _).when("test2").returns(None)
+    (findAllHashes _).when().returns(List(StoredTransformationHash("test3", "", "")))
     (findById _).when("test3").returns(Some(stored))
-    (findAllExcept _).when(Set("test1", "test2")).returns(List(stored))
 
     pack.run
 
     inSequence {
-      (findById _).verify("test2")
       (applyScript _).verify("update2")
       (insert _).verify(local2)
-      (findById _).verify("test1")
       (applyScript _).verify("update1")
       (insert _).verify(local1)
       (findById _).verify("test3")
@@ -218,4 +241,147 @@ class TransformationsSpec extends FlatSpec with MockFactory {
     }
   }
 
+  it should "be applied after their declared dependencies when applied one by one" in {
+    val dependant = LocalTransformation("1.0/a.sql", "update1", "", dependsOn = List("2.0/b.sql"))
+    val dependency = LocalTransformation("2.0/b.sql", "update2", "")
+    val pack = new TestTransformations(List(dependant, dependency))
+
+    import pack.mocked._
+    (findAllHashes _).when().returns(Nil)
+
+    pack.run
+
+    inSequence {
+      (applyScript _).verify("update2")
+      (insert _).verify(dependency)
+      (applyScript _).verify("update1")
+      (insert _).verify(dependant)
+    }
+  }
+
+  it should "not be applied if depend on unknown ones" in {
+    val dependant = LocalTransformation("1.0/a.sql", "update1", "", dependsOn = List("2.0/b.sql"))
+    val pack = new TestTransformations(List(dependant))
+
+    import pack.mocked._
+    (findAllHashes _).when().returns(Nil)
+
+    intercept[TransformationException] {
+      pack.run
+    }
+    (applyScript _).verify(*).never
+  }
+
+  "Plan" should "describe the run without changing anything" in {
+    val added = LocalTransformation("added", "create", "")
+    val modified = LocalTransformation("modified", "update", "")
+    val unchanged = LocalTransformation("unchanged", "update", "rollback")
+    val pack = new TestTransformations(List(added, modified, unchanged,
+      DisabledTransformation("disabled"), SkippedTransformation("skipped")))
+
+    import pack.mocked._
+    (findAllHashes _).when().returns(List(
+      StoredTransformationHash("modified", "", modified.rollbackScriptHash, 3),
+      StoredTransformationHash("unchanged", unchanged.updateScriptHash, unchanged.rollbackScriptHash),
+      StoredTransformationHash("disabled", "", "", 4),
+      StoredTransformationHash("removed", "", "", 5)))
+
+    val plan = pack.plan()
+
+    import PlanAction._
+    assert(List(
+      PlanStep("added", Apply, "is ran for the first time", 6),
+      PlanStep("modified", Reapply, "update script has been modified", 9),
+      PlanStep("unchanged", Skip, "is up to date"),
+      PlanStep("disabled", Rollback, "is disabled", 4),
+      PlanStep("skipped", Skip, "is skipped"),
+      PlanStep("removed", Rollback, "is missing locally", 5)) === plan.steps)
+    assert(24 === plan.scriptSize)
+    (findById _).verify(*).never
+    (applyScript _).verify(*).never
+    (insert _).verify(*).never
+    (update _).verify(*).never
+    (delete _).verify(*).never
+  }
+
+  it should "not load the scripts before they are applied" in {
+    val loads = collection.mutable.Map[String, Int]().withDefaultValue(0)
+    def handle(id: String, updateScript: String) = new LocalTransformation(id, {
+      loads(id) += 1
+      (updateScript, "")
+    }, HashAlgorithm.Default.hash(updateScript), HashAlgorithm.Default.hash(""),
+      true, false, true, Nil, Some(updateScript.length))
+    val added = handle("added", "create")
+    val modified = handle("modified", "update")
+    val unchanged = handle("unchanged", "select")
+    val pack = new TestTransformations(List(added, modified, unchanged))
+
+    import pack.mocked._
+    (findAllHashes _).when().returns(List(
+      StoredTransformationHash("modified", HashAlgorithm.Default.hash("old"), modified.rollbackScriptHash),
+      StoredTransformationHash("unchanged", unchanged.updateScriptHash, unchanged.rollbackScriptHash)))
+    (findById _).when("modified").returns(Some(StoredTransformation("modified", "old", HashAlgorithm.Default.hash("old"), "", modified.rollbackScriptHash)))
+
+    assert(12 === pack.plan().scriptSize)
+    // The modified script is only hashed to check for a legacy hash sum and not kept
+    assert(Map("modified" -> 1) === loads)
+
+    // The run plans again, then loads the scripts once to apply them
+    pack.run
+    assert(Map("added" -> 1, "modified" -> 3) === loads)
+  }
+
+  "Up to date transformations" should "not be transformed at all" in {
+    val local = LocalTransformation("test", "update", "rollback")
+    val pack = new TestTransformations(List(local))
+
+    import pack.mocked._
+    (findAllHashes _).when().returns(List(StoredTransformationHash("test", local.updateScriptHash, local.rollbackScriptHash)))
+
+    pack.run
+
+    assert(0 === pack.transforms)
+    assert(pack.metrics.timers.isEmpty && pack.metrics.slowest(10).isEmpty)
+    (findAllHashes _).verify()
+  }
+
+  "Transformation outcomes" should "be counted" in {
+    val local = LocalTransformation("test", "create", "")
+    val failing = LocalTransformation("failing", "fail", "")
+    val pack = new TestTransformations(List(local, failing))
+
+    import pack.mocked._
+    (findAllHashes _).when().returns(Nil)
+    (applyScript _).when("fail").throws(new RuntimeException("failed"))
+
+    pack.run
+
+    assert(Map(TransformationsMetrics.Applied -> 1, TransformationsMetrics.Failed -> 1) === pack.metrics.counters)
+    assert(2 === pack.metrics.timers(TransformationsMetrics.Apply).count)
+    assert(Set("test", "failing") === pack.metrics.slowest(10).map(_._1).toSet)
+  }
+
+  "Run lifecycle events" should "be published" in {
+    val events = List.newBuilder[TransformationEvent]
+    val local = LocalTransformation("test", "create", "")
+    val failing = LocalTransformation("failing", "fail", "")
+    val pack = new TestTransformations(List(local, failing)) {
+      override val eventSink = new TransformationEventSink {
+        override def publish(event: TransformationEvent): Unit = events += event
+      }
+    }
+
+    import pack.mocked._
+    (findAllHashes _).when().returns(Nil)
+    (applyScript _).when("fail").throws(new RuntimeException("failed"))
+
+    pack.run
+
+    events.result() match {
+      case List(RunStarted(_, _), TransformationApplied("test", "apply", _, _, _),
+      TransformationFailed("failing", "apply", _, "failed", _), RunFinished(_, 1, 1, false, _)) =>
+      case other => fail(s"Unexpected events $other")
+    }
+  }
+
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.core
+
+import java.io.File
+import java.nio.file.Files
+import org.scalatest.FlatSpec
+import scala.slick.jdbc.JdbcBackend.Database
+import scala.slick.jdbc.{StaticQuery => Sql}
+import Database.dynamicSession
+
+/**
+ * [[WatchingTransformations]] test spec.
+ *
+ * @author Alexander Valyugin
+ */
+class WatchingTransformationsSpec extends FlatSpec {
+
+  class TestTransformations(override val transformationsPath: String)
+    extends WatchingTransformations with FileLocalTransformations with SlickStoredTransformations {
+    val db = Database.forURL("jdbc:h2:mem:watch", driver = "org.h2.Driver")
+    override val watchDebounce = 100L
+  }
+
+  val db = Database.forURL("jdbc:h2:mem:watch", driver = "org.h2.Driver")
+
+  private def write(file: File, update: String, rollback: String): Unit = {
+    file.getParentFile.mkdirs()
+    Files.write(file.toPath,
+      s"--<transformation>--<update>$update</update>--<rollback>$rollback</rollback>--</transformation>".getBytes)
+  }
+
+  private def names(): List[String] = Sql.queryNA[String]("select fullname from persons order by fullname;").list
+
+  private def eventually(condition: => Boolean): Unit = {
+    val deadline = System.currentTimeMillis + 10000
+    while (!condition && System.currentTimeMillis < deadline) Thread.sleep(50)
+    assert(condition)
+  }
+
+  "Watched transformations" should "be applied as they are changed" in {
+    val root = Files.createTempDirectory("transformations").toFile
+    write(new File(root, "1.0/john.sql"), "insert into persons values (1, 'John');", "delete from persons where id = 1;")
+    val pack = new TestTransformations(root.getPath)
+
+    db.withDynSession {
+      Sql.updateNA("create table persons (id int, fullname varchar(255));").execute
+      val watch = pack.watch()
+      try {
+        assert(List("John") === names())
+
+        write(new File(root, "1.0/john.sql"), "insert into persons values (1, 'Johnny');", "delete from persons where id = 1;")
+        write(new File(root, "2.0/jane.sql"), "insert into persons values (2, 'Jane');", "delete from persons where id = 2;")
+        eventually(List("Jane", "Johnny") == names())
+
+        new File(root, "2.0/jane.sql").delete()
+        eventually(List("Johnny") == names())
+        eventually(pack.findById("2.0/jane.sql").isEmpty)
+        assert(pack.findById("1.0/john.sql").exists(_.updateScript contains "Johnny"))
+      } finally {
+        watch.close()
+      }
+    }
+  }
+
+}
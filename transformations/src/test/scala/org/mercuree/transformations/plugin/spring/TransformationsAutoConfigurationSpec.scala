@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mercuree.transformations.plugin.spring
+
+import org.mercuree.transformations.core.{HashAlgorithm, TransformationsSettings}
+import org.scalatest.FlatSpec
+
+/**
+ * [[TransformationsAutoConfiguration]] test spec.
+ *
+ * @author Alexander Valyugin
+ */
+class TransformationsAutoConfigurationSpec extends FlatSpec {
+
+  "Default properties" should "be mapped onto the default settings" in {
+    assert(TransformationsSettings() === TransformationsAutoConfiguration.settingsOf(new TransformationsConfigurationProperties))
+  }
+
+  "Properties" should "be mapped onto the settings" in {
+    val properties = new TransformationsConfigurationProperties
+    properties.setTransformationsPath("db")
+    properties.setManifestPath("manifest")
+    properties.setHashAlgorithm("murmur3")
+    properties.setBaseline("1.0/schema.sql")
+    properties.setTenantParallelism(8)
+
+    val settings = TransformationsAutoConfiguration.settingsOf(properties)
+    assert("db" === settings.transformationsPath)
+    assert(Some("manifest") === settings.manifestPath)
+    assert(HashAlgorithm.Murmur3 === settings.hashAlgorithm)
+    assert(Some("1.0/schema.sql") === settings.baseline)
+    assert(8 === settings.tenantParallelism)
+  }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mercuree.transformations.plugin.spring
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import org.scalatest.FlatSpec
+import org.springframework.context.{ApplicationEvent, ApplicationEventPublisher}
+import TransformationsExecution.State
+
+/**
+ * [[TransformationsExecution]] test spec.
+ *
+ * @author Alexander Valyugin
+ */
+class TransformationsExecutionSpec extends FlatSpec {
+
+  class RecordingPublisher extends ApplicationEventPublisher {
+    @volatile var events = List[ApplicationEvent]()
+
+    override def publishEvent(event: ApplicationEvent): Unit = events ::= event
+  }
+
+  private def runnable(f: => Unit) = new Runnable {
+    override def run(): Unit = f
+  }
+
+  "Transformations" should "be run in the calling thread by default" in {
+    val publisher = new RecordingPublisher
+    var thread: Thread = null
+    val execution = new TransformationsExecution(runnable(thread = Thread.currentThread), publisher)
+
+    assert(State.PENDING === execution.getState)
+    execution.run()
+
+    assert(Thread.currentThread === thread)
+    assert(State.DONE === execution.getState)
+    assert(execution.isReady)
+    assert(List(execution) === publisher.events.map(_.getSource))
+  }
+
+  they should "be run in background when started" in {
+    val release = new CountDownLatch(1)
+    val execution = new TransformationsExecution(runnable(release.await()), null)
+
+    execution.start()
+    intercept[java.util.concurrent.TimeoutException] {
+      execution.awaitCompletion(50, TimeUnit.MILLISECONDS)
+    }
+    assert(State.RUNNING === execution.getState)
+    assert(!execution.isReady)
+
+    release.countDown()
+    execution.awaitCompletion(5, TimeUnit.SECONDS)
+    assert(State.DONE === execution.getState)
+    assert(execution.getFuture.isDone)
+  }
+
+  "Failed transformations" should "be reported to those waiting" in {
+    val publisher = new RecordingPublisher
+    val execution = new TransformationsExecution(runnable(throw new IllegalArgumentException("broken")), publisher)
+
+    execution.start()
+    val e = intercept[IllegalArgumentException] {
+      execution.awaitCompletion(5, TimeUnit.SECONDS)
+    }
+    assert("broken" === e.getMessage)
+    assert(State.FAILED === execution.getState)
+    assert(e === execution.getFailure)
+    assert(1 === publisher.events.size)
+  }
+
+}